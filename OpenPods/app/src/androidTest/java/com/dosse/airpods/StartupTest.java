@@ -0,0 +1,117 @@
+package com.dosse.airpods;
+
+import android.Manifest;
+import android.bluetooth.BluetoothManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.pm.PermissionInfo;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.rule.GrantPermissionRule;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Runs on a device: ./gradlew connectedAndroidTest
+ * <p>
+ * Starts (or restarts) the service and checks that setup stays within PodsService.STARTUP_BUDGET_NS on the main thread, and that other apps need StatusApi.PERMISSION to start it.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StartupTest {
+    private static final long TIMEOUT_MS = 10000;
+    private static final int SHELL_UID = 2000; //Process.SHELL_UID, only public since Q
+
+    @Rule
+    public GrantPermissionRule permissions = GrantPermissionRule.grant(Manifest.permission.ACCESS_COARSE_LOCATION);
+
+    private Context context;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getTargetContext();
+        assumeTrue("no bluetooth on this device", ((BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE)).getAdapter() != null);
+    }
+
+    @After
+    public void tearDown() {
+        context.stopService(new Intent(context, PodsService.class));
+    }
+
+    /**
+     * Forgets the last setup and restarts the service, or starts it if it's not running
+     *
+     * @return how long setup took on the main thread, in ns
+     */
+    private long restart() throws InterruptedException {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                PodsService.getStartupTrace().start(SystemClock.elapsedRealtimeNanos());
+                PodsService.restart(context);
+            }
+        });
+        return waitForSetup();
+    }
+
+    private long waitForSetup() throws InterruptedException {
+        return waitFor(StartupTrace.CREATE_END);
+    }
+
+    /**
+     * @param event one of the StartupTrace constants
+     * @return when it happened, in ns from the start of setup
+     */
+    private long waitFor(int event) throws InterruptedException {
+        long deadline = SystemClock.elapsedRealtime() + TIMEOUT_MS;
+        while (PodsService.getStartupTrace().get(event) == -1) {
+            assertTrue("the service wasn't set up in " + TIMEOUT_MS + "ms", SystemClock.elapsedRealtime() < deadline);
+            Thread.sleep(10);
+        }
+        return PodsService.getStartupTrace().get(event);
+    }
+
+    @Test
+    public void setupFitsInTheBudget() throws InterruptedException {
+        long t = restart();
+        assertTrue("setup took " + t / 1000000 + "ms on the main thread, the budget is " + PodsService.STARTUP_BUDGET_NS / 1000000 + "ms", t <= PodsService.STARTUP_BUDGET_NS);
+    }
+
+    @Test
+    public void restartFitsInTheBudget() throws InterruptedException {
+        restart(); //started, or restarted if it was already running
+        long t = restart(); //restarted in place
+        assertTrue("restart took " + t / 1000000 + "ms on the main thread, the budget is " + PodsService.STARTUP_BUDGET_NS / 1000000 + "ms", t <= PodsService.STARTUP_BUDGET_NS);
+    }
+
+    /**
+     * The receivers are registered by deferredSetup, after the main thread part of setup is over
+     */
+    @Test
+    public void receiversAreRegisteredAfterSetup() throws InterruptedException {
+        long t = restart();
+        assertTrue("the receivers were registered on the main thread", waitFor(StartupTrace.RECEIVERS_REGISTERED) >= t);
+    }
+
+    /**
+     * The service is exported for StatusApi, every start from another app would set it up again. The system only lets apps that the user granted the permission start or bind it
+     */
+    @Test
+    public void otherAppsNeedThePermission() throws PackageManager.NameNotFoundException {
+        PackageManager pm = context.getPackageManager();
+        assertEquals(StatusApi.PERMISSION, pm.getServiceInfo(new ComponentName(context, PodsService.class), 0).permission);
+        assertEquals(StatusApi.PERMISSION, pm.resolveContentProvider(StatusApi.AUTHORITY, 0).readPermission);
+        assertEquals(PermissionInfo.PROTECTION_DANGEROUS, pm.getPermissionInfo(StatusApi.PERMISSION, 0).protectionLevel & PermissionInfo.PROTECTION_MASK_BASE);
+        assertEquals("the shell has the permission without asking for it", PackageManager.PERMISSION_DENIED, context.checkPermission(StatusApi.PERMISSION, -1, SHELL_UID));
+    }
+}
@@ -0,0 +1,123 @@
+package com.dosse.airpods;
+
+/**
+ * Base class for PodsScanners. Implementations receive results from their scanner (a callback of the BT stack for LeScanner, a simulation in the benchmarks), and for each callback they call:
+ * - beginCallback
+ * - offer, for each result
+ * - endCallback, which delivers the beacons to the listener in a single BeaconBatch
+ * <p>
+ * This is also where callbacks and results are counted, so we can see how often the app is woken up by the scanner and how much batching helps.
+ * <p>
+ * Callbacks must come from a single thread at a time (for LeScanner, the main thread). The counters can be read from any thread.
+ */
+public abstract class BatchingScanner implements PodsScanner {
+    private final Listener listener;
+    private final BeaconBatch batch;
+    private volatile long callbacks = 0, results = 0, rejected = 0, maxResultsPerCallback = 0;
+    private int resultsInCallback = 0;
+    private Metrics metrics = null;
+
+    /**
+     * @param queueSize maximum number of beacons delivered in a single callback, see BeaconBatch
+     * @param listener  receives the beacons
+     */
+    protected BatchingScanner(int queueSize, Listener listener) {
+        this.listener = listener;
+        batch = new BeaconBatch(queueSize);
+    }
+
+    /**
+     * @param metrics where results and callbacks are also counted, cumulatively across scanners. Can be null
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    protected final void beginCallback() {
+        batch.clear();
+        resultsInCallback = 0;
+    }
+
+    /**
+     * Adds a result to the current callback
+     *
+     * @param data manufacturer specific data n°76, results that can't be AirPods beacons are counted and ignored
+     */
+    protected final void offer(long timestampNs, long address, int rssi, byte[] data) {
+        resultsInCallback++;
+        if (data == null || data.length != BeaconDecoder.DATA_LENGTH) {
+            rejected++;
+            if (metrics != null) metrics.increment(Metrics.BEACONS_REJECTED_LENGTH);
+            return;
+        }
+        if (!BeaconDecoder.matchesFilter(data)) {
+            rejected++;
+            if (metrics != null) metrics.increment(Metrics.BEACONS_REJECTED_FILTER);
+            return;
+        }
+        batch.add(timestampNs, address, rssi, data);
+    }
+
+    protected final void endCallback() {
+        callbacks++;
+        results += resultsInCallback;
+        if (resultsInCallback > maxResultsPerCallback) maxResultsPerCallback = resultsInCallback;
+        if (metrics != null) {
+            metrics.increment(Metrics.SCANNER_CALLBACKS);
+            metrics.add(Metrics.BEACONS_RECEIVED, resultsInCallback);
+            metrics.record(Metrics.BATCH_SIZE, resultsInCallback);
+        }
+        if (batch.size() > 0) listener.onBeacons(batch);
+    }
+
+    /**
+     * Tells the listener that the scan couldn't be started
+     */
+    protected final void scanFailed(int errorCode) {
+        listener.onScanFailed(errorCode);
+    }
+
+    /**
+     * @return number of times the scanner called us, each one is a wakeup of the app
+     */
+    public long getCallbackCount() {
+        return callbacks;
+    }
+
+    /**
+     * @return number of results received, in all callbacks
+     */
+    public long getResultCount() {
+        return results;
+    }
+
+    /**
+     * @return average number of results per callback, 1 if batching is off
+     */
+    public double getResultsPerCallback() {
+        long c = callbacks;
+        return c == 0 ? 0 : (double) results / c;
+    }
+
+    public long getMaxResultsPerCallback() {
+        return maxResultsPerCallback;
+    }
+
+    /**
+     * @return number of results that were not AirPods beacons, they should have been filtered by the controller
+     */
+    public long getRejectedCount() {
+        return rejected;
+    }
+
+    /**
+     * @return number of beacons that were dropped because a callback had more than queueSize of them
+     */
+    public long getOverwrittenCount() {
+        return batch.getOverwritten();
+    }
+
+    public int getQueueSize() {
+        return batch.getQueueSize();
+    }
+}
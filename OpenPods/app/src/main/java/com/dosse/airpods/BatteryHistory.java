@@ -0,0 +1,474 @@
+package com.dosse.airpods;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Remembers the battery levels of the pods over time.
+ * <p>
+ * There are 3 tiers, each one is a file of fixed size records used as a ring buffer, so the disk space is fixed and decided upfront:
+ * - RAW: every status change (time + PodStatus packed value), kept for RAW_MAX_AGE_MS
+ * - MINUTES: older changes are compacted into one bucket per minute, with min/max/last for each level, kept for MINUTES_MAX_AGE_MS
+ * - HOURS: older minutes are compacted into one bucket per hour, kept until the ring is full, then the oldest are dropped
+ * If a ring fills up before its data is old enough, its oldest minutes (or hours) are compacted early instead of being lost.
+ * <p>
+ * record only adds the change to an in-memory buffer and returns, so it can be called from the scanner callback. A background thread writes the buffer to disk FLUSH_INTERVAL_MS after the first change, and when the history is closed.
+ * When nothing was recorded the thread just sleeps, and a flush with nothing to write or compact doesn't touch the files. Only the headers of the rings that changed are rewritten.
+ * Queries read only the records in the requested range (binary search on the ring), so the UI never has to load a whole file.
+ * <p>
+ * Times are System.currentTimeMillis. If the clock goes back, records keep the time of the previous one so the rings stay sorted.
+ */
+public final class BatteryHistory implements Closeable {
+    public static final int RAW = 0, MINUTES = 1, HOURS = 2;
+
+    private static final long MINUTE_MS = 60000, HOUR_MS = 3600000;
+    private static final long RAW_MAX_AGE_MS = 86400000L; //1 day
+    private static final long MINUTES_MAX_AGE_MS = 7 * 86400000L; //1 week
+    private static final long FLUSH_INTERVAL_MS = 30000;
+    private static final int PENDING_MAX = 256;
+
+    private static final int MAGIC = 0x48504F; //"OPH"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int RAW_RECORD_SIZE = 16, BUCKET_RECORD_SIZE = 24;
+    private static final String[] FILE_NAMES = {"history_raw.bin", "history_minutes.bin", "history_hours.bin"};
+
+    /**
+     * A record of any tier. Raw records are buckets that contain a single change, so min, max and last are the same.
+     * Levels are 0-100 or 255 (disconnected), min and max ignore 255 and are 255 only if the level was never known during the bucket.
+     */
+    public static final class Bucket {
+        public long start; //start of the bucket, or time of the change for RAW
+        public int count; //number of changes in this bucket
+        public int minL, maxL, lastL, minR, maxR, lastR, minCase, maxCase, lastCase;
+        public boolean chargeL, chargeR, chargeCase; //charging at the end of the bucket
+
+        void set(long time, long packed) {
+            PodStatus s = new PodStatus(packed, 0);
+            start = time;
+            count = 1;
+            minL = maxL = lastL = s.getLeftStatus();
+            minR = maxR = lastR = s.getRightStatus();
+            minCase = maxCase = lastCase = s.getCaseStatus();
+            chargeL = s.isChargingL();
+            chargeR = s.isChargingR();
+            chargeCase = s.isChargingCase();
+        }
+
+        void copy(Bucket b) {
+            start = b.start;
+            count = b.count;
+            minL = b.minL;
+            maxL = b.maxL;
+            lastL = b.lastL;
+            minR = b.minR;
+            maxR = b.maxR;
+            lastR = b.lastR;
+            minCase = b.minCase;
+            maxCase = b.maxCase;
+            lastCase = b.lastCase;
+            chargeL = b.chargeL;
+            chargeR = b.chargeR;
+            chargeCase = b.chargeCase;
+        }
+
+        void merge(Bucket b) {
+            count += b.count;
+            minL = min(minL, b.minL);
+            maxL = max(maxL, b.maxL);
+            minR = min(minR, b.minR);
+            maxR = max(maxR, b.maxR);
+            minCase = min(minCase, b.minCase);
+            maxCase = max(maxCase, b.maxCase);
+            lastL = b.lastL;
+            lastR = b.lastR;
+            lastCase = b.lastCase;
+            chargeL = b.chargeL;
+            chargeR = b.chargeR;
+            chargeCase = b.chargeCase;
+        }
+
+        private static int min(int a, int b) {
+            if (a == PodStatus.DISCONNECTED) return b;
+            if (b == PodStatus.DISCONNECTED) return a;
+            return Math.min(a, b);
+        }
+
+        private static int max(int a, int b) {
+            if (a == PodStatus.DISCONNECTED) return b;
+            if (b == PodStatus.DISCONNECTED) return a;
+            return Math.max(a, b);
+        }
+
+        void write(ByteBuffer b, int pos) {
+            b.putLong(pos, start);
+            b.put(pos + 8, (byte) minL).put(pos + 9, (byte) maxL).put(pos + 10, (byte) lastL);
+            b.put(pos + 11, (byte) minR).put(pos + 12, (byte) maxR).put(pos + 13, (byte) lastR);
+            b.put(pos + 14, (byte) minCase).put(pos + 15, (byte) maxCase).put(pos + 16, (byte) lastCase);
+            b.put(pos + 17, (byte) ((chargeL ? 1 : 0) | (chargeR ? 2 : 0) | (chargeCase ? 4 : 0)));
+            b.putShort(pos + 18, (short) 0);
+            b.putInt(pos + 20, count);
+        }
+
+        void read(ByteBuffer b, int pos) {
+            start = b.getLong(pos);
+            minL = b.get(pos + 8) & 0xFF;
+            maxL = b.get(pos + 9) & 0xFF;
+            lastL = b.get(pos + 10) & 0xFF;
+            minR = b.get(pos + 11) & 0xFF;
+            maxR = b.get(pos + 12) & 0xFF;
+            lastR = b.get(pos + 13) & 0xFF;
+            minCase = b.get(pos + 14) & 0xFF;
+            maxCase = b.get(pos + 15) & 0xFF;
+            lastCase = b.get(pos + 16) & 0xFF;
+            int flags = b.get(pos + 17);
+            chargeL = (flags & 1) != 0;
+            chargeR = (flags & 2) != 0;
+            chargeCase = (flags & 4) != 0;
+            count = b.getInt(pos + 20);
+        }
+    }
+
+    /**
+     * A file of fixed size records used as a ring buffer, sorted by time. The header holds the position of the oldest record and the number of records
+     */
+    private static final class Ring implements Closeable {
+        final int recordSize, capacity;
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        final ByteBuffer record;
+        long head, count;
+        private boolean dirty = false; //head or count changed since the header was written
+
+        Ring(File f, int recordSize, int capacity) throws IOException {
+            this.recordSize = recordSize;
+            this.capacity = capacity;
+            record = ByteBuffer.allocate(recordSize).order(ByteOrder.LITTLE_ENDIAN);
+            file = new RandomAccessFile(f, "rw");
+            channel = file.getChannel();
+            header.clear();
+            boolean valid = channel.read(header, 0) == HEADER_SIZE && header.getInt(0) == MAGIC && header.getInt(4) == VERSION && header.getInt(8) == recordSize && header.getInt(12) == capacity;
+            if (valid) {
+                head = header.getLong(16);
+                count = header.getLong(24);
+                valid = head >= 0 && head < capacity && count >= 0 && count <= capacity;
+            }
+            if (!valid) { //new file, or the format changed: start over
+                head = 0;
+                count = 0;
+                channel.truncate(0);
+                writeHeader();
+            }
+        }
+
+        void writeHeader() throws IOException {
+            dirty = false;
+            header.clear();
+            header.putInt(MAGIC).putInt(VERSION).putInt(recordSize).putInt(capacity).putLong(head).putLong(count).flip();
+            channel.write(header, 0);
+        }
+
+        /**
+         * Reads the i-th oldest record into record
+         */
+        void read(long i) throws IOException {
+            record.clear();
+            long pos = HEADER_SIZE + ((head + i) % capacity) * recordSize;
+            while (record.hasRemaining()) {
+                if (channel.read(record, pos + record.position()) < 0) throw new IOException("Truncated history");
+            }
+        }
+
+        long time(long i) throws IOException {
+            read(i);
+            return record.getLong(0);
+        }
+
+        /**
+         * Appends the contents of record. The ring must not be full
+         */
+        void append() throws IOException {
+            record.clear();
+            long pos = HEADER_SIZE + ((head + count) % capacity) * recordSize;
+            while (record.hasRemaining()) channel.write(record, pos + record.position());
+            count++;
+            dirty = true;
+        }
+
+        void removeFirst(long n) {
+            if (n == 0) return;
+            head = (head + n) % capacity;
+            count -= n;
+            dirty = true;
+        }
+
+        void writeHeaderIfChanged() throws IOException {
+            if (dirty) writeHeader();
+        }
+
+        /**
+         * @return index of the first record with time >= t, or count if there are none
+         */
+        long search(long t) throws IOException {
+            long lo = 0, hi = count;
+            while (lo < hi) {
+                long mid = (lo + hi) >>> 1;
+                if (time(mid) < t) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+    private final Ring[] rings = new Ring[3];
+    private final Bucket[] scratch = {new Bucket(), new Bucket()}, acc = {new Bucket(), new Bucket()}; //one per tier that is compacted, compacting RAW may compact MINUTES
+
+    //changes waiting to be written, filled by record
+    private final long[] pendingTime = new long[PENDING_MAX], pendingPacked = new long[PENDING_MAX];
+    private final long[] flushTime = new long[PENDING_MAX], flushPacked = new long[PENDING_MAX];
+    private int pendingCount = 0;
+    private long lastTime = Long.MIN_VALUE, dropped = 0;
+    private long compactAt = Long.MIN_VALUE; //when the oldest data will be old enough to be compacted, see nextCompaction. Guarded by rings
+    private boolean running = true;
+    private final Thread writer;
+
+    /**
+     * Opens the history, creating it if it doesn't exist
+     *
+     * @param dir            where to store the files
+     * @param rawCapacity    maximum number of RAW records, 16 bytes each
+     * @param minuteCapacity maximum number of MINUTES records, 24 bytes each
+     * @param hourCapacity   maximum number of HOURS records, 24 bytes each
+     * @throws IOException if the files can't be opened
+     */
+    public BatteryHistory(File dir, int rawCapacity, int minuteCapacity, int hourCapacity) throws IOException {
+        int[] sizes = {RAW_RECORD_SIZE, BUCKET_RECORD_SIZE, BUCKET_RECORD_SIZE}, capacities = {rawCapacity, minuteCapacity, hourCapacity};
+        try {
+            for (int i = 0; i < 3; i++) rings[i] = new Ring(new File(dir, FILE_NAMES[i]), sizes[i], capacities[i]);
+            if (rings[RAW].count > 0) lastTime = rings[RAW].time(rings[RAW].count - 1);
+        } catch (IOException e) {
+            closeRings();
+            throw e;
+        }
+        writer = new Thread("BatteryHistory") {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        };
+        writer.setPriority(Thread.MIN_PRIORITY);
+        writer.start();
+    }
+
+    /**
+     * Records a status change. Never blocks on I/O
+     *
+     * @param timeMs System.currentTimeMillis
+     * @param packed the new status, see PodStatus.getPacked
+     * @return false if the change was dropped because the writer is lagging behind
+     */
+    public synchronized boolean record(long timeMs, long packed) {
+        if (!running) return false;
+        if (pendingCount == PENDING_MAX) {
+            dropped++;
+            return false;
+        }
+        if (timeMs < lastTime) timeMs = lastTime;
+        lastTime = timeMs;
+        pendingTime[pendingCount] = timeMs;
+        pendingPacked[pendingCount] = packed;
+        pendingCount++;
+        if (pendingCount == 1 || pendingCount == PENDING_MAX / 2) notifyAll(); //the writer starts waiting FLUSH_INTERVAL_MS, or writes now
+        return true;
+    }
+
+    /**
+     * @return number of changes that were dropped because the writer was lagging behind
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Reads the records of a tier in a time range. Pending changes are written first, so they're included. This does I/O, don't call it on the main thread.
+     * To read a range that is bigger than out, call this again with fromMs = the start of the last bucket + 1
+     *
+     * @param tier   RAW, MINUTES or HOURS
+     * @param fromMs start of the range, inclusive
+     * @param toMs   end of the range, exclusive
+     * @param out    the records are read into these objects
+     * @return number of records read
+     * @throws IOException if the files can't be read
+     */
+    public int query(int tier, long fromMs, long toMs, Bucket[] out) throws IOException {
+        flush();
+        synchronized (rings) {
+            Ring r = rings[tier];
+            int n = 0;
+            for (long i = r.search(fromMs); i < r.count && n < out.length; i++) {
+                r.read(i);
+                long t = r.record.getLong(0);
+                if (t >= toMs) break;
+                if (out[n] == null) out[n] = new Bucket();
+                if (tier == RAW) out[n].set(t, r.record.getLong(8));
+                else out[n].read(r.record, 0);
+                n++;
+            }
+            return n;
+        }
+    }
+
+    /**
+     * @return number of records in a tier
+     */
+    public long size(int tier) {
+        synchronized (rings) {
+            return rings[tier].count;
+        }
+    }
+
+    /**
+     * Writes pending changes and compacts old data. Normally done by the background thread. Does nothing if there are no pending changes and nothing is old enough to be compacted
+     *
+     * @throws IOException if the files can't be written
+     */
+    public void flush() throws IOException {
+        synchronized (rings) {
+            Ring raw = rings[RAW];
+            int n;
+            synchronized (this) { //take the pending changes and release the lock immediately, so record doesn't wait for the I/O
+                n = pendingCount;
+                System.arraycopy(pendingTime, 0, flushTime, 0, n);
+                System.arraycopy(pendingPacked, 0, flushPacked, 0, n);
+                pendingCount = 0;
+            }
+            long now = lastTimeSeen();
+            if (n == 0 && now < compactAt) return;
+            for (int i = 0; i < n; i++) {
+                if (raw.count == raw.capacity) compact(RAW, raw.time(0) / MINUTE_MS * MINUTE_MS + MINUTE_MS); //full, compact the oldest minute early
+                raw.record.putLong(0, flushTime[i]);
+                raw.record.putLong(8, flushPacked[i]);
+                raw.append();
+            }
+            compact(RAW, (now - RAW_MAX_AGE_MS) / MINUTE_MS * MINUTE_MS);
+            compact(MINUTES, (now - MINUTES_MAX_AGE_MS) / HOUR_MS * HOUR_MS);
+            for (Ring r : rings) r.writeHeaderIfChanged();
+            compactAt = nextCompaction();
+        }
+    }
+
+    /**
+     * @return the first time at which the compact calls in flush will move something, from the oldest record of RAW and MINUTES
+     */
+    private long nextCompaction() throws IOException {
+        long ret = Long.MAX_VALUE;
+        if (rings[RAW].count > 0) ret = Math.min(ret, rings[RAW].time(0) / MINUTE_MS * MINUTE_MS + MINUTE_MS + RAW_MAX_AGE_MS);
+        if (rings[MINUTES].count > 0) ret = Math.min(ret, rings[MINUTES].time(0) / HOUR_MS * HOUR_MS + HOUR_MS + MINUTES_MAX_AGE_MS);
+        return ret;
+    }
+
+    private synchronized long lastTimeSeen() {
+        return Math.max(lastTime, System.currentTimeMillis());
+    }
+
+    /**
+     * Moves the records of a tier that are older than cutoff to the next tier, merging them into buckets.
+     * cutoff must be aligned to the bucket size of the next tier, so buckets are always complete
+     */
+    private void compact(int tier, long cutoff) throws IOException {
+        Ring from = rings[tier];
+        Bucket scratch = this.scratch[tier], acc = this.acc[tier];
+        long bucketSize = tier == RAW ? MINUTE_MS : HOUR_MS;
+        long n = 0;
+        boolean open = false;
+        while (n < from.count) {
+            from.read(n);
+            long t = from.record.getLong(0);
+            if (t >= cutoff) break;
+            if (tier == RAW) scratch.set(t, from.record.getLong(8));
+            else scratch.read(from.record, 0);
+            long start = t / bucketSize * bucketSize;
+            if (open && start != acc.start) {
+                appendBucket(tier + 1, acc);
+                open = false;
+            }
+            if (!open) {
+                acc.copy(scratch);
+                acc.start = start;
+                open = true;
+            } else {
+                acc.merge(scratch);
+            }
+            n++;
+        }
+        if (open) appendBucket(tier + 1, acc);
+        from.removeFirst(n);
+    }
+
+    private void appendBucket(int tier, Bucket b) throws IOException {
+        Ring r = rings[tier];
+        if (r.count == r.capacity) {
+            if (tier == MINUTES) compact(MINUTES, r.time(0) / HOUR_MS * HOUR_MS + HOUR_MS); //full, compact the oldest hour early
+            else r.removeFirst(1); //hours are the last tier, drop the oldest
+        }
+        b.write(r.record, 0);
+        r.append();
+    }
+
+    /**
+     * Writes what's left and closes the files
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+        }
+        closeRings();
+    }
+
+    private void writeLoop() {
+        for (; ; ) {
+            boolean stop;
+            synchronized (this) {
+                try {
+                    while (running && pendingCount == 0) wait(); //nothing to write, sleep until record or close
+                    if (running && pendingCount < PENDING_MAX / 2) wait(FLUSH_INTERVAL_MS); //let more changes arrive, unless the buffer is getting full
+                } catch (InterruptedException e) {
+                }
+                stop = !running;
+            }
+            try {
+                flush();
+            } catch (Throwable t) {
+            }
+            if (stop) break;
+        }
+    }
+
+    private void closeRings() {
+        synchronized (rings) {
+            for (Ring r : rings) {
+                try {
+                    if (r != null) r.close();
+                } catch (Throwable t) {
+                }
+            }
+        }
+    }
+}
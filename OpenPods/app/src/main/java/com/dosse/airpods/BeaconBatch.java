@@ -0,0 +1,97 @@
+package com.dosse.airpods;
+
+/**
+ * The beacons delivered by a PodsScanner in a single callback, oldest first.
+ * <p>
+ * It holds at most queueSize beacons, if more arrive in the same callback the oldest ones are overwritten: only the latest status of each device matters.
+ * The arrays are allocated once and reused for every callback, so listeners must not keep references to the batch or its payloads.
+ */
+public final class BeaconBatch {
+    private final long[] timestamp, address;
+    private final int[] rssi;
+    private final byte[][] data;
+    private int first = 0, count = 0;
+    private long overwritten = 0;
+
+    /**
+     * @param queueSize maximum number of beacons
+     */
+    public BeaconBatch(int queueSize) {
+        if (queueSize <= 0) throw new IllegalArgumentException("queueSize must be positive");
+        timestamp = new long[queueSize];
+        address = new long[queueSize];
+        rssi = new int[queueSize];
+        data = new byte[queueSize][BeaconDecoder.DATA_LENGTH];
+    }
+
+    /**
+     * Adds a beacon, overwriting the oldest one if the batch is full
+     *
+     * @param data manufacturer specific data n°76, it is copied. Must be DATA_LENGTH bytes
+     */
+    public void add(long timestampNs, long address, int rssi, byte[] data) {
+        int cap = timestamp.length, i;
+        if (count == cap) {
+            i = first;
+            first = (first + 1) % cap;
+            overwritten++;
+        } else {
+            i = (first + count) % cap;
+            count++;
+        }
+        timestamp[i] = timestampNs;
+        this.address[i] = address;
+        this.rssi[i] = rssi;
+        System.arraycopy(data, 0, this.data[i], 0, BeaconDecoder.DATA_LENGTH);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int getQueueSize() {
+        return timestamp.length;
+    }
+
+    /**
+     * @return when the i-th beacon was received (elapsed realtime, ns)
+     */
+    public long getTimestamp(int i) {
+        return timestamp[index(i)];
+    }
+
+    /**
+     * @return address of the device that sent the i-th beacon, see DeviceTable.parseAddress
+     */
+    public long getAddress(int i) {
+        return address[index(i)];
+    }
+
+    public int getRssi(int i) {
+        return rssi[index(i)];
+    }
+
+    /**
+     * @return manufacturer specific data n°76 of the i-th beacon. Owned by the batch, don't keep it
+     */
+    public byte[] getData(int i) {
+        return data[index(i)];
+    }
+
+    /**
+     * @return number of beacons that were overwritten because the batch was full, since it was created
+     */
+    public long getOverwritten() {
+        return overwritten;
+    }
+
+    public void clear() {
+        first = 0;
+        count = 0;
+    }
+
+    private int index(int i) {
+        if (i < 0 || i >= count) throw new IndexOutOfBoundsException("Beacon " + i + " of " + count);
+        return (first + i) % timestamp.length;
+    }
+}
@@ -0,0 +1,77 @@
+package com.dosse.airpods;
+
+/**
+ * Decodes the manufacturer specific data field n°76 of a beacon coming from a pair of AirPods.
+ * <p>
+ * The bytes are read directly with masks and shifts and the result is written into a Result object supplied by the caller, so decoding a beacon doesn't allocate anything.
+ * This is important because with the scanner in low latency mode we receive a LOT of beacons, especially in crowded places.
+ * <p>
+ * Layout of the 27 bytes (same as the reverse engineering notes in UPods RE.md, without the 4C 00 company id):
+ * - Byte 0: type of message, 07 is proximity pairing
+ * - Byte 1: length of the rest of the message, 19 (25 bytes)
+ * - Byte 2: prefix, always 01 for pods that are paired to a device
+ * - Byte 3 and 4: model, see PodsModel
+ * - Byte 5: bit 5 (0x20) is the flip bit, 0 means the pods are flipped
+ * - The levels and charging flags, where they are depends on the model, see PodsModel
+ */
+public final class BeaconDecoder {
+    public static final int DATA_LENGTH = 27;
+    public static final int DISCONNECTED = 255;
+
+    public static final int TYPE_PROXIMITY_PAIRING = 0x07, PAYLOAD_LENGTH = 0x19, PREFIX_PAIRED = 0x01;
+
+    private static final int TYPE_BYTE = 0, LENGTH_BYTE = 1, PREFIX_BYTE = 2;
+
+    /**
+     * Reusable holder for the decoded status. Create one and pass it to decode for every beacon.
+     */
+    public static final class Result {
+        public int leftStatus = DISCONNECTED, rightStatus = DISCONNECTED, caseStatus = DISCONNECTED;
+        public boolean chargeL = false, chargeR = false, chargeCase = false;
+        public boolean flipped = false;
+        public int model = PodStatus.MODEL_AIRPODS_NORMAL; //one of PodStatus.MODEL_*
+    }
+
+    private BeaconDecoder() {
+    }
+
+    /**
+     * Fills the data and mask for a scan filter on the manufacturer data, so the BT controller only wakes us up for beacons that can be decoded.
+     * Type, length and prefix are matched, everything else is status that changes all the time.
+     *
+     * @param data array of DATA_LENGTH bytes, the values to match
+     * @param mask array of DATA_LENGTH bytes, which bits of data must match
+     */
+    public static void getFilter(byte[] data, byte[] mask) {
+        for (int i = 0; i < DATA_LENGTH; i++) {
+            data[i] = 0;
+            mask[i] = 0;
+        }
+        data[TYPE_BYTE] = TYPE_PROXIMITY_PAIRING;
+        data[LENGTH_BYTE] = PAYLOAD_LENGTH;
+        data[PREFIX_BYTE] = PREFIX_PAIRED;
+        mask[TYPE_BYTE] = (byte) 0xFF;
+        mask[LENGTH_BYTE] = (byte) 0xFF;
+        mask[PREFIX_BYTE] = (byte) 0xFF;
+    }
+
+    /**
+     * @return true if the beacon would pass the filter from getFilter. The controller does this for us, this is for implementations without hardware filtering
+     */
+    public static boolean matchesFilter(byte[] data) {
+        return data != null && data.length >= DATA_LENGTH && data[TYPE_BYTE] == TYPE_PROXIMITY_PAIRING && data[LENGTH_BYTE] == PAYLOAD_LENGTH && data[PREFIX_BYTE] == PREFIX_PAIRED;
+    }
+
+    /**
+     * Decodes a beacon
+     *
+     * @param data manufacturer specific data n°76
+     * @param out  where the decoded status will be written
+     * @return true if the data was decoded, false if it doesn't look like an AirPods beacon (out is left untouched)
+     */
+    public static boolean decode(byte[] data, Result out) {
+        if (data == null || data.length != DATA_LENGTH) return false;
+        PodsModel.forBeacon(data).decode(data, out);
+        return true;
+    }
+}
@@ -0,0 +1,206 @@
+package com.dosse.airpods;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records raw AirPods beacons to a compact binary log, so they can be studied and replayed on a PC with BeaconLogReader.
+ * <p>
+ * The file starts with a 16 bytes header (magic, version, record size, reserved), followed by fixed size records of 48 bytes, little endian:
+ * - 8 bytes: timestamp (elapsed realtime, ns)
+ * - 8 bytes: address of the device, packed like DeviceTable.parseAddress
+ * - 1 byte: rssi
+ * - 27 bytes: manufacturer specific data n°76
+ * - 4 bytes: reserved
+ * <p>
+ * append copies the beacon into an in-memory ring and returns immediately, a background thread writes the ring to disk FLUSH_INTERVAL_MS after the first beacon it hasn't written, or when it's half full. While no beacons arrive it sleeps.
+ * If the ring is full, beacons are dropped rather than blocking the scanner.
+ * When a file reaches maxRecordsPerFile records it's rotated: name becomes name.1, name.1 becomes name.2, and so on up to maxFiles.
+ */
+public final class BeaconLog implements Closeable {
+    public static final int MAGIC = 0x4C43504F; //"OPCL"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 16, RECORD_SIZE = 48;
+
+    private static final int RING_RECORDS = 1024;
+    private static final long FLUSH_INTERVAL_MS = 5000;
+
+    private final File dir;
+    private final String name;
+    private final int maxRecordsPerFile, maxFiles;
+
+    private final byte[] ring = new byte[RING_RECORDS * RECORD_SIZE];
+    private final ByteBuffer ringBuffer = ByteBuffer.wrap(ring).order(ByteOrder.LITTLE_ENDIAN);
+    private int ringHead = 0, ringCount = 0;
+    private long dropped = 0, written = 0;
+    private boolean running = true;
+
+    private final Thread writer;
+    private FileChannel channel = null;
+    private int recordsInFile = 0;
+
+    /**
+     * Starts recording
+     *
+     * @param dir               where the log files go
+     * @param name              name of the current log file
+     * @param maxRecordsPerFile the file is rotated after this many records
+     * @param maxFiles          total number of files to keep, including the current one
+     */
+    public BeaconLog(File dir, String name, int maxRecordsPerFile, int maxFiles) {
+        this.dir = dir;
+        this.name = name;
+        this.maxRecordsPerFile = maxRecordsPerFile;
+        this.maxFiles = maxFiles;
+        writer = new Thread("BeaconLog") {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        };
+        writer.setPriority(Thread.MIN_PRIORITY);
+        writer.start();
+    }
+
+    /**
+     * Adds a beacon to the log. Never blocks on I/O
+     *
+     * @return false if the beacon was dropped because the writer is lagging behind
+     */
+    public synchronized boolean append(long timestampNs, long address, int rssi, byte[] data) {
+        if (!running || data == null || data.length != BeaconDecoder.DATA_LENGTH) return false;
+        if (ringCount == RING_RECORDS) {
+            dropped++;
+            return false;
+        }
+        int pos = ((ringHead + ringCount) % RING_RECORDS) * RECORD_SIZE;
+        ringBuffer.putLong(pos, timestampNs);
+        ringBuffer.putLong(pos + 8, address);
+        ring[pos + 16] = (byte) rssi;
+        System.arraycopy(data, 0, ring, pos + 17, BeaconDecoder.DATA_LENGTH);
+        ringBuffer.putInt(pos + 44, 0);
+        ringCount++;
+        if (ringCount == 1 || ringCount == RING_RECORDS / 2) notifyAll(); //the writer starts waiting FLUSH_INTERVAL_MS, or writes now
+        return true;
+    }
+
+    /**
+     * @return number of beacons that were dropped because the ring was full
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return number of beacons written to disk
+     */
+    public synchronized long getWritten() {
+        return written;
+    }
+
+    /**
+     * Writes what's left in the ring and stops recording
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+        }
+    }
+
+    private void writeLoop() {
+        ByteBuffer out = ByteBuffer.allocateDirect(ring.length);
+        for (; ; ) {
+            boolean stop;
+            synchronized (this) {
+                try {
+                    while (running && ringCount == 0) wait(); //nothing to write, sleep until append or close
+                    if (running && ringCount < RING_RECORDS / 2) wait(FLUSH_INTERVAL_MS); //let more beacons arrive, unless the ring is getting full
+                } catch (InterruptedException e) {
+                }
+                out.clear();
+                int n = ringCount;
+                int first = Math.min(n, RING_RECORDS - ringHead); //the records may wrap around the end of the ring
+                out.put(ring, ringHead * RECORD_SIZE, first * RECORD_SIZE);
+                out.put(ring, 0, (n - first) * RECORD_SIZE);
+                ringHead = (ringHead + n) % RING_RECORDS;
+                ringCount = 0;
+                stop = !running;
+            }
+            out.flip();
+            try {
+                write(out);
+            } catch (Throwable t) {
+                synchronized (this) {
+                    dropped += out.remaining() / RECORD_SIZE;
+                }
+                closeChannel();
+            }
+            if (stop) break;
+        }
+        closeChannel();
+    }
+
+    private void write(ByteBuffer out) throws IOException {
+        while (out.hasRemaining()) {
+            if (channel == null || recordsInFile >= maxRecordsPerFile) open();
+            int n = Math.min(out.remaining() / RECORD_SIZE, maxRecordsPerFile - recordsInFile);
+            int limit = out.limit();
+            out.limit(out.position() + n * RECORD_SIZE);
+            while (out.hasRemaining()) channel.write(out);
+            out.limit(limit);
+            recordsInFile += n;
+            synchronized (this) {
+                written += n;
+            }
+        }
+    }
+
+    private void open() throws IOException {
+        File f = new File(dir, name);
+        if (channel != null) {
+            closeChannel();
+            rotate();
+        } else if (f.exists() && f.length() >= HEADER_SIZE + (long) maxRecordsPerFile * RECORD_SIZE) {
+            rotate();
+        }
+        channel = new RandomAccessFile(f, "rw").getChannel();
+        long size = channel.size();
+        if (size < HEADER_SIZE) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putInt(0).flip();
+            channel.truncate(0);
+            channel.write(header, 0);
+            size = HEADER_SIZE;
+        }
+        size -= (size - HEADER_SIZE) % RECORD_SIZE; //drop a partial record, if the app was killed while writing
+        channel.truncate(size);
+        channel.position(size);
+        recordsInFile = (int) ((size - HEADER_SIZE) / RECORD_SIZE);
+    }
+
+    private void rotate() {
+        new File(dir, name + "." + (maxFiles - 1)).delete();
+        for (int i = maxFiles - 2; i >= 1; i--) new File(dir, name + "." + i).renameTo(new File(dir, name + "." + (i + 1)));
+        if (maxFiles > 1) new File(dir, name).renameTo(new File(dir, name + ".1"));
+        else new File(dir, name).delete();
+    }
+
+    private void closeChannel() {
+        try {
+            if (channel != null) channel.close();
+        } catch (Throwable t) {
+        }
+        channel = null;
+    }
+}
@@ -0,0 +1,94 @@
+package com.dosse.airpods;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a log written by BeaconLog. The file is memory mapped and records are read in place, so replaying a log is as fast as the pipeline itself.
+ * <p>
+ * Not thread safe.
+ */
+public final class BeaconLogReader implements Closeable {
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int records;
+
+    /**
+     * @throws IOException if the file can't be read or is not a beacon log
+     */
+    public BeaconLogReader(File f) throws IOException {
+        file = new RandomAccessFile(f, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            if (size < BeaconLog.HEADER_SIZE || size > Integer.MAX_VALUE) throw new IOException("Invalid size: " + size);
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt(0) != BeaconLog.MAGIC) throw new IOException("Not a beacon log");
+            if (buffer.getInt(4) != BeaconLog.VERSION) throw new IOException("Unsupported version: " + buffer.getInt(4));
+            if (buffer.getInt(8) != BeaconLog.RECORD_SIZE) throw new IOException("Unsupported record size: " + buffer.getInt(8));
+            records = (int) ((size - BeaconLog.HEADER_SIZE) / BeaconLog.RECORD_SIZE); //a partial record at the end is ignored
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    public int size() {
+        return records;
+    }
+
+    public long getTimestamp(int i) {
+        return buffer.getLong(offset(i));
+    }
+
+    public long getAddress(int i) {
+        return buffer.getLong(offset(i) + 8);
+    }
+
+    public int getRssi(int i) {
+        return buffer.get(offset(i) + 16);
+    }
+
+    /**
+     * Copies the manufacturer data of a record
+     *
+     * @param out array of at least BeaconDecoder.DATA_LENGTH bytes
+     */
+    public void getData(int i, byte[] out) {
+        int pos = offset(i) + 17;
+        for (int j = 0; j < BeaconDecoder.DATA_LENGTH; j++) out[j] = buffer.get(pos + j);
+    }
+
+    /**
+     * Feeds all the records to a pipeline and publishes the results, exactly like PodsService does with live beacons. The current time is the timestamp of each record.
+     *
+     * @return the number of times the status changed
+     */
+    public int replay(BeaconPipeline pipeline, PodStatusHolder status) {
+        byte[] data = new byte[BeaconDecoder.DATA_LENGTH];
+        int changes = 0;
+        for (int i = 0; i < records; i++) {
+            long ts = getTimestamp(i);
+            getData(i, data);
+            if (!pipeline.onBeacon(ts, ts, getRssi(i), getAddress(i), data)) continue;
+            if (status.publish(pipeline.getResult(), ts / 1000000)) changes++;
+        }
+        return changes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private int offset(int i) {
+        if (i < 0 || i >= records) throw new IndexOutOfBoundsException("Record " + i + " of " + records);
+        return BeaconLog.HEADER_SIZE + i * BeaconLog.RECORD_SIZE;
+    }
+}
@@ -0,0 +1,134 @@
+package com.dosse.airpods;
+
+/**
+ * What happens to a beacon between the scanner callback and the status update:
+ * - Check that the manufacturer data looks like it comes from a pair of AirPods
+ * - Record it in the table of nearby devices, which picks the device that's most likely to be ours. If the device sent the same payload very recently, it's a duplicate: only its last seen time and rssi are updated, see DeviceTable.onBeacon
+ * - Decode the last beacon of that device, unless it's the one we decoded last time
+ * <p>
+ * This class doesn't depend on Android, so the same code can be benchmarked and replayed on a PC.
+ * <p>
+ * Not thread safe.
+ */
+public final class BeaconPipeline {
+    private final DeviceTable devices;
+    private final BeaconDecoder.Result result = new BeaconDecoder.Result();
+    private long resultKey = DeviceTable.NO_ADDRESS; //device whose last beacon is in result
+    private Metrics metrics = null;
+
+    /**
+     * A pipeline that decodes every beacon, even duplicates
+     *
+     * @param maxDevices     maximum number of devices to keep track of
+     * @param deviceMaxAgeNs devices that haven't sent a beacon for this long are forgotten
+     */
+    public BeaconPipeline(int maxDevices, long deviceMaxAgeNs) {
+        this(maxDevices, deviceMaxAgeNs, 0);
+    }
+
+    /**
+     * @param maxDevices        maximum number of devices to keep track of
+     * @param deviceMaxAgeNs    devices that haven't sent a beacon for this long are forgotten
+     * @param duplicateWindowNs identical beacons from a device are only decoded once in this time, 0 to decode all of them
+     */
+    public BeaconPipeline(int maxDevices, long deviceMaxAgeNs, long duplicateWindowNs) {
+        devices = new DeviceTable(maxDevices, deviceMaxAgeNs);
+        devices.setDuplicateWindow(duplicateWindowNs);
+    }
+
+    /**
+     * Processes a beacon
+     *
+     * @param timestampNs when the beacon was received (elapsed realtime)
+     * @param nowNs       current time (elapsed realtime)
+     * @param rssi        signal strength
+     * @param address     (random) address of the device that sent the beacon, see DeviceTable.parseAddress
+     * @param data        manufacturer specific data n°76
+     * @return true if getResult() has the status of the selected device, false if the beacon was rejected
+     */
+    public boolean onBeacon(long timestampNs, long nowNs, int rssi, long address, byte[] data) {
+        if (data == null || data.length != BeaconDecoder.DATA_LENGTH) {
+            if (metrics != null) metrics.increment(Metrics.BEACONS_REJECTED_LENGTH);
+            return false;
+        }
+        long evictions = devices.getEvictions();
+        int e = devices.onBeacon(address, timestampNs, rssi, data);
+        if (e == -1) {
+            if (metrics != null) metrics.increment(Metrics.BEACONS_REJECTED_DECODE);
+            return false;
+        }
+        boolean duplicate = devices.isDuplicate();
+        if (metrics != null) {
+            if (duplicate) metrics.increment(Metrics.BEACONS_DUPLICATE);
+            metrics.add(Metrics.DEVICES_EVICTED, devices.getEvictions() - evictions);
+        }
+        expire(nowNs); //only looks at the oldest device, the devices that go away while no beacons arrive are expired by whoever calls getNextExpiry
+        int selected = devices.getSelected();
+        if (selected == -1) return false;
+        if (metrics != null && selected == e) metrics.increment(Metrics.BEACONS_SELECTED);
+        //the last beacon of the selected device only changes with a beacon from it that is not a duplicate, if it's already in result there's nothing to decode
+        if (devices.getKey(selected) == resultKey && (selected != e || duplicate)) return true;
+        return decodeSelected(selected);
+    }
+
+    /**
+     * Decodes the last beacon of the selected device into result
+     */
+    private boolean decodeSelected(int selected) {
+        if (!BeaconDecoder.decode(devices.getPayload(selected), result)) {
+            resultKey = DeviceTable.NO_ADDRESS;
+            return false;
+        }
+        resultKey = devices.getKey(selected);
+        return true;
+    }
+
+    /**
+     * Forgets the devices that haven't sent a beacon for deviceMaxAgeNs
+     *
+     * @param nowNs current time (elapsed realtime)
+     * @return number of devices removed
+     */
+    public int expire(long nowNs) {
+        int expired = devices.expire(nowNs);
+        if (metrics != null && expired != 0) metrics.add(Metrics.DEVICES_EXPIRED, expired);
+        return expired;
+    }
+
+    /**
+     * @return when expire will have something to do (elapsed realtime, ns), or -1 if there are no devices
+     */
+    public long getNextExpiry() {
+        return devices.getNextExpiry();
+    }
+
+    /**
+     * @return the status decoded by the last successful call to onBeacon. The object is reused
+     */
+    public BeaconDecoder.Result getResult() {
+        return result;
+    }
+
+    /**
+     * @param metrics where rejected beacons and expired devices are counted. Can be null
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public DeviceTable getDevices() {
+        return devices;
+    }
+
+    /**
+     * @param connected whether our AirPods are connected, see DeviceTable.setConnected
+     */
+    public void setConnected(boolean connected) {
+        devices.setConnected(connected);
+    }
+
+    public void clear() {
+        devices.clear();
+        resultKey = DeviceTable.NO_ADDRESS;
+    }
+}
@@ -0,0 +1,88 @@
+package com.dosse.airpods;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Limits how often each client (other apps, identified by their uid) can read the status through StatusApi, with a token bucket per client.
+ * <p>
+ * A client can do burst calls at once, then one every 1000/perSecond ms. Reads never touch the radio, but a misbehaving app polling in a loop would still keep our binder threads busy.
+ * At most MAX_CLIENTS clients are remembered, the least recently seen ones are forgotten (and start again with a full bucket).
+ * <p>
+ * It takes the uid and the time as arguments instead of asking Binder and SystemClock, so ClientApiTest can play many clients with a fake clock.
+ * tryAcquire holds the limiter's lock, the binder threads of all the clients share the same table.
+ */
+public final class ClientRateLimiter {
+    private static final int MAX_CLIENTS = 256;
+
+    private static final class Bucket {
+        double tokens;
+        long last;
+    }
+
+    private final int burst;
+    private final double perMs;
+    private final Map<Integer, Bucket> buckets = new LinkedHashMap<Integer, Bucket>(MAX_CLIENTS * 2, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Bucket> eldest) {
+            return size() > MAX_CLIENTS;
+        }
+    };
+    private long allowed = 0, rejected = 0;
+
+    /**
+     * @param burst     calls a client can make at once
+     * @param perSecond calls per second a client can make after that
+     */
+    public ClientRateLimiter(int burst, double perSecond) {
+        this.burst = burst;
+        perMs = perSecond / 1000;
+    }
+
+    /**
+     * @param uid client
+     * @param now current time in ms, from a monotonic clock
+     * @return true if the client can make a call now
+     */
+    public synchronized boolean tryAcquire(int uid, long now) {
+        Bucket b = buckets.get(uid);
+        if (b == null) {
+            b = new Bucket();
+            b.tokens = burst;
+            b.last = now;
+            buckets.put(uid, b);
+        }
+        if (now > b.last) { //binder threads can call with slightly out of order times
+            b.tokens = Math.min(burst, b.tokens + (now - b.last) * perMs);
+            b.last = now;
+        }
+        if (b.tokens < 1) {
+            rejected++;
+            return false;
+        }
+        b.tokens--;
+        allowed++;
+        return true;
+    }
+
+    /**
+     * @return number of calls that were allowed
+     */
+    public synchronized long getAllowed() {
+        return allowed;
+    }
+
+    /**
+     * @return number of calls that were rejected
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * @return number of clients we remember
+     */
+    public synchronized int size() {
+        return buckets.size();
+    }
+}
@@ -0,0 +1,95 @@
+package com.dosse.airpods;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.ParcelUuid;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Tells whether a bluetooth device is a pair of AirPods, by looking for the AirPods service UUIDs.
+ * <p>
+ * getUuids is a binder call, and the BroadcastReceiver asks about the same headset for every event it gets (A2DP playing state, vendor events, etc.), so the answer is cached by address.
+ * The cache is invalidated for a device when its UUIDs may have changed: when it's bonded or unbonded, renamed, or when a new UUID fetch completes. See invalidate.
+ * Devices that have no UUIDs yet are not cached, the UUIDs are usually fetched later.
+ * <p>
+ * The cache holds at most MAX_DEVICES devices, the least recently used ones are forgotten. Thread safe.
+ */
+public class DeviceClassifier {
+    private static final int MAX_DEVICES = 32;
+    private static final ParcelUuid[] AIRPODS_UUIDS = {
+            ParcelUuid.fromString("74ec2172-0bad-4d01-8f77-997b2be0722a"),
+            ParcelUuid.fromString("2a72e02b-7b99-778f-014d-ad0b7221ec74")
+    };
+
+    private final Map<String, Boolean> cache = new LinkedHashMap<String, Boolean>(MAX_DEVICES * 2, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_DEVICES;
+        }
+    };
+    private long hits = 0, misses = 0, invalidations = 0;
+
+    /**
+     * @return true if the device has one of the AirPods UUIDs
+     */
+    public boolean isAirPods(BluetoothDevice device) {
+        String address = device.getAddress();
+        long generation;
+        synchronized (this) {
+            generation = invalidations;
+            Boolean cached = address == null ? null : cache.get(address);
+            if (cached != null) {
+                hits++;
+                return cached;
+            }
+            misses++;
+        }
+        ParcelUuid[] uuids = device.getUuids(); //binder call, not while holding the lock
+        if (uuids == null) return false;
+        boolean airpods = false;
+        for (ParcelUuid u : uuids) {
+            for (ParcelUuid v : AIRPODS_UUIDS) {
+                if (v.equals(u)) airpods = true;
+            }
+        }
+        if (address != null) {
+            synchronized (this) {
+                if (generation == invalidations) cache.put(address, airpods); //otherwise it may have changed while we were reading it
+            }
+        }
+        return airpods;
+    }
+
+    /**
+     * Forgets what we know about a device, called for BOND_STATE_CHANGED, NAME_CHANGED and UUID
+     */
+    public synchronized void invalidate(BluetoothDevice device) {
+        String address = device.getAddress();
+        if (address != null) cache.remove(address);
+        invalidations++;
+    }
+
+    public synchronized void clear() {
+        cache.clear();
+        invalidations++;
+    }
+
+    /**
+     * @return number of times the answer was in the cache
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of times getUuids was called
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized int size() {
+        return cache.size();
+    }
+}
@@ -0,0 +1,395 @@
+package com.dosse.airpods;
+
+import java.util.Arrays;
+
+/**
+ * Keeps track of every pair of AirPods that is sending beacons nearby, and picks which one is ours.
+ * <p>
+ * Devices are identified by their (random) bluetooth address, packed into a long. For each device we keep:
+ * - the last beacon and its decoded status. The pods repeat the same beacon several times per second, so a beacon that is identical to the last one is only compared, not decoded again (see onBeacon)
+ * - rssi statistics: last, max, mean
+ * - when it was last seen
+ * <p>
+ * Internally this is an open addressing hash map with linear probing, keyed by the address, that points to a fixed pool of entries.
+ * The entries are also in a LRU list sorted by last seen time, so expiring devices that went away and evicting the oldest device when the table is full are O(1).
+ * The capacity is a hard cap, the table never grows no matter how many devices are around.
+ * <p>
+ * Selection: the selected device is the one with the best score from ProximityEstimator (smoothed rssi, plus a bonus for the beacons seen while our pods are connected).
+ * It's updated when a beacon arrives, by comparing the device that sent it with the selected one, so it's O(1). To avoid jumping back and forth between two devices that are about as close, another device is only selected if it sent at least MIN_BEACONS_TO_SWITCH beacons and its score is better by more than SWITCH_HYSTERESIS_DB.
+ * The whole table is only looked at when the selected device goes away.
+ * <p>
+ * Not thread safe.
+ */
+public final class DeviceTable {
+    public static final long NO_ADDRESS = -1;
+
+    private static final double SWITCH_HYSTERESIS_DB = 4;
+    private static final int MIN_BEACONS_TO_SWITCH = 3;
+
+    private final int capacity;
+    private final long maxAgeNs;
+
+    //hash table, contains entry ids or -1
+    private final int[] table;
+    private final int mask;
+
+    //entries
+    private final long[] keys, lastSeen, decoded, stored, rssiSum; //stored: when the payload was last decoded
+    private final int[] rssiLast, rssiMax, count;
+    private final byte[][] payloads;
+    private final int[] prev, next; //LRU list, head is the most recently seen
+    private int head = -1, tail = -1, size = 0;
+    private final int[] free;
+    private int freeCount;
+
+    private int selected = -1;
+    private long evictions = 0, switches = 0, duplicates = 0;
+    private long duplicateWindowNs = 0;
+    private boolean duplicate = false;
+    private final ProximityEstimator estimator;
+
+    private final BeaconDecoder.Result scratch = new BeaconDecoder.Result();
+
+    /**
+     * @param capacity maximum number of devices to keep track of
+     * @param maxAgeNs devices that haven't been seen for this long are removed
+     */
+    public DeviceTable(int capacity, long maxAgeNs) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+        this.capacity = capacity;
+        this.maxAgeNs = maxAgeNs;
+        int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1; //at most half full
+        table = new int[tableSize];
+        mask = tableSize - 1;
+        for (int i = 0; i < tableSize; i++) table[i] = -1;
+        keys = new long[capacity];
+        lastSeen = new long[capacity];
+        decoded = new long[capacity];
+        stored = new long[capacity];
+        rssiSum = new long[capacity];
+        rssiLast = new int[capacity];
+        rssiMax = new int[capacity];
+        count = new int[capacity];
+        payloads = new byte[capacity][BeaconDecoder.DATA_LENGTH];
+        prev = new int[capacity];
+        next = new int[capacity];
+        free = new int[capacity];
+        for (int i = 0; i < capacity; i++) free[i] = capacity - 1 - i;
+        freeCount = capacity;
+        estimator = new ProximityEstimator(capacity);
+    }
+
+    /**
+     * Records a beacon. If the device is new and the table is full, the device that wasn't seen for the longest time is evicted, if it was the selected one the strongest of the others is selected.
+     * If the payload is the same as the last one of this device, and that one was decoded less than the duplicate window ago, it's a duplicate: only the last seen time and the rssi statistics are updated, see isDuplicate
+     *
+     * @param key         address of the device, see parseAddress
+     * @param timestampNs when the beacon was received (elapsed realtime)
+     * @param rssi        signal strength
+     * @param payload     manufacturer specific data n°76, it is copied
+     * @return the entry of the device, or -1 if the payload can't be decoded
+     */
+    public int onBeacon(long key, long timestampNs, int rssi, byte[] payload) {
+        int e = find(key);
+        duplicate = e != -1 && timestampNs - stored[e] < duplicateWindowNs && timestampNs >= stored[e] && Arrays.equals(payload, payloads[e]);
+        if (duplicate) {
+            duplicates++;
+            update(e, timestampNs, rssi);
+            select(e);
+            return e;
+        }
+        if (!BeaconDecoder.decode(payload, scratch)) return -1;
+        if (e == -1) {
+            if (freeCount == 0) {
+                boolean lostSelected = tail == selected;
+                remove(tail);
+                evictions++;
+                //pick the best of the others before the new device is linked, it still has to beat that one in select like any other device
+                if (lostSelected) selectStrongest();
+            }
+            e = free[--freeCount];
+            keys[e] = key;
+            count[e] = 0;
+            rssiSum[e] = 0;
+            rssiMax[e] = Integer.MIN_VALUE;
+            insert(e);
+            linkFirst(e);
+            size++;
+            estimator.reset(e, timestampNs, rssi);
+            record(e, timestampNs, rssi);
+        } else {
+            update(e, timestampNs, rssi);
+        }
+        System.arraycopy(payload, 0, payloads[e], 0, BeaconDecoder.DATA_LENGTH);
+        decoded[e] = PodStatus.pack(scratch.leftStatus, scratch.rightStatus, scratch.caseStatus, PodStatus.DISCONNECTED, scratch.chargeL, scratch.chargeR, scratch.chargeCase, scratch.model);
+        stored[e] = timestampNs;
+        select(e);
+        return e;
+    }
+
+    /**
+     * @return true if the last beacon given to onBeacon was a duplicate: its payload wasn't decoded or copied, getPayload and getDecoded are the same as before
+     */
+    public boolean isDuplicate() {
+        return duplicate;
+    }
+
+    /**
+     * @param windowNs a beacon that is identical to the last one of the device is a duplicate if that one was decoded less than this ago. 0 (the default) to decode all of them
+     */
+    public void setDuplicateWindow(long windowNs) {
+        duplicateWindowNs = windowNs;
+    }
+
+    /**
+     * @return how many beacons were duplicates
+     */
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    private void update(int e, long timestampNs, int rssi) {
+        if (head != e) {
+            unlink(e);
+            linkFirst(e);
+        }
+        estimator.update(e, timestampNs, rssi);
+        record(e, timestampNs, rssi);
+    }
+
+    private void record(int e, long timestampNs, int rssi) {
+        lastSeen[e] = timestampNs;
+        rssiLast[e] = rssi;
+        if (rssi > rssiMax[e]) rssiMax[e] = rssi;
+        rssiSum[e] += rssi;
+        count[e]++;
+    }
+
+    private void select(int e) {
+        if (selected == -1) {
+            selected = e;
+        } else if (selected != e && count[e] >= MIN_BEACONS_TO_SWITCH && estimator.getScore(e) > estimator.getScore(selected) + SWITCH_HYSTERESIS_DB) {
+            selected = e;
+            switches++;
+        }
+    }
+
+    /**
+     * Removes the devices that haven't been seen for more than maxAgeNs
+     *
+     * @param nowNs current time (elapsed realtime)
+     * @return number of devices removed
+     */
+    public int expire(long nowNs) {
+        boolean lostSelected = false;
+        int removed = 0;
+        while (tail != -1 && nowNs - lastSeen[tail] > maxAgeNs) {
+            if (tail == selected) lostSelected = true;
+            remove(tail);
+            removed++;
+        }
+        if (lostSelected) selectStrongest();
+        return removed;
+    }
+
+    /**
+     * @return when the device we haven't heard from for the longest time will be removed by expire (elapsed realtime, ns), or -1 if there are no devices
+     */
+    public long getNextExpiry() {
+        return tail == -1 ? -1 : lastSeen[tail] + maxAgeNs;
+    }
+
+    /**
+     * @return the entry of the selected device, or -1 if there are no devices
+     */
+    public int getSelected() {
+        return selected;
+    }
+
+    public long getKey(int e) {
+        return keys[e];
+    }
+
+    public long getLastSeen(int e) {
+        return lastSeen[e];
+    }
+
+    public int getRssiLast(int e) {
+        return rssiLast[e];
+    }
+
+    public int getRssiMax(int e) {
+        return rssiMax[e];
+    }
+
+    public int getRssiMean(int e) {
+        return (int) (rssiSum[e] / count[e]);
+    }
+
+    /**
+     * @return the rssi estimated by ProximityEstimator, less noisy than the last one
+     */
+    public double getRssiSmoothed(int e) {
+        return estimator.getEstimate(e);
+    }
+
+    /**
+     * @return the score used to select a device, higher is closer
+     */
+    public double getScore(int e) {
+        return estimator.getScore(e);
+    }
+
+    /**
+     * Tells the table whether our AirPods are connected. Beacons received while they're connected raise the score of the device that sent them, the bonus is lost when they disconnect
+     */
+    public void setConnected(boolean connected) {
+        if (estimator.setConnected(connected) && !connected) {
+            for (int e = head; e != -1; e = next[e]) estimator.clearBonus(e);
+        }
+    }
+
+    public int getBeaconCount(int e) {
+        return count[e];
+    }
+
+    /**
+     * @return decoded status of the last beacon of this device, packed like PodStatus (the last case status is not tracked here)
+     */
+    public long getDecoded(int e) {
+        return decoded[e];
+    }
+
+    /**
+     * @return the last beacon of this device. The array is owned by the table and is overwritten when the entry is reused, don't keep it
+     */
+    public byte[] getPayload(int e) {
+        return payloads[e];
+    }
+
+    /**
+     * @return the entry of the device with this address, or -1 if it's not in the table
+     */
+    public int find(long key) {
+        for (int i = hash(key); ; i = (i + 1) & mask) {
+            int e = table[i];
+            if (e == -1) return -1;
+            if (keys[e] == key) return e;
+        }
+    }
+
+    /**
+     * @return the most recently seen device, use nextOlder to go through all of them
+     */
+    public int mostRecent() {
+        return head;
+    }
+
+    public int nextOlder(int e) {
+        return next[e];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return how many devices were thrown out because the table was full
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return how many times the selected device changed because another one looked closer
+     */
+    public long getSwitches() {
+        return switches;
+    }
+
+    public void clear() {
+        while (tail != -1) remove(tail);
+        selected = -1;
+    }
+
+    /**
+     * Packs a bluetooth address like 12:34:56:78:9A:BC into a long, without allocating anything
+     *
+     * @return the address, or NO_ADDRESS if it's not valid
+     */
+    public static long parseAddress(String address) {
+        if (address == null || address.length() != 17) return NO_ADDRESS;
+        long ret = 0;
+        for (int i = 0; i < 17; i++) {
+            char c = address.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') return NO_ADDRESS;
+                continue;
+            }
+            int v = Character.digit(c, 16);
+            if (v == -1) return NO_ADDRESS;
+            ret = (ret << 4) | v;
+        }
+        return ret;
+    }
+
+    private void selectStrongest() {
+        selected = -1;
+        for (int e = head; e != -1; e = next[e]) {
+            if (selected == -1 || estimator.getScore(e) > estimator.getScore(selected)) selected = e;
+        }
+    }
+
+    private int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & mask;
+    }
+
+    private void insert(int e) {
+        int i = hash(keys[e]);
+        while (table[i] != -1) i = (i + 1) & mask;
+        table[i] = e;
+    }
+
+    private void remove(int e) {
+        //find the slot, then backward shift deletion to keep the probe sequences intact
+        int i = hash(keys[e]);
+        while (table[i] != e) i = (i + 1) & mask;
+        int j = i;
+        for (; ; ) {
+            j = (j + 1) & mask;
+            int f = table[j];
+            if (f == -1) break;
+            int home = hash(keys[f]);
+            //move f back to i if its home slot is not in (i, j]
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                table[i] = f;
+                i = j;
+            }
+        }
+        table[i] = -1;
+        unlink(e);
+        free[freeCount++] = e;
+        size--;
+        if (e == selected) selected = -1;
+    }
+
+    private void linkFirst(int e) {
+        prev[e] = -1;
+        next[e] = head;
+        if (head != -1) prev[head] = e;
+        head = e;
+        if (tail == -1) tail = e;
+    }
+
+    private void unlink(int e) {
+        if (prev[e] != -1) next[prev[e]] = next[e];
+        else head = next[e];
+        if (next[e] != -1) prev[next[e]] = prev[e];
+        else tail = prev[e];
+    }
+}
@@ -0,0 +1,196 @@
+package com.dosse.airpods;
+
+/**
+ * Predicts how long until each pod and the case are empty (or full, while charging), from the levels in the beacons.
+ * <p>
+ * For each component we fit a line through level over time, with least squares, and the slope tells how fast it's going. The fit is updated in O(1) per sample from 5 running sums, no samples are kept.
+ * Old samples are forgotten gradually: the sums are multiplied by exp(-dt/WINDOW_MIN) before adding a new sample, so the fit follows roughly the last WINDOW_MIN minutes.
+ * A segment starts over when the charging state changes, or when the component disconnects, so charging and discharging are never mixed.
+ * <p>
+ * The beacons of clones are noisy and very repetitive (the same levels several times per second, sometimes a single wrong value), so:
+ * - at most one sample every SAMPLE_INTERVAL_MS is used, so repeated beacons don't weigh more than time
+ * - each sample is the median of the last 3 levels, which removes isolated wrong values
+ * - there's no prediction until the segment has MIN_SAMPLES samples over MIN_SPAN_MIN minutes, and the level went down (or up) by at least MIN_CHANGE
+ * <p>
+ * The predictions change when a sample is taken, not only when the levels change (genuine AirPods stay on the same level for half an hour). They're shown rounded to ROUND_MIN minutes, and getVersion only changes when a rounded prediction does,
+ * so the notification is only woken up when the times it shows would change, not for every sample.
+ * <p>
+ * It only sees times and levels, the caller passes the clock, so DrainPredictorTest feeds it hours of synthetic beacons in a few ms.
+ * Every method holds the predictor's lock: the scanner thread updates it, the NotificationThread reads the times.
+ */
+public final class DrainPredictor {
+    public static final int LEFT = 0, RIGHT = 1, CASE = 2;
+    public static final long UNKNOWN = -1;
+
+    private static final long SAMPLE_INTERVAL_MS = 30000;
+    private static final double WINDOW_MIN = 40;
+    private static final int MIN_SAMPLES = 6;
+    private static final double MIN_SPAN_MIN = 10;
+    private static final int MIN_CHANGE = 2; //levels of genuine AirPods are in steps of 10, but the sums don't care
+    private static final double MIN_SLOPE = 0.01; //%/min, slower than this there's no point in predicting anything
+    private static final long MAX_MINUTES = 24 * 60;
+    private static final long ROUND_MIN = 5; //the notification doesn't need to change every minute
+
+    private static final class Component {
+        boolean active = false, charging;
+        long shown = UNKNOWN; //rounded prediction when the version last changed
+        long segmentStart, lastSample;
+        int samples, prev1, prev2, first, min, max;
+        double lastT, sw, st, sy, stt, sty;
+
+        void reset(long now, boolean charging) {
+            active = true;
+            this.charging = charging;
+            segmentStart = now;
+            lastSample = Long.MIN_VALUE / 2;
+            samples = 0;
+            sw = st = sy = stt = sty = 0;
+        }
+
+        /**
+         * @return true if it was used as a sample
+         */
+        boolean add(long now, int level) {
+            if (now - lastSample < SAMPLE_INTERVAL_MS) return false;
+            lastSample = now;
+            int y = level;
+            if (samples >= 2) y = Math.max(Math.min(prev1, prev2), Math.min(Math.max(prev1, prev2), level)); //median of the last 3
+            prev2 = prev1;
+            prev1 = level;
+            double t = (now - segmentStart) / 60000.0;
+            if (samples > 0) {
+                double decay = Math.exp(-(t - lastT) / WINDOW_MIN);
+                sw *= decay;
+                st *= decay;
+                sy *= decay;
+                stt *= decay;
+                sty *= decay;
+            } else {
+                first = min = max = y;
+            }
+            sw += 1;
+            st += t;
+            sy += y;
+            stt += t * t;
+            sty += t * y;
+            lastT = t;
+            samples++;
+            if (y < min) min = y;
+            if (y > max) max = y;
+            return true;
+        }
+
+        long predict() {
+            if (!active || samples < MIN_SAMPLES || lastT < MIN_SPAN_MIN) return UNKNOWN;
+            if (charging ? max - first < MIN_CHANGE : first - min < MIN_CHANGE) return UNKNOWN;
+            double meanT = st / sw, meanY = sy / sw;
+            double varT = stt / sw - meanT * meanT;
+            if (varT <= 1e-9) return UNKNOWN;
+            double slope = (sty / sw - meanT * meanY) / varT; //%/min
+            double level = meanY + slope * (lastT - meanT); //fitted level now
+            double minutes;
+            if (charging) {
+                if (slope < MIN_SLOPE) return UNKNOWN;
+                minutes = (100 - level) / slope;
+            } else {
+                if (slope > -MIN_SLOPE) return UNKNOWN;
+                minutes = level / -slope;
+            }
+            return Math.max(0, Math.min(MAX_MINUTES, Math.round(minutes)));
+        }
+    }
+
+    private final Component[] components = {new Component(), new Component(), new Component()};
+    private long version = 0; //incremented every time a rounded prediction changes
+
+    /**
+     * Adds the levels of a status. Call it for every decoded beacon, or at least every SAMPLE_INTERVAL_MS while the pods are around
+     *
+     * @param now current time in ms
+     * @return true if a rounded prediction changed, see getVersion
+     */
+    public synchronized boolean update(long now, PodStatus s) {
+        boolean l = update(now, LEFT, s.getLeftStatus(), s.isChargingL());
+        boolean r = update(now, RIGHT, s.getRightStatus(), s.isChargingR());
+        boolean c = update(now, CASE, s.getCaseStatus(), s.isChargingCase());
+        return l || r || c;
+    }
+
+    /**
+     * Adds the level of a component
+     *
+     * @param now       current time in ms
+     * @param component LEFT, RIGHT or CASE
+     * @param level     0-100, or PodStatus.DISCONNECTED
+     * @return true if its rounded prediction changed, see getVersion
+     */
+    public synchronized boolean update(long now, int component, int level, boolean charging) {
+        Component c = components[component];
+        if (level == PodStatus.DISCONNECTED || level < 0 || level > 100) {
+            if (!c.active) return false;
+            c.active = false;
+            return updateShown(c);
+        }
+        if (!c.active || c.charging != charging) c.reset(now, charging);
+        if (!c.add(now, level)) return false;
+        return updateShown(c);
+    }
+
+    /**
+     * Rounds the prediction of a component and increments the version if it's not what was shown
+     *
+     * @return true if it changed
+     */
+    private boolean updateShown(Component c) {
+        long m = round(c.predict());
+        if (m == c.shown) return false;
+        c.shown = m;
+        version++;
+        return true;
+    }
+
+    private static long round(long minutes) {
+        return minutes == UNKNOWN ? UNKNOWN : (minutes + ROUND_MIN - 1) / ROUND_MIN * ROUND_MIN;
+    }
+
+    /**
+     * @return a number that changes every time getRoundedMinutes returns something else, at most once every SAMPLE_INTERVAL_MS per component while the pods are around
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * @param component LEFT, RIGHT or CASE
+     * @return minutes until the component is empty, or full if it's charging (see isCharging). UNKNOWN if we can't tell yet
+     */
+    public synchronized long getMinutes(int component) {
+        return components[component].predict();
+    }
+
+    /**
+     * @param component LEFT, RIGHT or CASE
+     * @return getMinutes rounded up to ROUND_MIN minutes, what the notification shows. UNKNOWN if we can't tell yet
+     */
+    public synchronized long getRoundedMinutes(int component) {
+        return components[component].shown;
+    }
+
+    /**
+     * @param component LEFT, RIGHT or CASE
+     * @return true if the current segment is charging, so getMinutes is the time until full
+     */
+    public synchronized boolean isCharging(int component) {
+        return components[component].charging;
+    }
+
+    /**
+     * Forgets everything, for instance when the pods disconnect
+     */
+    public synchronized void clear() {
+        for (Component c : components) {
+            c.active = false;
+            updateShown(c);
+        }
+    }
+}
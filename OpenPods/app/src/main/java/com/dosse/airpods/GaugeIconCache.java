@@ -0,0 +1,186 @@
+package com.dosse.airpods;
+
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.RectF;
+import android.util.SparseArray;
+
+/**
+ * Battery gauges of the notification: a ring that fills up with the level of a component, with a bolt in the middle while it's charging, or the initial of the component otherwise.
+ * <p>
+ * Each gauge is drawn into a bitmap the first time it's needed, and kept in an LRU cache with a fixed memory budget, so an update of the notification is a lookup, and RemoteViews get the same bitmap until the gauge actually changes.
+ * The key is (component, level bucket, charging, theme), packed into an int, so a lookup doesn't allocate. Levels are rounded down to 5%, AirPods only report 10% steps, clones 1%, but a ring can't show the difference.
+ * The theme is chosen by the caller, it's what the gauge is drawn on, not the night mode: the notification layouts have a white background in night mode too.
+ * The size of the bitmaps depends on the screen density: when it changes, all the gauges are thrown away, see setConfiguration.
+ * <p>
+ * Only a few gauges fit in the budget, so the least recently used one is found by looking at all of them, there's no list to keep in order.
+ * Evicted bitmaps are not recycled, a RemoteViews that was already built may still use them, the GC takes care of them.
+ * Meant to be used by the NotificationThread only, the counters can be read from any thread.
+ */
+public final class GaugeIconCache {
+    public static final int LEFT = 0, RIGHT = 1, CASE = 2; //same as DrainPredictor
+    public static final int THEME_LIGHT = 0, THEME_DARK = 1; //what the gauge is drawn on: the notification layouts have a white background
+    private static final int COMPONENTS = 3, BUCKET = 5, BUCKETS = 100 / BUCKET + 1;
+    private static final String[] INITIALS = {"L", "R", "C"};
+
+    private static final float SIZE_DP = 24, STROKE = 0.12f, TEXT = 0.42f; //stroke and text size are relative to the size of the gauge
+    private static final int LOW_LEVEL = 20; //at or below this, the ring is red
+    private static final int[] TRACK = {0xffdddddd, 0xff444444}, FOREGROUND = {0xff000000, 0xffffffff}; //per theme
+    private static final int COLOR_NORMAL = 0xff448aff, COLOR_LOW = 0xfff44336, COLOR_CHARGING = 0xff4caf50;
+
+    private static final class Entry {
+        final Bitmap bitmap;
+        final int bytes;
+        long lastUsed;
+
+        Entry(Bitmap bitmap) {
+            this.bitmap = bitmap;
+            bytes = bitmap.getByteCount();
+        }
+    }
+
+    private final SparseArray<Entry> cache = new SparseArray<>();
+    private final int maxBytes;
+    private long uses = 0; //clock for lastUsed
+    private int densityDpi = Configuration.DENSITY_DPI_UNDEFINED;
+    private volatile int bytes = 0, hits = 0, misses = 0, evictions = 0, invalidations = 0;
+
+    //reused for every gauge
+    private final Paint ring = new Paint(Paint.ANTI_ALIAS_FLAG), fill = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final RectF bounds = new RectF(0, 0, 0, 0);
+    private final Path bolt = new Path();
+
+    /**
+     * @param maxBytes memory budget, the least recently used gauges are dropped when the bitmaps take more than this
+     */
+    public GaugeIconCache(int maxBytes) {
+        this.maxBytes = maxBytes;
+        ring.setStyle(Paint.Style.STROKE);
+        ring.setStrokeCap(Paint.Cap.ROUND);
+        fill.setStyle(Paint.Style.FILL);
+        fill.setTextAlign(Paint.Align.CENTER);
+    }
+
+    /**
+     * Throws away all the gauges if the density changed since the last call. Call it before using the gauges, with the current configuration
+     *
+     * @return true if the gauges were thrown away, the ones that are displayed must be replaced
+     */
+    public boolean setConfiguration(Configuration c) {
+        if (c.densityDpi == densityDpi) return false;
+        boolean hadGauges = cache.size() > 0;
+        cache.clear();
+        bytes = 0;
+        densityDpi = c.densityDpi;
+        if (hadGauges) invalidations++;
+        return hadGauges;
+    }
+
+    /**
+     * @param component LEFT, RIGHT or CASE
+     * @param level     0-100, or PodStatus.DISCONNECTED
+     * @param charging  whether the component is charging
+     * @param theme     THEME_LIGHT or THEME_DARK
+     * @return the gauge, drawn now if it wasn't in the cache. Null if the component is disconnected
+     */
+    public Bitmap get(int component, int level, boolean charging, int theme) {
+        if (level < 0 || level > 100) return null;
+        int bucket = level / BUCKET;
+        int key = ((theme * 2 + (charging ? 1 : 0)) * COMPONENTS + component) * BUCKETS + bucket;
+        Entry e = cache.get(key);
+        if (e != null) {
+            hits++;
+        } else {
+            misses++;
+            e = new Entry(draw(component, bucket * BUCKET, charging, theme));
+            cache.put(key, e);
+            bytes += e.bytes;
+            trim(e);
+        }
+        e.lastUsed = ++uses;
+        return e.bitmap;
+    }
+
+    /**
+     * Drops the least recently used gauges until they fit in the budget. The one that was just drawn is kept, even if it doesn't fit alone
+     */
+    private void trim(Entry keep) {
+        while (bytes > maxBytes && cache.size() > 1) {
+            int oldest = -1;
+            for (int i = 0; i < cache.size(); i++) {
+                Entry e = cache.valueAt(i);
+                if (e != keep && (oldest == -1 || e.lastUsed < cache.valueAt(oldest).lastUsed)) oldest = i;
+            }
+            bytes -= cache.valueAt(oldest).bytes;
+            cache.removeAt(oldest);
+            evictions++;
+        }
+    }
+
+    private Bitmap draw(int component, int level, boolean charging, int theme) {
+        float density = (densityDpi == Configuration.DENSITY_DPI_UNDEFINED ? 160 : densityDpi) / 160f;
+        int size = Math.max(1, Math.round(SIZE_DP * density));
+        Bitmap b = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        Canvas c = new Canvas(b);
+        float stroke = size * STROKE, center = size / 2f;
+        bounds.set(stroke / 2, stroke / 2, size - stroke / 2, size - stroke / 2);
+        ring.setStrokeWidth(stroke);
+        ring.setColor(TRACK[theme]);
+        c.drawArc(bounds, 0, 360, false, ring);
+        if (level > 0) {
+            ring.setColor(charging ? COLOR_CHARGING : level <= LOW_LEVEL ? COLOR_LOW : COLOR_NORMAL);
+            c.drawArc(bounds, -90, 360f * level / 100, false, ring);
+        }
+        if (charging) {
+            float u = size / 24f; //the bolt is drawn on a 24x24 grid
+            bolt.reset();
+            bolt.moveTo(13 * u, 5 * u);
+            bolt.lineTo(7.5f * u, 13 * u);
+            bolt.lineTo(11.5f * u, 13 * u);
+            bolt.lineTo(10.5f * u, 19 * u);
+            bolt.lineTo(16.5f * u, 11 * u);
+            bolt.lineTo(12.5f * u, 11 * u);
+            bolt.close();
+            fill.setColor(COLOR_CHARGING);
+            c.drawPath(bolt, fill);
+        } else {
+            fill.setColor(FOREGROUND[theme]);
+            fill.setTextSize(size * TEXT);
+            c.drawText(INITIALS[component], center, center - (fill.descent() + fill.ascent()) / 2, fill);
+        }
+        return b;
+    }
+
+    /**
+     * @return memory used by the gauges, in bytes
+     */
+    public int getBytes() {
+        return bytes;
+    }
+
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    public int getHits() {
+        return hits;
+    }
+
+    public int getMisses() {
+        return misses;
+    }
+
+    public int getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return number of times all the gauges were thrown away because the configuration changed
+     */
+    public int getInvalidations() {
+        return invalidations;
+    }
+}
@@ -0,0 +1,89 @@
+package com.dosse.airpods;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+
+import java.util.List;
+
+/**
+ * PodsScanner that uses the BLE scanner of the device.
+ * <p>
+ * The same ScanCallback is used for every scan, otherwise stopScan doesn't recognize the scan and it keeps running.
+ * With a report delay, the controller batches the results and delivers them in a single onBatchScanResults, which becomes a single BeaconBatch.
+ */
+public class LeScanner extends BatchingScanner {
+    private final BluetoothAdapter btAdapter;
+    private final List<ScanFilter> filters;
+    private BluetoothLeScanner btScanner = null;
+
+    /**
+     * @param btAdapter the BT adapter
+     * @param filters   scan filters, they're applied by the controller so the app is not woken up for beacons we don't care about
+     * @param queueSize maximum number of beacons delivered to the listener in a single callback
+     * @param listener  receives the beacons, on the main thread
+     */
+    public LeScanner(BluetoothAdapter btAdapter, List<ScanFilter> filters, int queueSize, Listener listener) {
+        super(queueSize, listener);
+        this.btAdapter = btAdapter;
+        this.filters = filters;
+    }
+
+    private final ScanCallback callback = new ScanCallback() {
+        @Override
+        public void onBatchScanResults(List<ScanResult> scanResults) {
+            beginCallback();
+            for (ScanResult result : scanResults) offer(result);
+            endCallback();
+        }
+
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            beginCallback();
+            offer(result);
+            endCallback();
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            scanFailed(errorCode);
+        }
+    };
+
+    private void offer(ScanResult result) {
+        ScanRecord record = result.getScanRecord();
+        offer(result.getTimestampNanos(), DeviceTable.parseAddress(result.getDevice().getAddress()), result.getRssi(), record == null ? null : record.getManufacturerSpecificData(76));
+    }
+
+    @Override
+    public void startScan(int scanMode, long reportDelayMillis) throws Exception {
+        if (btAdapter == null) throw new Exception("No BT");
+        if (!btAdapter.isEnabled()) throw new Exception("BT Off");
+        btScanner = btAdapter.getBluetoothLeScanner();
+        if (btScanner == null) throw new Exception("No BLE scanner");
+        ScanSettings settings = new ScanSettings.Builder().setScanMode(scanMode).setReportDelay(reportDelayMillis).build();
+        btScanner.startScan(filters, settings, callback);
+    }
+
+    @Override
+    public void stopScan() {
+        try {
+            if (btScanner != null) btScanner.stopScan(callback);
+        } catch (Throwable t) { //throws if BT was turned off in the meantime, the scan is gone anyway
+        }
+        btScanner = null;
+    }
+
+    @Override
+    public boolean isBatchingSupported() {
+        try {
+            return btAdapter.isOffloadedScanBatchingSupported();
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.dosse.airpods;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and histograms that are always on, in release builds too, so we can see what the app is doing on a phone with a battery complaint: adb shell dumpsys activity service com.dosse.airpods.PodsService
+ * <p>
+ * Counters are a fixed set of atomic longs, indexed by the constants below, so counting is a single atomic add and nothing is allocated.
+ * Histograms have fixed power of 2 buckets. Errors are counted by type (class and message), only in the catch blocks, so that path can afford a lock.
+ * <p>
+ * Everything is cumulative since the process started, restarting the service doesn't reset it. Thread safe.
+ */
+public final class Metrics {
+    public static final int BEACONS_RECEIVED = 0, BEACONS_REJECTED_LENGTH = 1, BEACONS_REJECTED_FILTER = 2, BEACONS_REJECTED_DECODE = 3, BEACONS_SELECTED = 4, DEVICES_EXPIRED = 5, DEVICES_EVICTED = 6,
+            SCANNER_CALLBACKS = 7, SCANNER_STARTS = 8, SCANNER_STOPS = 9, SCANNER_RESTARTS = 10,
+            TIME_LOW_POWER = 11, TIME_BALANCED = 12, TIME_LOW_LATENCY = 13,
+            NOTIFICATIONS_POSTED = 14, NOTIFICATIONS_SUPPRESSED = 15,
+            TIMER_WAKEUPS = 16, TIMERS_FIRED = 17,
+            BEACONS_DUPLICATE = 18;
+    private static final String[] COUNTER_NAMES = {"beacons received", "beacons rejected (length)", "beacons rejected (filter)", "beacons rejected (decode)", "beacons from the selected device", "devices expired", "devices evicted",
+            "scanner callbacks", "scanner starts", "scanner stops", "scanner restarts (mode changes)",
+            "time in low power (ms, until the last mode change)", "time in balanced (ms, until the last mode change)", "time in low latency (ms, until the last mode change)",
+            "notifications posted", "notifications suppressed",
+            "timer wakeups", "timers fired",
+            "beacons not decoded (duplicates)"};
+
+    public static final int DECODE_LATENCY = 0, BATCH_SIZE = 1;
+    private static final String[] HISTOGRAM_NAMES = {"decode latency (ns)", "beacons per callback"};
+
+    private static final int MAX_ERROR_TYPES = 16;
+
+    private final AtomicLongArray counters = new AtomicLongArray(COUNTER_NAMES.length);
+    private final Histogram[] histograms = new Histogram[HISTOGRAM_NAMES.length];
+    private final String[] errorTypes = new String[MAX_ERROR_TYPES];
+    private final long[] errorCounts = new long[MAX_ERROR_TYPES];
+    private long otherErrors = 0;
+    private final long created;
+
+    /**
+     * @param now current time in ms, for the uptime in dump
+     */
+    public Metrics(long now) {
+        for (int i = 0; i < histograms.length; i++) histograms[i] = new Histogram();
+        created = now;
+    }
+
+    /**
+     * @param counter one of the counter constants
+     */
+    public void increment(int counter) {
+        counters.incrementAndGet(counter);
+    }
+
+    /**
+     * @param counter one of the counter constants
+     */
+    public void add(int counter, long delta) {
+        if (delta != 0) counters.addAndGet(counter, delta);
+    }
+
+    public long get(int counter) {
+        return counters.get(counter);
+    }
+
+    /**
+     * @param scanMode one of PodsScanner.MODE_*
+     * @return the counter for the time spent in that mode
+     */
+    public static int timeInMode(int scanMode) {
+        switch (scanMode) {
+            case PodsScanner.MODE_LOW_POWER:
+                return TIME_LOW_POWER;
+            case PodsScanner.MODE_BALANCED:
+                return TIME_BALANCED;
+            default:
+                return TIME_LOW_LATENCY;
+        }
+    }
+
+    /**
+     * @param histogram one of the histogram constants
+     */
+    public void record(int histogram, long value) {
+        histograms[histogram].record(value);
+    }
+
+    public Histogram getHistogram(int histogram) {
+        return histograms[histogram];
+    }
+
+    /**
+     * Counts an error, by class and message. Only the first MAX_ERROR_TYPES types are kept apart, the others are counted together
+     *
+     * @param where what was being done, for instance "scanner"
+     */
+    public void error(String where, Throwable t) {
+        error(where, t.getClass().getSimpleName() + (t.getMessage() != null ? " (" + t.getMessage() + ")" : ""));
+    }
+
+    /**
+     * Counts an error that isn't an exception, for instance an error code
+     *
+     * @param where what was being done, for instance "scanner"
+     * @param error what happened
+     */
+    public synchronized void error(String where, String error) {
+        String type = where + ": " + error;
+        for (int i = 0; i < MAX_ERROR_TYPES; i++) {
+            if (errorTypes[i] == null) {
+                errorTypes[i] = type;
+                errorCounts[i] = 1;
+                return;
+            }
+            if (errorTypes[i].equals(type)) {
+                errorCounts[i]++;
+                return;
+            }
+        }
+        otherErrors++;
+    }
+
+    /**
+     * @return total number of errors
+     */
+    public synchronized long getErrorCount() {
+        long n = otherErrors;
+        for (int i = 0; i < MAX_ERROR_TYPES && errorTypes[i] != null; i++) n += errorCounts[i];
+        return n;
+    }
+
+    /**
+     * @param now current time in ms
+     */
+    public void dump(PrintWriter w, long now) {
+        w.println("Metrics (since " + (now - created) / 1000 + "s ago):");
+        for (int i = 0; i < COUNTER_NAMES.length; i++) w.println("  " + COUNTER_NAMES[i] + ": " + counters.get(i));
+        for (int i = 0; i < HISTOGRAM_NAMES.length; i++) w.println("  " + HISTOGRAM_NAMES[i] + ": " + histograms[i]);
+        synchronized (this) {
+            w.println("Errors:");
+            for (int i = 0; i < MAX_ERROR_TYPES && errorTypes[i] != null; i++) w.println("  " + errorTypes[i] + ": " + errorCounts[i]);
+            if (otherErrors > 0) w.println("  other: " + otherErrors);
+        }
+    }
+
+    /**
+     * Histogram of non negative values, with a bucket for each power of 2: bucket 0 is 0, bucket i is from 2^(i-1) to 2^i - 1. Recording is 2 atomic adds and a max
+     */
+    public static final class Histogram {
+        private static final int BUCKETS = 64;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong sum = new AtomicLong(), max = new AtomicLong();
+
+        public void record(long value) {
+            if (value < 0) value = 0;
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+            sum.addAndGet(value);
+            long m;
+            while (value > (m = max.get()) && !max.compareAndSet(m, value)) ;
+        }
+
+        public long getCount() {
+            long n = 0;
+            for (int i = 0; i < BUCKETS; i++) n += buckets.get(i);
+            return n;
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public double getMean() {
+            long n = getCount();
+            return n == 0 ? 0 : (double) sum.get() / n;
+        }
+
+        /**
+         * @param p between 0 and 1
+         * @return an upper bound for the p-th quantile, the end of the bucket it falls in. 0 if nothing was recorded
+         */
+        public long getQuantile(double p) {
+            long n = getCount(), target = (long) Math.ceil(p * n), seen = 0;
+            if (n == 0) return 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= Math.max(1, target)) return i == 0 ? 0 : Math.min(max.get(), (1L << i) - 1);
+            }
+            return max.get();
+        }
+
+        @Override
+        public String toString() {
+            long n = getCount();
+            if (n == 0) return "none";
+            return n + " values, mean " + Math.round(getMean()) + ", p50 <= " + getQuantile(0.5) + ", p90 <= " + getQuantile(0.9) + ", p99 <= " + getQuantile(0.99) + ", max " + getMax();
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.dosse.airpods;
+
+/**
+ * The images shown in the notification (status_big and status_small) for each model, see PodStatus.MODEL_* and PodsModel
+ */
+final class ModelDrawables {
+    final int leftPod, leftPodDisconnected, rightPod, rightPodDisconnected, podCase, podCaseDisconnected;
+
+    private ModelDrawables(int leftPod, int leftPodDisconnected, int rightPod, int rightPodDisconnected, int podCase, int podCaseDisconnected) {
+        this.leftPod = leftPod;
+        this.leftPodDisconnected = leftPodDisconnected;
+        this.rightPod = rightPod;
+        this.rightPodDisconnected = rightPodDisconnected;
+        this.podCase = podCase;
+        this.podCaseDisconnected = podCaseDisconnected;
+    }
+
+    //indexed by PodStatus.MODEL_*
+    private static final ModelDrawables[] DRAWABLES = {
+            new ModelDrawables(R.drawable.left_pod, R.drawable.left_pod_disconnected, R.drawable.right_pod, R.drawable.right_pod_disconnected, R.drawable.pod_case, R.drawable.pod_case_disconnected), //MODEL_AIRPODS_NORMAL
+            new ModelDrawables(R.drawable.left_podpro, R.drawable.left_podpro_disconnected, R.drawable.right_podpro, R.drawable.right_podpro_disconnected, R.drawable.podpro_case, R.drawable.podpro_case_disconnected), //MODEL_AIRPODS_PRO
+    };
+
+    /**
+     * @param model one of PodStatus.MODEL_*
+     * @return the images for this model, or null if there are none
+     */
+    static ModelDrawables forModel(int model) {
+        return model >= 0 && model < DRAWABLES.length ? DRAWABLES[model] : null;
+    }
+}
@@ -0,0 +1,127 @@
+package com.dosse.airpods;
+
+import android.graphics.Bitmap;
+import android.widget.RemoteViews;
+
+/**
+ * Builds the RemoteViews of a notification layout, remembering the last value set for each view.
+ * <p>
+ * Reusing the same RemoteViews for every update is expensive: every setXXX call adds an action to it, the list keeps growing, and the whole list is sent to the NotificationManager (across Binder) every time we notify.
+ * Instead, the values are set here, and build creates a fresh RemoteViews with one action per view, only if at least one value changed since the last build. Views that were never set keep the values of the layout.
+ * <p>
+ * Not thread safe, meant to be used by the NotificationThread.
+ */
+public class NotificationRenderer {
+    private static final int IMAGE = 0, VISIBILITY = 1, TEXT = 2, BITMAP = 3;
+    private static final int MAX_FIELDS = 32;
+
+    private final String packageName;
+    private final int layout;
+
+    //last value set for each (view id, kind)
+    private final int[] ids = new int[MAX_FIELDS], kinds = new int[MAX_FIELDS], values = new int[MAX_FIELDS];
+    private final String[] texts = new String[MAX_FIELDS];
+    private final Bitmap[] bitmaps = new Bitmap[MAX_FIELDS];
+    private int fields = 0;
+
+    private RemoteViews views = null;
+    private boolean dirty = true;
+    private long builds = 0;
+
+    /**
+     * @param packageName package containing the layout
+     * @param layout      id of the layout
+     */
+    public NotificationRenderer(String packageName, int layout) {
+        this.packageName = packageName;
+        this.layout = layout;
+    }
+
+    public void setImageViewResource(int id, int resource) {
+        setInt(id, IMAGE, resource);
+    }
+
+    /**
+     * Bitmaps are compared by identity: pass the same object (see GaugeIconCache) and nothing changes, pass a new one and it's sent again
+     */
+    public void setImageViewBitmap(int id, Bitmap bitmap) {
+        int i = field(id, BITMAP);
+        if (bitmaps[i] != bitmap) {
+            bitmaps[i] = bitmap;
+            dirty = true;
+        }
+    }
+
+    public void setViewVisibility(int id, int visibility) {
+        setInt(id, VISIBILITY, visibility);
+    }
+
+    public void setTextViewText(int id, String text) {
+        int i = field(id, TEXT);
+        if (texts[i] == null || !texts[i].equals(text)) {
+            texts[i] = text;
+            dirty = true;
+        }
+    }
+
+    /**
+     * @return true if a value changed since the last call to build
+     */
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * @return a RemoteViews with the current values. If nothing changed since the last call, the same object is returned
+     */
+    public RemoteViews build() {
+        if (views == null || dirty) {
+            views = new RemoteViews(packageName, layout);
+            for (int i = 0; i < fields; i++) {
+                switch (kinds[i]) {
+                    case IMAGE:
+                        views.setImageViewResource(ids[i], values[i]);
+                        break;
+                    case VISIBILITY:
+                        views.setViewVisibility(ids[i], values[i]);
+                        break;
+                    case TEXT:
+                        views.setTextViewText(ids[i], texts[i]);
+                        break;
+                    case BITMAP:
+                        if (bitmaps[i] != null) views.setImageViewBitmap(ids[i], bitmaps[i]);
+                        break;
+                }
+            }
+            dirty = false;
+            builds++;
+        }
+        return views;
+    }
+
+    /**
+     * @return number of times a new RemoteViews was created
+     */
+    public long getBuildCount() {
+        return builds;
+    }
+
+    private void setInt(int id, int kind, int value) {
+        int i = field(id, kind);
+        if (values[i] != value) {
+            values[i] = value;
+            dirty = true;
+        }
+    }
+
+    private int field(int id, int kind) {
+        for (int i = 0; i < fields; i++) {
+            if (ids[i] == id && kinds[i] == kind) return i;
+        }
+        if (fields == MAX_FIELDS) throw new IllegalStateException("Too many fields");
+        ids[fields] = id;
+        kinds[fields] = kind;
+        dirty = true; //a new field always needs a build, even if its value is 0
+        return fields++;
+    }
+}
@@ -0,0 +1,86 @@
+package com.dosse.airpods;
+
+/**
+ * Immutable snapshot of the status of a pair of AirPods.
+ * <p>
+ * All the values are packed into a single long, so two snapshots can be compared with ==, and a snapshot can never be a mix of two beacons.
+ * The sequence number increases every time a new snapshot is published by PodStatusHolder, readers can use it to skip work if nothing changed.
+ * <p>
+ * Layout of the packed value:
+ * - bits 0-7: left pod charge (0-100, 255 = disconnected)
+ * - bits 8-15: right pod charge
+ * - bits 16-23: case charge
+ * - bits 24-31: last case charge, what we show for the case. Like the hex decoding did, PodStatusHolder sets it to the case charge of the previous beacon whenever the case is open, and keeps it while it's closed.
+ *   So it can be 255: after the first beacon, and after the first beacon once the case is opened again. StatusApi doesn't pass it on as it is, see StatusApi.lastCase
+ * - bit 32, 33, 34: left, right, case charging
+ * - bits 40-47: model
+ */
+public final class PodStatus {
+    public static final int DISCONNECTED = 255;
+    public static final int MODEL_AIRPODS_NORMAL = 0, MODEL_AIRPODS_PRO = 1;
+
+    private static final int LEFT_SHIFT = 0, RIGHT_SHIFT = 8, CASE_SHIFT = 16, LAST_CASE_SHIFT = 24, MODEL_SHIFT = 40;
+    private static final long CHARGE_L = 1L << 32, CHARGE_R = 1L << 33, CHARGE_CASE = 1L << 34;
+
+    /**
+     * Status before any beacon is received
+     */
+    public static final PodStatus UNKNOWN = new PodStatus(pack(DISCONNECTED, DISCONNECTED, DISCONNECTED, DISCONNECTED, false, false, false, MODEL_AIRPODS_NORMAL), 0);
+
+    private final long packed, sequence;
+
+    public PodStatus(long packed, long sequence) {
+        this.packed = packed;
+        this.sequence = sequence;
+    }
+
+    public static long pack(int left, int right, int caseStatus, int lastCaseStatus, boolean chargeL, boolean chargeR, boolean chargeCase, int model) {
+        return ((long) (left & 0xFF) << LEFT_SHIFT) | ((long) (right & 0xFF) << RIGHT_SHIFT) | ((long) (caseStatus & 0xFF) << CASE_SHIFT) | ((long) (lastCaseStatus & 0xFF) << LAST_CASE_SHIFT)
+                | (chargeL ? CHARGE_L : 0) | (chargeR ? CHARGE_R : 0) | (chargeCase ? CHARGE_CASE : 0) | ((long) (model & 0xFF) << MODEL_SHIFT);
+    }
+
+    public long getPacked() {
+        return packed;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public int getLeftStatus() {
+        return (int) (packed >>> LEFT_SHIFT) & 0xFF;
+    }
+
+    public int getRightStatus() {
+        return (int) (packed >>> RIGHT_SHIFT) & 0xFF;
+    }
+
+    public int getCaseStatus() {
+        return (int) (packed >>> CASE_SHIFT) & 0xFF;
+    }
+
+    public int getLastCaseStatus() {
+        return (int) (packed >>> LAST_CASE_SHIFT) & 0xFF;
+    }
+
+    public boolean isChargingL() {
+        return (packed & CHARGE_L) != 0;
+    }
+
+    public boolean isChargingR() {
+        return (packed & CHARGE_R) != 0;
+    }
+
+    public boolean isChargingCase() {
+        return (packed & CHARGE_CASE) != 0;
+    }
+
+    public int getModel() {
+        return (int) (packed >>> MODEL_SHIFT) & 0xFF;
+    }
+
+    @Override
+    public String toString() {
+        return "Left: " + getLeftStatus() + (isChargingL() ? "+" : "") + " Right: " + getRightStatus() + (isChargingR() ? "+" : "") + " Case: " + getCaseStatus() + (isChargingCase() ? "+" : "") + " Model: " + getModel() + " Seq: " + sequence;
+    }
+}
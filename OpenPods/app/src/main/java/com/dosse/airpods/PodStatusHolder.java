@@ -0,0 +1,64 @@
+package com.dosse.airpods;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the current PodStatus. It is written by the BLE scanner and read by the notification (and whoever else needs it) without locking.
+ * <p>
+ * A new snapshot is only created when the status actually changes, so beacons that repeat the same status don't allocate anything, they just update the last seen time.
+ */
+public final class PodStatusHolder {
+    private final AtomicReference<PodStatus> current = new AtomicReference<>(PodStatus.UNKNOWN);
+    private volatile long lastSeen = 0;
+
+    /**
+     * @return the current status. Always consistent, it's never a mix of two beacons
+     */
+    public PodStatus get() {
+        return current.get();
+    }
+
+    /**
+     * @return the sequence number of the current status, if it didn't change since the last time, neither did the status
+     */
+    public long getSequence() {
+        return current.get().getSequence();
+    }
+
+    /**
+     * @return when the last beacon was received (System.currentTimeMillis), even if it didn't change the status
+     */
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * Publishes a decoded beacon
+     *
+     * @param r   the decoded beacon
+     * @param now System.currentTimeMillis
+     * @return true if the status changed
+     */
+    public boolean publish(BeaconDecoder.Result r, long now) {
+        lastSeen = now;
+        for (; ; ) {
+            PodStatus prev = current.get();
+            //the case status we show is the one of the previous beacon while the case is open, and stays as it is while it's closed (the case sends 255). The previous beacon may have had the case closed, so this can be 255, see PodStatus
+            int lastCase = r.caseStatus != PodStatus.DISCONNECTED ? prev.getCaseStatus() : prev.getLastCaseStatus();
+            long packed = PodStatus.pack(r.leftStatus, r.rightStatus, r.caseStatus, lastCase, r.chargeL, r.chargeR, r.chargeCase, r.model);
+            if (packed == prev.getPacked()) return false;
+            if (current.compareAndSet(prev, new PodStatus(packed, prev.getSequence() + 1))) return true;
+        }
+    }
+
+    /**
+     * Marks the pods and the case as disconnected, for instance when the scanner is stopped. The last case status is kept
+     */
+    public void disconnect() {
+        for (; ; ) {
+            PodStatus prev = current.get();
+            long packed = PodStatus.pack(PodStatus.DISCONNECTED, PodStatus.DISCONNECTED, PodStatus.DISCONNECTED, prev.getLastCaseStatus(), prev.isChargingL(), prev.isChargingR(), prev.isChargingCase(), prev.getModel());
+            if (packed == prev.getPacked() || current.compareAndSet(prev, new PodStatus(packed, prev.getSequence() + 1))) return;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.dosse.airpods;
+
+/**
+ * Describes how to decode the beacons of a model of pods. Models are identified by bytes 3 and 4 of the manufacturer data (for instance 02 20).
+ * <p>
+ * Every field (level and charging of each pod and of the case) is read from a single byte, through a 256 entries table that is computed when the model is registered, so decoding is one table lookup per field whatever the format is.
+ * Each model has two sets of tables, one for when the pods are flipped (see BeaconDecoder).
+ * <p>
+ * Known formats:
+ * - BYTES, UrbanPods and other clones: byte 12 and 13 are the right and left pod, the first bit is set while the pod is there, the rest is the level (0-100). A pod that is missing keeps its last level with the first bit clear (28 is "no right pod" in UPods RE.md).
+ *   There is no charging flag for the pods in the captures, so they are never charging. Byte 14 is the case, the first bit is charging, the rest is the level, FF means it's disconnected
+ * - NIBBLES, genuine AirPods: byte 6 has the level of the two pods in its two nibbles (0-10, 15 means disconnected), which one is the left pod depends on the flip bit. The low nibble of byte 7 is the case, the high nibble has the charging flags
+ * <p>
+ * To support a new model, add a line to the registry at the bottom of this file. Beacons from models that are not in the registry are decoded as clones.
+ */
+public final class PodsModel {
+    public static final int FORMAT_BYTES = 0, FORMAT_NIBBLES = 1;
+
+    private static final int MODEL_BYTE = 3, FAMILY_BYTE = 4, FAMILY_AIRPODS = 0x20;
+    private static final int FLIP_BYTE = 5, FLIP_MASK = 0b00100000;
+
+    public final int id; //bytes 3 and 4, for instance 0x0220
+    public final String name;
+    public final int model; //one of PodStatus.MODEL_*, decides what the notification looks like
+    public final int format;
+
+    //byte index of each field, [flipped ? 1 : 0]
+    private final int[] leftByte = new int[2], rightByte = new int[2], chargeLByte = new int[2], chargeRByte = new int[2];
+    private final int caseByte, chargeCaseByte;
+    //byte value -> level (0-100 or 255) and byte value -> charging
+    private final int[][] leftLevel = new int[2][], rightLevel = new int[2][];
+    private final boolean[][] chargeL = new boolean[2][], chargeR = new boolean[2][];
+    private final int[] caseLevel;
+    private final boolean[] chargeCase;
+
+    private PodsModel(int id, String name, int model, int format) {
+        this.id = id;
+        this.name = name;
+        this.model = model;
+        this.format = format;
+        int[] byteLevels = new int[256], podByteLevels = new int[256], lowNibbleLevels = new int[256], highNibbleLevels = new int[256];
+        for (int b = 0; b < 256; b++) {
+            int l = b & 0b01111111;
+            byteLevels[b] = l <= 100 ? l : PodStatus.DISCONNECTED;
+            podByteLevels[b] = (b & 0b10000000) != 0 ? byteLevels[b] : PodStatus.DISCONNECTED;
+            lowNibbleLevels[b] = nibbleLevel(b & 0x0F);
+            highNibbleLevels[b] = nibbleLevel(b >>> 4);
+        }
+        if (format == FORMAT_BYTES) {
+            for (int f = 0; f < 2; f++) { //clones don't swap the pods when flipped
+                leftByte[f] = chargeLByte[f] = 13;
+                rightByte[f] = chargeRByte[f] = 12;
+                leftLevel[f] = rightLevel[f] = podByteLevels;
+                chargeL[f] = chargeR[f] = new boolean[256];
+            }
+            caseByte = chargeCaseByte = 14;
+            caseLevel = byteLevels.clone();
+            caseLevel[0xFF] = PodStatus.DISCONNECTED;
+            chargeCase = bitTable(0b10000000);
+            chargeCase[0xFF] = false;
+        } else {
+            for (int f = 0; f < 2; f++) {
+                leftByte[f] = rightByte[f] = 6;
+                chargeLByte[f] = chargeRByte[f] = 7;
+                leftLevel[f] = f == 1 ? highNibbleLevels : lowNibbleLevels;
+                rightLevel[f] = f == 1 ? lowNibbleLevels : highNibbleLevels;
+                chargeL[f] = bitTable(f == 1 ? 0b00100000 : 0b00010000);
+                chargeR[f] = bitTable(f == 1 ? 0b00010000 : 0b00100000);
+            }
+            caseByte = chargeCaseByte = 7;
+            caseLevel = lowNibbleLevels;
+            chargeCase = bitTable(0b01000000);
+        }
+    }
+
+    private static int nibbleLevel(int n) {
+        return n == 10 ? 100 : n < 10 ? n * 10 + 5 : PodStatus.DISCONNECTED;
+    }
+
+    private static boolean[] bitTable(int mask) {
+        boolean[] t = new boolean[256];
+        for (int b = 0; b < 256; b++) t[b] = (b & mask) != 0;
+        return t;
+    }
+
+    /**
+     * Decodes a beacon of this model
+     *
+     * @param data manufacturer specific data n°76, DATA_LENGTH bytes
+     * @param out  where the decoded status will be written
+     */
+    void decode(byte[] data, BeaconDecoder.Result out) {
+        boolean flipped = (data[FLIP_BYTE] & FLIP_MASK) == 0;
+        int f = flipped ? 1 : 0;
+        out.leftStatus = leftLevel[f][data[leftByte[f]] & 0xFF];
+        out.rightStatus = rightLevel[f][data[rightByte[f]] & 0xFF];
+        out.caseStatus = caseLevel[data[caseByte] & 0xFF];
+        out.chargeL = chargeL[f][data[chargeLByte[f]] & 0xFF];
+        out.chargeR = chargeR[f][data[chargeRByte[f]] & 0xFF];
+        out.chargeCase = chargeCase[data[chargeCaseByte] & 0xFF];
+        out.flipped = flipped;
+        out.model = model;
+    }
+
+    //registry, indexed by byte 3. Byte 4 is always 20 for AirPods
+    private static final PodsModel[] REGISTRY = new PodsModel[256];
+    private static final PodsModel CLONE;
+
+    private static PodsModel register(int id, String name, int model, int format) {
+        PodsModel m = new PodsModel(id, name, model, format);
+        REGISTRY[id >>> 8] = m;
+        return m;
+    }
+
+    static {
+        //genuine AirPods 1 have the same id but use the NIBBLES format, this app is for UrbanPods so the clones win
+        CLONE = register(0x0220, "UrbanPods", PodStatus.MODEL_AIRPODS_NORMAL, FORMAT_BYTES);
+        register(0x0F20, "AirPods 2", PodStatus.MODEL_AIRPODS_NORMAL, FORMAT_NIBBLES);
+        register(0x0E20, "AirPods Pro", PodStatus.MODEL_AIRPODS_PRO, FORMAT_NIBBLES);
+    }
+
+    /**
+     * @param data manufacturer specific data n°76, DATA_LENGTH bytes
+     * @return the model that sent this beacon, unknown models are treated as clones
+     */
+    public static PodsModel forBeacon(byte[] data) {
+        if ((data[FAMILY_BYTE] & 0xFF) != FAMILY_AIRPODS) return CLONE;
+        PodsModel m = REGISTRY[data[MODEL_BYTE] & 0xFF];
+        return m != null ? m : CLONE;
+    }
+
+    /**
+     * @param id bytes 3 and 4, for instance 0x0220
+     * @return the model with this id, or null if it's not in the registry
+     */
+    public static PodsModel forId(int id) {
+        if ((id & 0xFF) != FAMILY_AIRPODS) return null;
+        return REGISTRY[(id >>> 8) & 0xFF];
+    }
+}
@@ -0,0 +1,49 @@
+package com.dosse.airpods;
+
+/**
+ * Something that can scan for AirPods beacons. The real implementation is LeScanner, which uses the BLE scanner of the device.
+ * Beacons are delivered to the Listener that was given to the implementation when it was created, see BatchingScanner.
+ */
+public interface PodsScanner {
+    /**
+     * Receives the beacons found by a PodsScanner
+     */
+    interface Listener {
+        /**
+         * Called once per scanner callback, with all the beacons it delivered
+         *
+         * @param batch the beacons, oldest first. Reused by the scanner, don't keep it
+         */
+        void onBeacons(BeaconBatch batch);
+
+        /**
+         * Called when the scan couldn't be started, see ScanModeController.onScanFailed
+         *
+         * @param errorCode one of ScanCallback.SCAN_FAILED_*
+         */
+        void onScanFailed(int errorCode);
+    }
+
+    //these are the same values as ScanSettings.SCAN_MODE_*
+    int MODE_LOW_POWER = 0, MODE_BALANCED = 1, MODE_LOW_LATENCY = 2;
+
+    /**
+     * Starts scanning. The scanner is not running when this is called, ScanModeController makes sure of that.
+     * The scan may still fail later, in which case Listener.onScanFailed is called.
+     *
+     * @param scanMode          one of the MODE_* constants
+     * @param reportDelayMillis 0 to get results immediately, otherwise results are batched by the controller and delivered every reportDelayMillis ms
+     * @throws Exception if the scan couldn't be started
+     */
+    void startScan(int scanMode, long reportDelayMillis) throws Exception;
+
+    /**
+     * Stops the scan started by startScan
+     */
+    void stopScan();
+
+    /**
+     * @return true if the BT controller can batch scan results, otherwise reportDelayMillis must be 0
+     */
+    boolean isBatchingSupported();
+}
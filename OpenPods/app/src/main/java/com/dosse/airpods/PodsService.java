@@ -9,31 +9,42 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothHeadset;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
-import android.bluetooth.le.BluetoothLeScanner;
-import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanFilter.Builder;
-import android.bluetooth.le.ScanResult;
-import android.bluetooth.le.ScanSettings;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
 import android.location.LocationManager;
+import android.os.Binder;
 import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.ParcelUuid;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.Process;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
 import android.os.SystemClock;
 import android.provider.Settings;
 import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 import android.view.View;
-import android.widget.RemoteViews;
 
-import java.util.ArrayList;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * This is the class that does most of the work. It has 3 functions:
@@ -44,14 +55,26 @@ import java.util.List;
 public class PodsService extends Service {
     private static final boolean ENABLE_LOGGING = BuildConfig.DEBUG; //Log is only displayed if this is a debug build, not release
 
-    private static BluetoothLeScanner btScanner;
-    private static int leftStatus = 255, rightStatus = 255, caseStatus = 255, lastCaseStatus = 255;
-    private static boolean chargeL = false, chargeR = false, chargeCase = false;
-    private static final String MODEL_AIRPODS_NORMAL = "airpods12", MODEL_AIRPODS_PRO = "airpodspro";
-    private static String model = MODEL_AIRPODS_NORMAL;
+    private static final PodStatusHolder status = new PodStatusHolder(); //written by the scanner, read by the NotificationThread, see PodStatus
 
     /**
-     * The following method (startAirPodsScanner) creates a bluetoth LE scanner.
+     * Status changes are published here, for the notification, the quick settings tile (StatusTile) and the widget (StatusWidget).
+     * The scanner only runs while at least one of them is active: the notification while the AirPods are connected, the tile while it's visible, the widget while there's one on the home screen
+     */
+    private static final StatusBus bus = new StatusBus(new StatusBus.Clock() {
+        @Override
+        public long now() {
+            return SystemClock.elapsedRealtime();
+        }
+    });
+    private static final long NOTIFICATION_MIN_INTERVAL_MS = 200; //android drops the updates of apps that notify too often
+    private static final long WIDGET_MIN_INTERVAL_MS = 10000; //every widget update redraws the home screen
+    private static final int GAUGE_CACHE_BYTES = 512 * 1024; //about 25 gauges at xxhdpi, a notification shows 3
+    private StatusBus.Subscription notificationSubscription = null, widgetSubscription = null; //main thread only
+    private boolean btOn = false; //main thread only
+
+    /**
+     * The following method (startAirPodsScanner) starts a bluetoth LE scanner. How aggressively it scans is decided by ScanModeController.
      * This scanner receives all beacons from nearby BLE devices (not just your devices!) so we need to do 3 things:
      * - Check that the beacon comes from something that looks like a pair of AirPods
      * - Make sure that it is YOUR pair of AirPods
@@ -60,118 +83,228 @@ public class PodsService extends Service {
      * On a normal OS, we would use the bluetooth address of the device to filter out beacons from other devices.
      * UNFORTUNATELY, someone at google was so concerned about privacy (yea, as if they give a shit) that he decided it was a good idea to not allow access to the bluetooth address of incoming BLE beacons. As a result, we have no reliable way to make sure that the beacon comes from YOUR airpods and not the guy sitting next to you on the bus.
      * What we did to workaround this issue is this:
-     * - When a beacon arrives that looks like a pair of AirPods, look at the other beacons received in the last 10 seconds and get the strongest one
-     * - If the strongest beacon's fake address is the same as this, use this beacon; otherwise use the strongest beacon
-     * - Filter for signals stronger than -60db
+     * - When a beacon arrives that looks like a pair of AirPods, record it in a table of the devices seen in the last 10 seconds, keyed by their fake address (see BeaconPipeline and DeviceTable)
+     * - The table keeps track of which device is the closest, using a smoothed rssi and a bonus for devices that are around while our AirPods are connected (see ProximityEstimator), and we use the last beacon of that device
+     * - Another device is only selected if its score stays better by a few db (hysteresis), so the pods of the guy next to you don't take over the notification every time their signal peaks. There's no fixed rssi threshold, the rssi of clones is too random for that
      * - Decode...
      * <p>
      * Decoding the beacon:
      * This was done through reverse engineering. Hopefully it's correct.
      * - The beacon coming from a pair of AirPods contains a manufacturer specific data field n°76 of ? bytes
-     * - We convert this data to a hexadecimal array of string
-     * - The 12th and 13th bytes in the string represent the charge of the left and right pods, the first bit of the number is charging/not charging the rest is the actual value (0-100).
-     * - The 14th byte in the string represents the charge of the case. Value FF means it's disconnected
+     * - We decode it with BeaconDecoder, which reads the bytes directly without converting them to strings
+     * - The 12th and 13th bytes represent the charge of the right and left pods, the first bit of the number says the pod is there, the rest is the actual value (0-100). See PodsModel
+     * - The 14th byte represents the charge of the case, the first bit is charging/not charging. Value FF means it's disconnected
      * <p>
-     * After decoding a beacon, the status is written to leftStatus, rightStatus, caseStatus, chargeL, chargeR, chargeCase so that the NotificationThread can use the information
+     * After decoding a beacon, the status is published as an immutable PodStatus snapshot and the NotificationThread is told if it changed
      */
-    private static ArrayList<ScanResult> recentBeacons = new ArrayList<>();
-    private static final long RECENT_BEACONS_MAX_T_NS = 10000000000L; //10s
+    private static final long DEVICES_MAX_T_NS = 10000000000L; //10s
+    private static final int DEVICES_CAPACITY = 64; //if there are more devices than this around, the ones we haven't heard from for the longest time are dropped
+    private static final long DUPLICATE_WINDOW_NS = 3000000000L; //identical beacons from a device are decoded at most once every 3s, the others only update its rssi and last seen time (and the selection)
+    private static final BeaconPipeline pipeline = new BeaconPipeline(DEVICES_CAPACITY, DEVICES_MAX_T_NS, DUPLICATE_WINDOW_NS); //only accessed from the scanner callback and the BroadcastReceiver, both on the main thread
 
-    private void startAirPodsScanner() {
-        try {
-            if (ENABLE_LOGGING) Log.d(TAG, "START SCANNER");
-            SharedPreferences prefs = getSharedPreferences("openpods", MODE_PRIVATE);
-            BluetoothManager btManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
-            BluetoothAdapter btAdapter = btManager.getAdapter();
-            if (prefs.getBoolean("batterySaver", false)) {
-                if (btScanner != null) {
-                    btScanner.stopScan(new ScanCallback() {
-                        @Override
-                        public void onScanResult(int callbackType, ScanResult result) {
-                        }
-                    });
-                }
-            }
-            btScanner = btAdapter.getBluetoothLeScanner();
-            if (btAdapter == null) throw new Exception("No BT");
-            if (!btAdapter.isEnabled()) throw new Exception("BT Off");
-
-            List<ScanFilter> filters = getScanFilters();
-            ScanSettings settings;
-            if (prefs.getBoolean("batterySaver", false)) {
-                settings = new ScanSettings.Builder().setScanMode(0).setReportDelay(0).build();
-            } else {
-                settings = new ScanSettings.Builder().setScanMode(2).setReportDelay(2).build();
+    private volatile ScanModeController scanController = null; //volatile because dump reads it
+    private volatile LeScanner scanner = null; //null if createScanner was replaced by a test
+    private static final int SCAN_QUEUE_SIZE = 128; //maximum number of beacons processed per callback, when the controller batches them
+    private volatile BeaconLog beaconLog = null; //only if the recordBeacons option is enabled, opened by deferredSetup
+    private static final String BEACON_LOG_NAME = "beacons.bin";
+    private static final int BEACON_LOG_RECORDS_PER_FILE = 20000, BEACON_LOG_FILES = 5; //about 1MB per file
+    private static volatile BatteryHistory history = null; //status changes are recorded here, while the service is running. Opened by deferredSetup
+    private static final int HISTORY_RAW = 32768, HISTORY_MINUTES = 14400, HISTORY_HOURS = 8760; //512KB of changes, 10 days of minutes, 1 year of hours, about 1MB in total
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private static final StartupTrace startupTrace = new StartupTrace();
+    private static final Metrics metrics = new Metrics(SystemClock.elapsedRealtime()); //always on, see dump
+    private static final int TRACE_CAPACITY = 4096, NOTIFICATION_TRACE_CAPACITY = 1024; //32 bytes per event, 160KB in total
+    private static final TraceRing trace = new TraceRing("main", TRACE_CAPACITY); //what the main thread did, always on, see dump
+    private static final TraceRing notificationTrace = new TraceRing("notification", NOTIFICATION_TRACE_CAPACITY); //what the NotificationThread did, each thread has its own ring
+    private static final int TRACE_DUMP_EVENTS = 20; //events printed by dump, unless the trace is requested
+    private static final String TRACE_FILE_NAME = "trace.txt";
+    private static long tracedSelected = DeviceTable.NO_ADDRESS; //last selected device that was traced, main thread only
+    private static final DeviceClassifier classifier = new DeviceClassifier(); //which devices are AirPods, cached by address
+    private static final DrainPredictor predictor = new DrainPredictor(); //time to empty/full, shown in the big notification
+    static final long STARTUP_BUDGET_NS = 50000000L; //what setup may take on the main thread, more than this is logged as a warning in debug builds, and fails StartupTest
+    private static final Object setupLock = new Object(); //the receivers are registered and unregistered, and the history and beacon log files opened and closed, while holding this: a restart never has two writers on the same file, and a late deferredSetup never registers what teardown already unregistered
+
+    /**
+     * All the deadlines of the service are in this timer wheel, on the main thread: scan mode changes, the status in the notification becoming old, devices going away.
+     * There's a single message in the main Handler, for the earliest deadline, so we only wake up when a deadline actually passes, and never while there are no timers.
+     * Timers are only rescheduled when they fire, not for every beacon: a timer that fires too early (because beacons kept coming) checks its condition and schedules itself again.
+     * Only use it on the main thread.
+     */
+    private static final long TIMER_TICK_MS = 100;
+    private static final int TIMER_SLOTS = 512; //about 50s per turn, longer deadlines are fine but they're looked at once per turn
+    private final TimerWheel timers = new TimerWheel(TIMER_TICK_MS, TIMER_SLOTS, SystemClock.elapsedRealtime());
+    private volatile long timersWakeup = -1; //deadline runTimers was posted for, -1 if it isn't posted. Volatile because dump reads it
+    private long lastBeaconTime = 0; //SystemClock.elapsedRealtime of the last decoded beacon, for staleTimer
+    private static final long STALE_MARGIN_MS = 50; //the notification measures the age with System.currentTimeMillis, this makes sure it sees the status as old when staleTimer fires
+
+    /**
+     * Makes sure runTimers is posted for the earliest deadline. Call it after changing timers, outside runTimers
+     */
+    private void scheduleTimers() {
+        long next = timers.nextDeadline();
+        if (next == timersWakeup) return;
+        mainHandler.removeCallbacks(runTimers);
+        timersWakeup = next;
+        if (next != -1) mainHandler.postDelayed(runTimers, Math.max(0, next - SystemClock.elapsedRealtime()));
+    }
+
+    private final Runnable runTimers = new Runnable() {
+        @Override
+        public void run() {
+            timersWakeup = -1;
+            metrics.increment(Metrics.TIMER_WAKEUPS);
+            try {
+                metrics.add(Metrics.TIMERS_FIRED, timers.advance(SystemClock.elapsedRealtime()));
+            } catch (Throwable t) {
+                if (ENABLE_LOGGING) Log.d(TAG, "" + t);
+                metrics.error("timers", t);
             }
+            scheduleTimers();
+        }
+    };
 
-            btScanner.startScan(
-                    filters,
-                    settings,
-                    new ScanCallback() {
-                        @Override
-                        public void onBatchScanResults(List<ScanResult> scanResults) {
-                            for (ScanResult result : scanResults) onScanResult(-1, result);
-                            super.onBatchScanResults(scanResults);
-                        }
+    private final TimerWheel.Timer scanModeTimer = timers.newTimer(new Runnable() {
+        @Override
+        public void run() {
+            updateScanMode();
+        }
+    });
 
-                        // EDITED FOR URBANPODS
-                        @Override
-                        public void onScanResult(int callbackType, ScanResult result) {
-                            try {
-                                byte[] data = result.getScanRecord().getManufacturerSpecificData(76);
-                                if (data == null || data.length != 27) return;
-                                recentBeacons.add(result);
-                                if (ENABLE_LOGGING) Log.d(TAG, "" + result.getRssi() + "db");
-                                //if(ENABLE_LOGGING) Log.d(TAG, decodeHex(data));
-                                ScanResult strongestBeacon = null;
-                                for (int i = 0; i < recentBeacons.size(); i++) {
-                                    if (SystemClock.elapsedRealtimeNanos() - recentBeacons.get(i).getTimestampNanos() > RECENT_BEACONS_MAX_T_NS) {
-                                        recentBeacons.remove(i--);
-                                        continue;
-                                    }
-                                    if (strongestBeacon == null || strongestBeacon.getRssi() < recentBeacons.get(i).getRssi())
-                                        strongestBeacon = recentBeacons.get(i);
-                                }
-                                if (strongestBeacon != null && strongestBeacon.getDevice().getAddress().equals(result.getDevice().getAddress()))
-                                    strongestBeacon = result;
-                                result = strongestBeacon;
-//                                if (result.getRssi() < -60) return; had to comment this, rssi is pretty random with Upods
-                                byte[] mdata = result.getScanRecord().getManufacturerSpecificData(76);
-                                String[] hexstr = decodeHex(mdata);
-
-
-                                leftStatus = Integer.parseInt(hexstr[13], 16) & 0b01111111;
-                                rightStatus = Integer.parseInt(hexstr[12], 16) & 0b01111111;
-
-                                if(Integer.parseInt(hexstr[14], 16) != 255) {
-                                    lastCaseStatus = caseStatus;
-                                }
-
-                                caseStatus = Integer.parseInt(hexstr[14], 16);
-                                chargeL = (Integer.parseInt(hexstr[13], 16) & 0b10000000) != 0;
-                                chargeR = (Integer.parseInt(hexstr[12], 16) & 0b10000000) != 0;
-                                chargeCase = caseStatus == 255;
-                                model = MODEL_AIRPODS_NORMAL; // airpods are regular ones (clones)
-                                lastSeenConnected = System.currentTimeMillis();
-                            } catch (Throwable t) {
-                                if (ENABLE_LOGGING) Log.d(TAG, "" + t);
-                            }
-                        }
-                    });
+    /**
+     * Fires TIMEOUT_CONNECTED ms after the last beacon, so the notification and the widget can show the values as old. The tile has its own timer, see StatusTile
+     */
+    private final TimerWheel.Timer staleTimer = timers.newTimer(new Runnable() {
+        @Override
+        public void run() {
+            long deadline = lastBeaconTime + TIMEOUT_CONNECTED + STALE_MARGIN_MS;
+            if (SystemClock.elapsedRealtime() >= deadline) {
+                requestNotificationUpdate();
+                if (widgetSubscription != null) updateWidget(status.get()); //the status didn't change, the bus wouldn't deliver it
+            } else timers.schedule(staleTimer, deadline); //more beacons came in the meantime
+        }
+    });
+
+    /**
+     * Forgets the devices that went away while no beacons arrive, when the oldest one is due. When the last one goes, our pods are gone too
+     */
+    private final TimerWheel.Timer expiryTimer = timers.newTimer(new Runnable() {
+        @Override
+        public void run() {
+            if (pipeline.expire(SystemClock.elapsedRealtimeNanos()) != 0 && pipeline.getDevices().size() == 0) publishDisconnected();
+            long next = pipeline.getNextExpiry();
+            if (next != -1) timers.schedule(expiryTimer, next / 1000000 + 1);
+        }
+    });
+
+    private void startAirPodsScanner() {
+        trace(TraceRing.SCANNER_START, 0, 0);
+        btOn = true;
+        scanController.setEnabled(bus.hasDemand());
+        updateScanMode();
+        if (scanController.getMode() != ScanModeController.MODE_OFF) startupTrace.mark(StartupTrace.SCANNER_STARTED, SystemClock.elapsedRealtimeNanos());
+    }
+
+    /**
+     * Lets the ScanModeController pick the scan mode for the current conditions, and schedules the next check if the mode may change just because time passes
+     */
+    private void updateScanMode() {
+        timers.cancel(scanModeTimer);
+        try {
+            long now = SystemClock.elapsedRealtime();
+            long next = scanController.evaluate(now);
+            trace(TraceRing.SCAN_MODE, scanController.getMode(), scanController.getState());
+            if (next != -1) timers.schedule(scanModeTimer, next);
         } catch (Throwable t) {
             if (ENABLE_LOGGING) Log.d(TAG, "" + t);
+            metrics.error("scanner", t);
         }
+        scheduleTimers();
     }
 
-    private List<ScanFilter> getScanFilters() {
-        byte[] manufacturerData = new byte[27];
-        byte[] manufacturerDataMask = new byte[27];
+    /**
+     * Receives the beacons from the scanner, on the main thread. With batching (screen off) there can be many beacons in a batch, the status is only published once, after all of them went through the pipeline
+     */
+    private final PodsScanner.Listener scanListener = new PodsScanner.Listener() {
+        // EDITED FOR URBANPODS
+        @Override
+        public void onBeacons(BeaconBatch batch) {
+            try {
+                boolean decoded = false;
+                long newest = Long.MIN_VALUE; //timestamp of the newest beacon that went through the pipeline, with batching it can be up to the report delay before now
+                for (int i = 0; i < batch.size(); i++) {
+                    byte[] data = batch.getData(i);
+                    if (beaconLog != null) beaconLog.append(batch.getTimestamp(i), batch.getAddress(i), batch.getRssi(i), data); //recorded before the pipeline, so rejected beacons can be studied too
+                    long t = System.nanoTime();
+                    if (pipeline.onBeacon(batch.getTimestamp(i), SystemClock.elapsedRealtimeNanos(), batch.getRssi(i), batch.getAddress(i), data)) {
+                        decoded = true;
+                        newest = Math.max(newest, batch.getTimestamp(i));
+                    }
+                    metrics.record(Metrics.DECODE_LATENCY, System.nanoTime() - t);
+                }
+                if (!expiryTimer.isScheduled() && pipeline.getNextExpiry() != -1) timers.schedule(expiryTimer, pipeline.getNextExpiry() / 1000000 + 1);
+                trace(TraceRing.SCAN_CALLBACK, batch.size(), decoded ? 1 : 0);
+                traceSelection();
+                if (!decoded) {
+                    scheduleTimers();
+                    return;
+                }
+                startupTrace.mark(StartupTrace.FIRST_BEACON, SystemClock.elapsedRealtimeNanos());
+                long now = SystemClock.elapsedRealtime();
+                lastBeaconTime = Math.min(now, newest / 1000000); //when the beacon was received, not when the batch was delivered
+                if (!staleTimer.isScheduled()) timers.schedule(staleTimer, lastBeaconTime + TIMEOUT_CONNECTED + STALE_MARGIN_MS);
+                scheduleTimers();
+
+                boolean changed = status.publish(pipeline.getResult(), System.currentTimeMillis() - (now - lastBeaconTime)); //last seen is in wall clock time, for the notification. The model is decided by the decoder, see PodsModel. After duplicates the result didn't change, it's just a compare
+                boolean etaChanged = predictor.update(SystemClock.elapsedRealtime(), status.get()); //most calls are ignored, it takes a sample every 30s, and the rounded times rarely change with it
+                if (changed) {
+                    trace(TraceRing.STATUS, status.get().getPacked(), status.get().getSequence());
+                    recordHistory();
+                    bus.publish(status.get());
+                } else if (etaChanged) {
+                    requestNotificationUpdate(); //same levels, but the times to empty shown in the notification changed
+                } else if (n != null) {
+                    n.onSameStatus();
+                }
+                if (scanController.onBeacon(SystemClock.elapsedRealtime(), changed)) updateScanMode();
+            } catch (Throwable t) {
+                if (ENABLE_LOGGING) Log.d(TAG, "" + t);
+                metrics.error("beacons", t);
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            trace(TraceRing.SCAN_FAILED, errorCode, 0);
+            if (scanController.onScanFailed(SystemClock.elapsedRealtime(), errorCode)) updateScanMode(); //schedules the retry
+        }
+    };
+
+    /**
+     * Records an event of the main thread in the trace, see TraceRing
+     */
+    private static void trace(int event, long a, long b) {
+        trace.record(SystemClock.elapsedRealtimeNanos(), event, a, b);
+    }
 
-        manufacturerData[0] = 7;
-        manufacturerData[1] = 25;
+    /**
+     * Traces the selected device, if it changed since the last time
+     */
+    private static void traceSelection() {
+        DeviceTable devices = pipeline.getDevices();
+        int e = devices.getSelected();
+        long key = e == -1 ? DeviceTable.NO_ADDRESS : devices.getKey(e);
+        if (key == tracedSelected) return;
+        tracedSelected = key;
+        trace(TraceRing.SELECTED, key, e == -1 ? 0 : Math.round(devices.getRssiSmoothed(e)));
+    }
 
-        manufacturerDataMask[0] = -1;
-        manufacturerDataMask[1] = -1;
+    /**
+     * Only wakes us up for proximity pairing beacons from paired pods, see BeaconDecoder.getFilter
+     */
+    private List<ScanFilter> getScanFilters() {
+        byte[] manufacturerData = new byte[BeaconDecoder.DATA_LENGTH];
+        byte[] manufacturerDataMask = new byte[BeaconDecoder.DATA_LENGTH];
+        BeaconDecoder.getFilter(manufacturerData, manufacturerDataMask);
 
         Builder builder = new Builder();
         builder.setManufacturerData(76, manufacturerData, manufacturerDataMask);
@@ -179,51 +312,113 @@ public class PodsService extends Service {
     }
 
     private void stopAirPodsScanner() {
+        trace(TraceRing.SCANNER_STOP, 0, 0);
+        btOn = false;
+        scanController.setEnabled(false);
+        updateScanMode();
+        publishDisconnected();
+    }
+
+    /**
+     * Marks the status as disconnected and publishes it, so the tile and the widget don't keep showing the last levels as if the pods were still there. Called when bluetooth is turned off, when our pods disconnect, and when the last device expires
+     */
+    private void publishDisconnected() {
+        status.disconnect();
+        trace(TraceRing.STATUS, status.get().getPacked(), status.get().getSequence());
+        recordHistory();
+        bus.publish(status.get());
+        requestNotificationUpdate();
+    }
+
+    /**
+     * Called by the bus, on any thread, when the first subscriber becomes active or the last one stops
+     */
+    private final StatusBus.DemandListener demandListener = new StatusBus.DemandListener() {
+        @Override
+        public void onDemandChanged(boolean demand) {
+            mainHandler.post(applyDemand);
+        }
+    };
+
+    private final Runnable applyDemand = new Runnable() {
+        @Override
+        public void run() {
+            if (scanController == null || !btOn) return;
+            trace(TraceRing.DEMAND, bus.hasDemand() ? 1 : 0, 0);
+            scanController.setEnabled(bus.hasDemand());
+            updateScanMode();
+        }
+    };
+
+    /**
+     * Subscribes the widget to the bus if there's at least one on the home screen, unsubscribes it otherwise. Called by setup, and when a widget is added or removed (widgetsChanged)
+     */
+    private void updateWidgetSubscription() {
+        boolean widgets = StatusWidget.hasWidgets(this);
+        if (widgets && widgetSubscription == null) {
+            widgetSubscription = bus.subscribe(new StatusBus.Subscriber() {
+                @Override
+                public void onStatus(PodStatus s) {
+                    updateWidget(s);
+                }
+            }, mainDispatcher, WIDGET_MIN_INTERVAL_MS, true);
+        } else if (!widgets && widgetSubscription != null) {
+            widgetSubscription.close();
+            widgetSubscription = null;
+        }
+    }
+
+    private void updateWidget(PodStatus s) {
         try {
-            if (btScanner != null) {
-                if (ENABLE_LOGGING) Log.d(TAG, "STOP SCANNER");
-                btScanner.stopScan(new ScanCallback() {
-                    @Override
-                    public void onScanResult(int callbackType, ScanResult result) {
-                    }
-                });
-            }
-            leftStatus = 255;
-            rightStatus = 255;
-            caseStatus = 255;
+            StatusWidget.update(this, s);
         } catch (Throwable t) {
+            metrics.error("widget", t);
         }
     }
 
-    private final char[] hexCharset = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
-
-    private String[] decodeHex(byte[] bArr) {
-        String[] ret = new String[bArr.length];
-        for (int i = 0; i < bArr.length; ++i) {
-            ret[i] = String.format("%02x", bArr[i]);
+    private final StatusBus.Dispatcher mainDispatcher = new StatusBus.Dispatcher() {
+        @Override
+        public void dispatch(Runnable r, long delayMs) {
+            mainHandler.postDelayed(r, delayMs);
         }
+    };
+
+    /**
+     * @return where the status changes are published, for StatusTile
+     */
+    public static StatusBus getBus() {
+        return bus;
+    }
+
+    private static void recordHistory() {
+        BatteryHistory h = history;
+        if (h != null) h.record(System.currentTimeMillis(), status.get().getPacked());
+    }
 
-        return ret;
+    /**
+     * @return the battery history, or null if the service is not running. Queries do I/O, don't use it on the main thread
+     */
+    public static BatteryHistory getHistory() {
+        return history;
     }
 
-    private boolean isFlipped(String str) {
-        return (Integer.toString(Integer.parseInt("" + str.charAt(10), 16) + 0x10, 2)).charAt(3) == '0';
+    private static void requestNotificationUpdate() {
+        if (n != null) n.requestUpdate();
     }
 
     /**
      * The following class is a thread that manages the notification while your AirPods are connected.
      * <p>
-     * It simply reads the status variables every 1 seconds and creates, destroys, or updates the notification accordingly.
-     * The notification is shown when BT is on and AirPods are connected. The status is updated every 1 second. Battery% is hidden if we didn't receive a beacon for 30 seconds (screen off for a while)
+     * It doesn't poll: it's subscribed to the bus, so it's updated when a beacon changes the status, and the BroadcastReceiver calls requestUpdate when the AirPods connect or disconnect.
+     * The notification is then created, destroyed, or updated accordingly, but only if what it shows actually changed. Battery% is marked as old if we didn't receive a beacon for TIMEOUT_CONNECTED ms (screen off for a while), staleTimer requests an update when that happens.
      * <p>
-     * This thread is the reason why we need permission to disable doze. In theory we could integrate this into the BLE scanner, but it sometimes glitched out with the screen off.
+     * When the pods keep reporting the same levels, beacons only wake up this thread when a time to empty, rounded as it's shown, changes (see DrainPredictor.getVersion). The predictor takes a sample at most every 30s, so that's at most every 30s. The notification is only sent if the text actually changed.
      */
     private static NotificationThread n = null;
     private static final String TAG = "AirPods";
-    private static long lastSeenConnected = 0;
-    private static final long TIMEOUT_CONNECTED = 5000;
-    private static boolean maybeConnected = false;
-    private static boolean notificationShowing = false;
+    static final long TIMEOUT_CONNECTED = 5000; //no beacon for this long and the status is shown as old. Package private for the tests, see ScanModeControllerTest
+    private static volatile boolean maybeConnected = false;
+    private static volatile boolean notificationShowing = false;
 
     class NotificationSwipedReceiver extends BroadcastReceiver {
 
@@ -233,7 +428,7 @@ public class PodsService extends Service {
         }
     }
 
-    private class NotificationThread extends Thread {
+    private class NotificationThread extends HandlerThread {
 
         private boolean isLocationEnabled() {
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
@@ -249,9 +444,26 @@ public class PodsService extends Service {
         }
 
         private NotificationManager mNotifyManager;
+        private Handler handler = null;
+        private NotificationRenderer notificationBig, notificationSmall, locationDisabledBig, locationDisabledSmall;
+        private NotificationCompat.Builder mBuilder;
+        private final GaugeIconCache gauges = new GaugeIconCache(GAUGE_CACHE_BYTES); //the bitmaps are only drawn when they're needed, on this thread
+
+        //what is currently displayed, used to skip updates that wouldn't change anything
+        private long shownSequence = -1, shownPredictions = -1;
+        private boolean shownFresh, shownLocation;
+        private volatile boolean staleShown = false;
 
         public NotificationThread() {
+            super(TAG);
             mNotifyManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        }
+
+        /**
+         * Creates the notification channel on this thread instead of the main thread. It runs before any update, so the channel exists when the first notification is posted
+         */
+        @Override
+        protected void onLooperPrepared() {
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) { //on oreo and newer, create a notification channel
                 NotificationChannel channel = new NotificationChannel(TAG, TAG, NotificationManager.IMPORTANCE_LOW);
                 channel.enableVibration(false);
@@ -262,110 +474,325 @@ public class PodsService extends Service {
             }
         }
 
+        private synchronized Handler getHandler() {
+            if (handler == null) handler = new Handler(getLooper());
+            return handler;
+        }
+
+        /**
+         * Called when something that is displayed may have changed. Multiple requests are coalesced into a single update
+         */
+        public void requestUpdate() {
+            Handler h = getHandler();
+            h.removeCallbacks(update);
+            h.post(update);
+        }
+
+        /**
+         * Called by the scanner for decoded beacons that didn't change the status (the ones that did are published on the bus)
+         */
+        public void onSameStatus() {
+            if (staleShown) requestUpdate(); //a beacon with the same status only needs an update if we're showing the values as old
+        }
+
+        private final Runnable update = new Runnable() {
+            @Override
+            public void run() {
+                updateNotification();
+            }
+        };
+
         @SuppressWarnings("Duplicates")
-        public void run() {
-            RemoteViews notificationBig = new RemoteViews(getPackageName(), R.layout.status_big);
-            RemoteViews notificationSmall = new RemoteViews(getPackageName(), R.layout.status_small);
-            RemoteViews locationDisabledBig = new RemoteViews(getPackageName(), R.layout.location_disabled_big);
-            RemoteViews locationDisabledSmall = new RemoteViews(getPackageName(), R.layout.location_disabled_small);
-            NotificationCompat.Builder mBuilder = new NotificationCompat.Builder(PodsService.this, TAG);
-            mBuilder.setShowWhen(false);
-            mBuilder.setOngoing(true);
-            mBuilder.setSmallIcon(R.mipmap.notification_icon);
-
-            for (; ; ) {
-                if (maybeConnected && lastCaseStatus != 255) {
-                    if (!notificationShowing) {
-                        if (ENABLE_LOGGING) Log.d(TAG, "Creating notification");
-                        notificationShowing = true;
-                        mNotifyManager.notify(1, mBuilder.build());
-                    }
-                } else {
-                    if (notificationShowing) {
-                        if (ENABLE_LOGGING) Log.d(TAG, "Removing notification");
-                        notificationShowing = false;
-                        continue;
-                    }
+        private void updateNotification() {
+            if (mBuilder == null) {
+                notificationBig = new NotificationRenderer(getPackageName(), R.layout.status_big);
+                notificationSmall = new NotificationRenderer(getPackageName(), R.layout.status_small);
+                locationDisabledBig = new NotificationRenderer(getPackageName(), R.layout.location_disabled_big);
+                locationDisabledSmall = new NotificationRenderer(getPackageName(), R.layout.location_disabled_small);
+                mBuilder = new NotificationCompat.Builder(PodsService.this, TAG);
+                mBuilder.setShowWhen(false);
+                mBuilder.setOngoing(true);
+                mBuilder.setSmallIcon(R.mipmap.notification_icon);
+            }
 
+            PodStatus s = status.get(); //consistent snapshot, it won't change while we use it
+            if (!maybeConnected || s.getLastCaseStatus() == 255) {
+                if (notificationShowing) {
+                    notificationTrace.record(SystemClock.elapsedRealtimeNanos(), TraceRing.NOTIFICATION_REMOVED);
+                    notificationShowing = false;
                     mNotifyManager.cancel(1);
                 }
+                staleShown = false;
+                return;
+            }
+
+            long sinceLastSeen = System.currentTimeMillis() - status.getLastSeen();
+            boolean fresh = sinceLastSeen < TIMEOUT_CONNECTED;
+            boolean location = isLocationEnabled() || Build.VERSION.SDK_INT >= 29; //apparently this restriction was removed in android Q
+
+            boolean reconfigured = gauges.setConfiguration(getResources().getConfiguration()); //new density, the gauges must be drawn again
+            long predictions = predictor.getVersion(); //read before formatting the times, so a newer version is never marked as shown
+
+            if (notificationShowing && fresh == shownFresh && location == shownLocation && s.getSequence() == shownSequence && predictions == shownPredictions && !reconfigured) {
+                metrics.increment(Metrics.NOTIFICATIONS_SUPPRESSED);
+                return; //nothing changed
+            }
+            boolean layoutChanged = !notificationShowing || location != shownLocation;
+            shownFresh = fresh;
+            shownLocation = location;
+            shownSequence = s.getSequence();
+            shownPredictions = predictions;
+            staleShown = !fresh;
+
+            ModelDrawables d = ModelDrawables.forModel(s.getModel());
+            if (d != null) {
+                notificationBig.setImageViewResource(R.id.leftPodImg, s.getLeftStatus() != 255 ? d.leftPod : d.leftPodDisconnected);
+                notificationBig.setImageViewResource(R.id.rightPodImg, s.getRightStatus() != 255 ? d.rightPod : d.rightPodDisconnected);
+                notificationBig.setImageViewResource(R.id.podCaseImg, s.getCaseStatus() != 255 ? d.podCase : d.podCaseDisconnected);
+                notificationSmall.setImageViewResource(R.id.leftPodImg, s.getLeftStatus() != 255 ? d.leftPod : d.leftPodDisconnected);
+                notificationSmall.setImageViewResource(R.id.rightPodImg, s.getRightStatus() != 255 ? d.rightPod : d.rightPodDisconnected);
+                notificationSmall.setImageViewResource(R.id.podCaseImg, s.getCaseStatus() != 255 ? d.podCase : d.podCaseDisconnected);
+
+                if (fresh) {
+                    notificationSmall.setViewVisibility(R.id.value_old_tv, View.INVISIBLE);
+                    notificationBig.setViewVisibility(R.id.leftPodText, View.VISIBLE);
+                    notificationBig.setViewVisibility(R.id.rightPodText, View.VISIBLE);
+                    notificationBig.setViewVisibility(R.id.podCaseText, View.VISIBLE);
+                    notificationBig.setViewVisibility(R.id.leftPodUpdating, View.INVISIBLE);
+                    notificationBig.setViewVisibility(R.id.rightPodUpdating, View.INVISIBLE);
+                    notificationBig.setViewVisibility(R.id.podCaseUpdating, View.INVISIBLE);
+                    notificationSmall.setViewVisibility(R.id.leftPodText, View.VISIBLE);
+                    notificationSmall.setViewVisibility(R.id.rightPodText, View.VISIBLE);
+                    notificationSmall.setViewVisibility(R.id.podCaseText, View.VISIBLE);
+                    notificationSmall.setViewVisibility(R.id.leftPodUpdating, View.INVISIBLE);
+                    notificationSmall.setViewVisibility(R.id.rightPodUpdating, View.INVISIBLE);
+                    notificationSmall.setViewVisibility(R.id.podCaseUpdating, View.INVISIBLE);
 
-                if (isLocationEnabled() || Build.VERSION.SDK_INT >= 29) { //apparently this restriction was removed in android Q
-                    mBuilder.setCustomContentView(notificationSmall);
-                    mBuilder.setCustomBigContentView(notificationBig);
+                    notificationBig.setTextViewText(R.id.leftPodText, String.valueOf(s.getLeftStatus()) + " %");
+                    notificationBig.setTextViewText(R.id.rightPodText, String.valueOf(s.getRightStatus()) + " %");
+                    notificationBig.setTextViewText(R.id.podCaseText, s.getLastCaseStatus() == 255 ? "N/C" : (String.valueOf(s.getLastCaseStatus()) + " %"));
+                    notificationSmall.setTextViewText(R.id.leftPodText, String.valueOf(s.getLeftStatus()) + " %");
+                    notificationSmall.setTextViewText(R.id.rightPodText, String.valueOf(s.getRightStatus()) + " %");
+                    notificationSmall.setTextViewText(R.id.podCaseText, s.getLastCaseStatus() == 255 ? "N/C" : (String.valueOf(s.getLastCaseStatus()) + " %"));
+                    notificationBig.setTextViewText(R.id.leftPodEta, formatEta(DrainPredictor.LEFT));
+                    notificationBig.setTextViewText(R.id.rightPodEta, formatEta(DrainPredictor.RIGHT));
+                    notificationBig.setTextViewText(R.id.podCaseEta, formatEta(DrainPredictor.CASE));
+                    setGauge(R.id.leftPodGauge, GaugeIconCache.LEFT, s.getLeftStatus(), s.isChargingL());
+                    setGauge(R.id.rightPodGauge, GaugeIconCache.RIGHT, s.getRightStatus(), s.isChargingR());
+                    boolean caseOpen = s.getCaseStatus() != PodStatus.DISCONNECTED; //the charging flag is the one of this beacon, so is the level. A closed case only has its last level, we don't know if it's charging
+                    setGauge(R.id.podCaseGauge, GaugeIconCache.CASE, caseOpen ? s.getCaseStatus() : s.getLastCaseStatus(), caseOpen && s.isChargingCase());
                 } else {
-                    mBuilder.setCustomContentView(locationDisabledSmall);
-                    mBuilder.setCustomBigContentView(locationDisabledBig);
+                    notificationSmall.setViewVisibility(R.id.value_old_tv, View.VISIBLE);
                 }
-                if (notificationShowing) {
-                    if (ENABLE_LOGGING)
-                        Log.d(TAG, "Left: " + leftStatus + (chargeL ? "+" : "") + " " + "Right: " + rightStatus + (chargeR ? "+" : "") + " " + "Case: " + caseStatus + (chargeCase ? "+" : "") + " " + "Model: " + model);
-                    if (model.equals(MODEL_AIRPODS_NORMAL)) {
-                        notificationBig.setImageViewResource(R.id.leftPodImg, leftStatus != 255 ? R.drawable.left_pod : R.drawable.left_pod_disconnected);
-                        notificationBig.setImageViewResource(R.id.rightPodImg, rightStatus != 255 ? R.drawable.right_pod : R.drawable.right_pod_disconnected);
-                        notificationBig.setImageViewResource(R.id.podCaseImg, caseStatus != 255 ? R.drawable.pod_case : R.drawable.pod_case_disconnected);
-                        notificationSmall.setImageViewResource(R.id.leftPodImg, leftStatus != 255 ? R.drawable.left_pod : R.drawable.left_pod_disconnected);
-                        notificationSmall.setImageViewResource(R.id.rightPodImg, rightStatus != 255 ? R.drawable.right_pod : R.drawable.right_pod_disconnected);
-                        notificationSmall.setImageViewResource(R.id.podCaseImg, caseStatus != 255 ? R.drawable.pod_case : R.drawable.pod_case_disconnected);
-
-                        if ((System.currentTimeMillis() - lastSeenConnected) < TIMEOUT_CONNECTED) {
-                            notificationSmall.setViewVisibility(R.id.value_old_tv, View.INVISIBLE);
-                            notificationBig.setViewVisibility(R.id.leftPodText, View.VISIBLE);
-                            notificationBig.setViewVisibility(R.id.rightPodText, View.VISIBLE);
-                            notificationBig.setViewVisibility(R.id.podCaseText, View.VISIBLE);
-                            notificationBig.setViewVisibility(R.id.leftPodUpdating, View.INVISIBLE);
-                            notificationBig.setViewVisibility(R.id.rightPodUpdating, View.INVISIBLE);
-                            notificationBig.setViewVisibility(R.id.podCaseUpdating, View.INVISIBLE);
-                            notificationSmall.setViewVisibility(R.id.leftPodText, View.VISIBLE);
-                            notificationSmall.setViewVisibility(R.id.rightPodText, View.VISIBLE);
-                            notificationSmall.setViewVisibility(R.id.podCaseText, View.VISIBLE);
-                            notificationSmall.setViewVisibility(R.id.leftPodUpdating, View.INVISIBLE);
-                            notificationSmall.setViewVisibility(R.id.rightPodUpdating, View.INVISIBLE);
-                            notificationSmall.setViewVisibility(R.id.podCaseUpdating, View.INVISIBLE);
-
-                            notificationBig.setTextViewText(R.id.leftPodText, String.valueOf(leftStatus) + " %");
-                            notificationBig.setTextViewText(R.id.rightPodText, String.valueOf(rightStatus) + " %");
-                            notificationBig.setTextViewText(R.id.podCaseText, lastCaseStatus == 255 ? "N/C" : (String.valueOf(lastCaseStatus) + " %"));
-                            notificationSmall.setTextViewText(R.id.leftPodText, String.valueOf(leftStatus) + " %");
-                            notificationSmall.setTextViewText(R.id.rightPodText, String.valueOf(rightStatus) + " %");
-                            notificationSmall.setTextViewText(R.id.podCaseText, lastCaseStatus == 255 ? "N/C" : (String.valueOf(lastCaseStatus) + " %"));
-                        } else {
-                            notificationSmall.setViewVisibility(R.id.value_old_tv, View.VISIBLE);
-//                            notificationBig.setViewVisibility(R.id.leftPodText, View.INVISIBLE);
-//                            notificationBig.setViewVisibility(R.id.rightPodText, View.INVISIBLE);
-//                            notificationBig.setViewVisibility(R.id.podCaseText, View.INVISIBLE);
-//                            notificationBig.setViewVisibility(R.id.leftPodUpdating, View.VISIBLE);
-//                            notificationBig.setViewVisibility(R.id.rightPodUpdating, View.VISIBLE);
-//                            notificationBig.setViewVisibility(R.id.podCaseUpdating, View.VISIBLE);
-//                            notificationSmall.setViewVisibility(R.id.leftPodText, View.INVISIBLE);
-//                            notificationSmall.setViewVisibility(R.id.rightPodText, View.INVISIBLE);
-//                            notificationSmall.setViewVisibility(R.id.podCaseText, View.INVISIBLE);
-//                            notificationSmall.setViewVisibility(R.id.leftPodUpdating, View.VISIBLE);
-//                            notificationSmall.setViewVisibility(R.id.rightPodUpdating, View.VISIBLE);
-//                            notificationSmall.setViewVisibility(R.id.podCaseUpdating, View.VISIBLE);
-                        }
+            }
+            NotificationRenderer small = location ? notificationSmall : locationDisabledSmall, big = location ? notificationBig : locationDisabledBig;
+            if (!layoutChanged && !small.isDirty() && !big.isDirty()) { //the status changed, but not in a way that is displayed (for instance the charging flags)
+                metrics.increment(Metrics.NOTIFICATIONS_SUPPRESSED);
+                return;
+            }
+            notificationShowing = true;
+            mBuilder.setCustomContentView(small.build());
+            mBuilder.setCustomBigContentView(big.build());
+            mNotifyManager.notify(1, mBuilder.build());
+            metrics.increment(Metrics.NOTIFICATIONS_POSTED);
+            notificationTrace.record(SystemClock.elapsedRealtimeNanos(), TraceRing.NOTIFICATION_POSTED, s.getSequence(), fresh ? 1 : 0);
+            if (startupTrace.mark(StartupTrace.FIRST_NOTIFICATION, SystemClock.elapsedRealtimeNanos()) && ENABLE_LOGGING) Log.d(TAG, startupTrace.toString());
+        }
 
-                        mNotifyManager.notify(1, mBuilder.build());
-                    }
-                    try {
-                        Thread.sleep(1000);
-                    } catch (InterruptedException e) {
-                    }
-                }
+        /**
+         * Shows the gauge of a component in both layouts, or hides it if the component is disconnected. The bitmap comes from the cache, it's only drawn the first time a level bucket is shown
+         */
+        private void setGauge(int id, int component, int level, boolean charging) {
+            Bitmap b = gauges.get(component, level, charging, GaugeIconCache.THEME_LIGHT); //the layouts have a white background, in night mode too
+            int visibility = b != null ? View.VISIBLE : View.GONE;
+            notificationBig.setViewVisibility(id, visibility);
+            notificationSmall.setViewVisibility(id, visibility);
+            if (b != null) {
+                notificationBig.setImageViewBitmap(id, b);
+                notificationSmall.setImageViewBitmap(id, b);
             }
         }
+
+        /**
+         * @return time to empty (or to full, while charging) of a component, rounded by the predictor so the notification doesn't change every minute. Empty if we don't know yet
+         */
+        private String formatEta(int component) {
+            long m = predictor.getRoundedMinutes(component);
+            if (m == DrainPredictor.UNKNOWN) return "";
+            return (predictor.isCharging(component) ? "\u25B2 " : "\u25BC ") + (m >= 60 ? (m / 60) + "h" + (m % 60 < 10 ? "0" : "") + (m % 60) : m + "m");
+        }
+
+        /**
+         * @return number of times the notification was sent to the NotificationManager, since the process started
+         */
+        public long getNotifyCount() {
+            return metrics.get(Metrics.NOTIFICATIONS_POSTED);
+        }
+
+        /**
+         * @return number of updates that were skipped because the notification would have looked the same, since the process started
+         */
+        public long getSuppressedCount() {
+            return metrics.get(Metrics.NOTIFICATIONS_SUPPRESSED);
+        }
     }
 
     public PodsService() {
 
     }
 
+    /**
+     * Other apps can bind with StatusApi.ACTION_BIND to read the status (see IPodsStatus), or query StatusProvider. Both serve the snapshot we already have, and neither makes us scan: remote listeners are an inactive subscription of the bus.
+     * Listeners are called from remoteSubscription, at most once every StatusApi.LISTENER_MIN_INTERVAL_MS, with the latest status.
+     */
     @Override
     public IBinder onBind(Intent intent) {
-        return null;
+        return intent != null && StatusApi.ACTION_BIND.equals(intent.getAction()) ? statusBinder : null;
     }
 
-    private BroadcastReceiver btReceiver = null, screenReceiver = null;
+    private static final ClientRateLimiter clientLimiter = new ClientRateLimiter(StatusApi.CLIENT_BURST, StatusApi.CLIENT_PER_SECOND);
+    private final Map<Integer, Set<IBinder>> listenersPerClient = new HashMap<>(); //binders of the listeners of each app, keyed like remoteListeners so a listener registered twice is only counted once. Guarded by remoteListeners
+    private final RemoteCallbackList<IPodsStatusListener> remoteListeners = new RemoteCallbackList<IPodsStatusListener>() {
+        @Override
+        public void onCallbackDied(IPodsStatusListener listener, Object cookie) {
+            removeListener((Integer) cookie, listener.asBinder());
+        }
+    };
+    private StatusBus.Subscription remoteSubscription = null; //main thread only
+    private volatile Bundle lastSnapshot = null; //the last snapshot built for the clients, what getSnapshot returns to a client that asks too often
+
+    private final IPodsStatus.Stub statusBinder = new IPodsStatus.Stub() {
+        @Override
+        public Bundle getSnapshot() {
+            int uid = Binder.getCallingUid();
+            Bundle last = lastSnapshot;
+            if (last != null && uid != Process.myUid() && !clientLimiter.tryAcquire(uid, SystemClock.elapsedRealtime())) return last; //over the limit: the snapshot we already have, a null would look like a broken service
+            return lastSnapshot = StatusApi.toBundle(status.get(), status.getLastSeen());
+        }
+
+        @Override
+        public void registerListener(IPodsStatusListener listener) {
+            if (listener == null) return;
+            int uid = Binder.getCallingUid();
+            IBinder binder = listener.asBinder();
+            synchronized (remoteListeners) {
+                Set<IBinder> binders = listenersPerClient.get(uid);
+                if (binders != null && !binders.contains(binder) && binders.size() >= StatusApi.MAX_LISTENERS_PER_CLIENT) return; //registering the same listener again is fine, it replaces the old one
+                if (!remoteListeners.register(listener, uid)) return; //already dead
+                if (binders == null) listenersPerClient.put(uid, binders = new HashSet<>());
+                binders.add(binder);
+            }
+        }
+
+        @Override
+        public void unregisterListener(IPodsStatusListener listener) {
+            if (listener != null && remoteListeners.unregister(listener)) removeListener(Binder.getCallingUid(), listener.asBinder());
+        }
+    };
+
+    private void removeListener(int uid, IBinder binder) {
+        synchronized (remoteListeners) {
+            Set<IBinder> binders = listenersPerClient.get(uid);
+            if (binders == null) return;
+            binders.remove(binder);
+            if (binders.isEmpty()) listenersPerClient.remove(uid);
+        }
+    }
+
+    /**
+     * Tells the remote listeners and the observers of StatusProvider that the status changed. Package private for StatusApiTest
+     */
+    final StatusBus.Subscriber remoteSubscriber = new StatusBus.Subscriber() {
+        @Override
+        public void onStatus(PodStatus s) {
+            Bundle snapshot = StatusApi.toBundle(s, status.getLastSeen());
+            lastSnapshot = snapshot;
+            int n = remoteListeners.beginBroadcast();
+            try {
+                for (int i = 0; i < n; i++) {
+                    try {
+                        remoteListeners.getBroadcastItem(i).onStatusChanged(snapshot); //oneway, doesn't wait for the client
+                    } catch (RemoteException e) { //dead, RemoteCallbackList removes it
+                    }
+                }
+            } finally {
+                remoteListeners.finishBroadcast();
+            }
+            try {
+                getContentResolver().notifyChange(StatusApi.CONTENT_URI, null);
+            } catch (Throwable t) {
+                metrics.error("provider", t);
+            }
+        }
+    };
+
+    /**
+     * @return the current status, for StatusProvider
+     */
+    static PodStatus getStatus() {
+        return status.get();
+    }
+
+    /**
+     * @return when the last beacon was received (System.currentTimeMillis), for StatusProvider, StatusTile and StatusWidget
+     */
+    static long getLastSeen() {
+        return status.getLastSeen();
+    }
+
+    static ClientRateLimiter getClientLimiter() {
+        return clientLimiter;
+    }
+
+    private BroadcastReceiver btReceiver = null, screenReceiver = null; //registered by deferredSetup and unregistered by teardown, while holding setupLock
+    private int setupGeneration = 0; //incremented by teardown, so a deferredSetup that finishes too late knows it has to close what it opened. Guarded by setupLock
+
+    /**
+     * The service while it exists, between onCreate and onDestroy. Only used on the main thread, by restart and widgetsChanged.
+     * Those are plain method calls and not intents because the service is exported (for StatusApi.ACTION_BIND): any app could send it an intent, and each restart resets the limit on scan starts of ScanModeController
+     */
+    private static PodsService instance = null;
+
+    /**
+     * Called by Starter.restartPodsService, on the main thread: if the service is running it tears itself down and sets itself up again, with the new settings, without being destroyed. Otherwise it's started
+     */
+    static void restart(Context context) {
+        if (instance != null) {
+            trace(TraceRing.RESTART, 0, 0);
+            instance.teardown();
+            instance.setup();
+        }
+        context.startService(new Intent(context, PodsService.class));
+    }
+
+    /**
+     * Called by StatusWidget on the main thread, when the first widget is added or the last one is removed. If the service isn't running it's started, and setup checks the widgets
+     */
+    static void widgetsChanged(Context context) {
+        if (instance != null) {
+            try {
+                instance.updateWidgetSubscription();
+            } catch (Throwable t) {
+                metrics.error("widget", t);
+            }
+        } else {
+            context.startService(new Intent(context, PodsService.class));
+        }
+    }
+
+    /**
+     * Called by StatusTile on the main thread, when it starts listening. Its subscription only makes the scanner run if the service is running, so if it isn't (it was killed, or the app wasn't opened since boot), it's started
+     */
+    static void tileListening(Context context) {
+        if (instance == null) context.startService(new Intent(context, PodsService.class));
+    }
+
+    /**
+     * @return how long the last setup took, for StartupTest
+     */
+    static StartupTrace getStartupTrace() {
+        return startupTrace;
+    }
 
     /**
      * When the service is created, we register to get as many bluetooth and airpods related events as possible.
@@ -374,17 +801,41 @@ public class PodsService extends Service {
     @Override
     public void onCreate() {
         super.onCreate();
+        instance = this;
+        setup();
+    }
+
+    /**
+     * Does what's needed to show the first notification as soon as possible: the scanner is set up and started here, on the main thread.
+     * Everything that is a call into the system or does file I/O is deferred to a background thread by deferredSetup: registering the receivers, asking for the profile proxy, opening the files (history and beacon log).
+     * The receivers still get their events on the main thread. How long all this takes is recorded in startupTrace.
+     */
+    private void setup() {
+        startupTrace.start(SystemClock.elapsedRealtimeNanos());
+        SharedPreferences prefs = getSharedPreferences("openpods", MODE_PRIVATE);
+        final boolean recordBeacons = prefs.getBoolean("recordBeacons", false);
+        BluetoothAdapter ba = ((BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE)).getAdapter();
+        scanController = new ScanModeController(createScanner(ba));
+        scanController.setMetrics(metrics);
+        pipeline.setMetrics(metrics);
+        scanController.setBatterySaver(prefs.getBoolean("batterySaver", false));
+        try {
+            scanController.setScreenOn(((PowerManager) getSystemService(Context.POWER_SERVICE)).isInteractive());
+        } catch (Throwable t) {
+        }
         IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction("android.bluetooth.device.action.ACL_CONNECTED");
         intentFilter.addAction("android.bluetooth.device.action.ACL_DISCONNECTED");
         intentFilter.addAction("android.bluetooth.device.action.BOND_STATE_CHANGED");
         intentFilter.addAction("android.bluetooth.device.action.NAME_CHANGED");
+        intentFilter.addAction(BluetoothDevice.ACTION_UUID); //only used to invalidate the classifier
         intentFilter.addAction("android.bluetooth.adapter.action.CONNECTION_STATE_CHANGED");
         intentFilter.addAction("android.bluetooth.adapter.action.STATE_CHANGED");
         intentFilter.addAction("android.bluetooth.headset.profile.action.CONNECTION_STATE_CHANGED");
         intentFilter.addAction("android.bluetooth.headset.action.VENDOR_SPECIFIC_HEADSET_EVENT");
         intentFilter.addAction("android.bluetooth.a2dp.profile.action.CONNECTION_STATE_CHANGED");
         intentFilter.addAction("android.bluetooth.a2dp.profile.action.PLAYING_STATE_CHANGED");
+        intentFilter.addAction(LocationManager.MODE_CHANGED_ACTION); //the notification changes when location is turned on/off
         intentFilter.addCategory("android.bluetooth.headset.intent.category.companyid.76");
         try {
             unregisterReceiver(btReceiver);
@@ -395,115 +846,276 @@ public class PodsService extends Service {
             public void onReceive(Context context, Intent intent) {
                 BluetoothDevice bluetoothDevice = (BluetoothDevice) intent.getParcelableExtra("android.bluetooth.device.extra.DEVICE");
                 String action = intent.getAction();
+                if (action.equals(LocationManager.MODE_CHANGED_ACTION)) {
+                    requestNotificationUpdate();
+                    return;
+                }
                 if (action.equals(BluetoothAdapter.ACTION_STATE_CHANGED)) {
                     int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR);
                     if (state == BluetoothAdapter.STATE_OFF || state == BluetoothAdapter.STATE_TURNING_OFF) { //bluetooth turned off, stop scanner and remove notification
-                        if (ENABLE_LOGGING) Log.d(TAG, "BT OFF");
-                        maybeConnected = false;
+                        trace(TraceRing.BT_OFF, 0, 0);
+                        setConnected(false);
                         stopAirPodsScanner();
-                        recentBeacons.clear();
+                        pipeline.clear();
+                        predictor.clear();
                     }
                     if (state == BluetoothAdapter.STATE_ON) { //bluetooth turned on, start/restart scanner
-                        if (ENABLE_LOGGING) Log.d(TAG, "BT ON");
+                        trace(TraceRing.BT_ON, 0, 0);
                         startAirPodsScanner();
                     }
                 }
+                if (bluetoothDevice != null && (action.equals(BluetoothDevice.ACTION_BOND_STATE_CHANGED) || action.equals(BluetoothDevice.ACTION_NAME_CHANGED) || action.equals(BluetoothDevice.ACTION_UUID))) {
+                    classifier.invalidate(bluetoothDevice); //its UUIDs may have changed
+                }
                 if (bluetoothDevice != null && action != null && !action.isEmpty() && checkUUID(bluetoothDevice)) { //airpods filter
                     if (action.equals(BluetoothDevice.ACTION_ACL_CONNECTED)) { //airpods connected, show notification
-                        if (ENABLE_LOGGING) Log.d(TAG, "ACL CONNECTED");
-                        maybeConnected = true;
+                        trace(TraceRing.ACL_CONNECTED, 0, 0);
+                        setConnected(true);
                     }
-                    if (action.equals(BluetoothDevice.ACTION_ACL_DISCONNECTED) || action.equals(BluetoothDevice.ACTION_ACL_DISCONNECT_REQUESTED)) { //airpods disconnected, remove notification but leave the scanner going
-                        if (ENABLE_LOGGING) Log.d(TAG, "ACL DISCONNECTED");
-                        maybeConnected = false;
-                        recentBeacons.clear();
+                    if (action.equals(BluetoothDevice.ACTION_ACL_DISCONNECTED) || action.equals(BluetoothDevice.ACTION_ACL_DISCONNECT_REQUESTED)) { //airpods disconnected, remove notification. The scanner keeps going only if the tile or the widget need it
+                        trace(TraceRing.ACL_DISCONNECTED, 0, 0);
+                        setConnected(false);
+                        pipeline.clear();
+                        predictor.clear();
+                        publishDisconnected();
                     }
                 }
             }
         };
+        bus.setDemandListener(demandListener);
+        notificationSubscription = bus.subscribe(new StatusBus.Subscriber() {
+            @Override
+            public void onStatus(PodStatus s) {
+                requestNotificationUpdate(); //the NotificationThread reads the status itself, it may be even newer
+            }
+        }, mainDispatcher, NOTIFICATION_MIN_INTERVAL_MS, maybeConnected);
         try {
-            registerReceiver(btReceiver, intentFilter);
+            updateWidgetSubscription();
         } catch (Throwable t) {
+            metrics.error("widget", t);
         }
-        //this BT Profile Proxy allows us to know if airpods are already connected when the app is started. It also fires an event when BT is turned off, in case the BroadcastReceiver doesn't do its job
-        BluetoothAdapter ba = ((BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE)).getAdapter();
-        ba.getProfileProxy(getApplicationContext(), new BluetoothProfile.ServiceListener() {
-            @Override
-            public void onServiceConnected(int i, BluetoothProfile bluetoothProfile) {
-                if (i == BluetoothProfile.HEADSET) {
-                    if (ENABLE_LOGGING) Log.d(TAG, "BT PROXY SERVICE CONNECTED");
-                    BluetoothHeadset h = (BluetoothHeadset) bluetoothProfile;
-                    for (BluetoothDevice d : h.getConnectedDevices()) {
-                        if (checkUUID(d)) {
-                            if (ENABLE_LOGGING) Log.d(TAG, "BT PROXY: AIRPODS ALREADY CONNECTED");
-                            maybeConnected = true;
-                            break;
-                        }
+        remoteSubscription = bus.subscribe(remoteSubscriber, mainDispatcher, StatusApi.LISTENER_MIN_INTERVAL_MS, false); //never active: other apps reading the status don't make us scan
+        if (ba.isEnabled())
+            startAirPodsScanner(); //if BT is already on when the app is started, start the scanner without waiting for an event to happen
+        deferredSetup(ba, intentFilter, recordBeacons);
+        startupTrace.mark(StartupTrace.CREATE_END, SystemClock.elapsedRealtimeNanos());
+        if (ENABLE_LOGGING && startupTrace.get(StartupTrace.CREATE_END) > STARTUP_BUDGET_NS)
+            Log.w(TAG, "Setup took " + startupTrace.get(StartupTrace.CREATE_END) / 1000000 + "ms on the main thread, the budget is " + STARTUP_BUDGET_NS / 1000000 + "ms");
+    }
+
+    /**
+     * @return the scanner that scanController starts and stops. Package private so StatusApiTest can count what the service asks of it
+     */
+    PodsScanner createScanner(BluetoothAdapter ba) {
+        scanner = new LeScanner(ba, getScanFilters(), SCAN_QUEUE_SIZE, scanListener);
+        scanner.setMetrics(metrics);
+        return scanner;
+    }
+
+    /**
+     * This BT Profile Proxy allows us to know if airpods are already connected when the app is started. It also fires an event when BT is turned off, in case the BroadcastReceiver doesn't do its job.
+     * Its events come on the main thread
+     */
+    private final BluetoothProfile.ServiceListener proxyListener = new BluetoothProfile.ServiceListener() {
+        @Override
+        public void onServiceConnected(int i, BluetoothProfile bluetoothProfile) {
+            if (i == BluetoothProfile.HEADSET) {
+                BluetoothHeadset h = (BluetoothHeadset) bluetoothProfile;
+                boolean connected = false;
+                for (BluetoothDevice d : h.getConnectedDevices()) {
+                    if (checkUUID(d)) {
+                        connected = true;
+                        break;
                     }
                 }
+                trace(TraceRing.PROXY_CONNECTED, connected ? 1 : 0, 0);
+                if (connected) setConnected(true);
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(int i) {
+            if (i == BluetoothProfile.HEADSET) {
+                trace(TraceRing.PROXY_DISCONNECTED, 0, 0);
+                setConnected(false);
             }
 
+        }
+    };
+
+    /**
+     * Screen on/off listener, the scan mode depends on whether the screen is on. With battery saver, scanning is suspended while the screen is off.
+     * The initial state is read by setup, so this can wait until the scanner is started. Called by deferredSetup, on its thread
+     */
+    private void registerScreenReceiver() {
+        IntentFilter screenIntentFilter = new IntentFilter();
+        screenIntentFilter.addAction(Intent.ACTION_SCREEN_ON);
+        screenIntentFilter.addAction(Intent.ACTION_SCREEN_OFF);
+        screenReceiver = new BroadcastReceiver() {
             @Override
-            public void onServiceDisconnected(int i) {
-                if (i == BluetoothProfile.HEADSET) {
-                    if (ENABLE_LOGGING) Log.d(TAG, "BT PROXY SERVICE DISCONNECTED ");
-                    maybeConnected = false;
+            public void onReceive(Context context, Intent intent) {
+                if (Intent.ACTION_SCREEN_OFF.equals(intent.getAction())) {
+                    trace(TraceRing.SCREEN_OFF, 0, 0);
+                    scanController.setScreenOn(false);
+                    updateScanMode();
+                } else if (Intent.ACTION_SCREEN_ON.equals(intent.getAction())) {
+                    trace(TraceRing.SCREEN_ON, 0, 0);
+                    scanController.setScreenOn(true);
+                    updateScanMode();
                 }
-
             }
-        }, BluetoothProfile.HEADSET);
-        if (ba.isEnabled())
-            startAirPodsScanner(); //if BT is already on when the app is started, start the scanner without waiting for an event to happen
-        //Screen on/off listener to suspend scanning when the screen is off, to save battery
+        };
         try {
-            unregisterReceiver(screenReceiver);
+            registerReceiver(screenReceiver, screenIntentFilter);
         } catch (Throwable t) {
+            metrics.error("receiver", t);
         }
-        SharedPreferences prefs = getSharedPreferences("openpods", MODE_PRIVATE);
-        if (prefs.getBoolean("batterySaver", false)) {
-            IntentFilter screenIntentFilter = new IntentFilter();
-            screenIntentFilter.addAction(Intent.ACTION_SCREEN_ON);
-            screenIntentFilter.addAction(Intent.ACTION_SCREEN_OFF);
-            screenReceiver = new BroadcastReceiver() {
-                @Override
-                public void onReceive(Context context, Intent intent) {
-                    if (intent.getAction() == Intent.ACTION_SCREEN_OFF) {
-                        if (ENABLE_LOGGING) Log.d(TAG, "SCREEN OFF");
-                        stopAirPodsScanner();
-                    } else if (intent.getAction() == Intent.ACTION_SCREEN_ON) {
-                        if (ENABLE_LOGGING) Log.d(TAG, "SCREEN ON");
-                        BluetoothAdapter ba = ((BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE)).getAdapter();
-                        if (ba.isEnabled()) startAirPodsScanner();
+    }
+
+    /**
+     * On a background thread, registers the bluetooth and screen receivers and asks for the profile proxy, then opens the battery history, and the beacon log if enabled.
+     * These are binder calls and file I/O: none of them is needed to start the scanner, and the profile proxy answers asynchronously anyway.
+     * Status changes that happen before the history is open are not recorded, except the last one.
+     * If the service is stopped or restarted before this is done, nothing more is registered or opened, and what was opened is closed again.
+     *
+     * @param ba       the adapter, for the profile proxy
+     * @param btFilter what btReceiver listens to
+     */
+    private void deferredSetup(final BluetoothAdapter ba, final IntentFilter btFilter, final boolean recordBeacons) {
+        final int generation;
+        synchronized (setupLock) {
+            generation = setupGeneration;
+        }
+        new Thread(TAG + " setup") {
+            @Override
+            public void run() {
+                synchronized (setupLock) {
+                    if (generation != setupGeneration) return; //already torn down
+                    try {
+                        registerReceiver(btReceiver, btFilter);
+                    } catch (Throwable t) {
+                        metrics.error("receiver", t);
+                    }
+                    registerScreenReceiver();
+                    try {
+                        ba.getProfileProxy(getApplicationContext(), proxyListener, BluetoothProfile.HEADSET);
+                    } catch (Throwable t) {
+                        metrics.error("proxy", t);
+                    }
+                    startupTrace.mark(StartupTrace.RECEIVERS_REGISTERED, SystemClock.elapsedRealtimeNanos());
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized (setupLock) {
+                                if (generation != setupGeneration) return;
+                            }
+                            if (ba.isEnabled() != btOn) { //bluetooth was turned on or off while btReceiver wasn't registered yet
+                                if (ba.isEnabled()) startAirPodsScanner();
+                                else stopAirPodsScanner();
+                            }
+                        }
+                    });
+                    try {
+                        history = new BatteryHistory(getFilesDir(), HISTORY_RAW, HISTORY_MINUTES, HISTORY_HOURS);
+                    } catch (Throwable t) {
+                        if (ENABLE_LOGGING) Log.d(TAG, "" + t);
+                        metrics.error("history", t);
+                    }
+                    if (recordBeacons) {
+                        try {
+                            File dir = getExternalFilesDir(null);
+                            beaconLog = new BeaconLog(dir != null ? dir : getFilesDir(), BEACON_LOG_NAME, BEACON_LOG_RECORDS_PER_FILE, BEACON_LOG_FILES);
+                        } catch (Throwable t) {
+                            if (ENABLE_LOGGING) Log.d(TAG, "" + t);
+                            metrics.error("beacon log", t);
+                        }
                     }
                 }
-            };
+                recordHistory(); //the status may have changed while the history was being opened
+                startupTrace.mark(StartupTrace.DEFERRED_SETUP_END, SystemClock.elapsedRealtimeNanos());
+            }
+        }.start();
+    }
+
+    /**
+     * Undoes what setup did. Called by onDestroy, and by restart before setting up again
+     */
+    private void teardown() {
+        bus.setDemandListener(null);
+        mainHandler.removeCallbacks(applyDemand);
+        if (notificationSubscription != null) notificationSubscription.close();
+        if (widgetSubscription != null) widgetSubscription.close();
+        if (remoteSubscription != null) remoteSubscription.close();
+        notificationSubscription = widgetSubscription = remoteSubscription = null;
+        btOn = false;
+        scanController.setEnabled(false);
+        updateScanMode();
+        timers.cancel(staleTimer);
+        timers.cancel(expiryTimer);
+        timers.cancel(scanModeTimer);
+        scheduleTimers();
+        if (ENABLE_LOGGING && scanner != null) Log.d(TAG, "Scanner: " + scanner.getCallbackCount() + " callbacks, " + scanner.getResultCount() + " results, " + scanner.getRejectedCount() + " rejected");
+        if (ENABLE_LOGGING) Log.d(TAG, startupTrace.toString());
+        synchronized (setupLock) { //waits for deferredSetup if it's still registering the receivers or opening the files
+            setupGeneration++;
             try {
-                registerReceiver(screenReceiver, screenIntentFilter);
+                if (btReceiver != null) unregisterReceiver(btReceiver);
             } catch (Throwable t) {
             }
+            try {
+                if (screenReceiver != null) unregisterReceiver(screenReceiver);
+            } catch (Throwable t) {
+            }
+            btReceiver = null;
+            screenReceiver = null;
+            if (history != null) {
+                history.close(); //writes the pending changes
+                history = null;
+            }
+            if (beaconLog != null) {
+                if (ENABLE_LOGGING) Log.d(TAG, "Beacon log: " + beaconLog.getWritten() + " written, " + beaconLog.getDropped() + " dropped");
+                beaconLog.close();
+                beaconLog = null;
+            }
         }
     }
 
+    /**
+     * Called when AirPods connect or disconnect
+     */
+    private void setConnected(boolean connected) {
+        maybeConnected = connected;
+        pipeline.setConnected(connected);
+        requestNotificationUpdate();
+        scanController.setConnected(connected);
+        if (!connected) scanController.resetBeacons();
+        if (notificationSubscription != null) notificationSubscription.setActive(connected); //may start or stop the scanner, see applyDemand
+        updateScanMode();
+    }
+
     private boolean checkUUID(BluetoothDevice bluetoothDevice) {
-        ParcelUuid[] AIRPODS_UUIDS = {
-                ParcelUuid.fromString("74ec2172-0bad-4d01-8f77-997b2be0722a"),
-                ParcelUuid.fromString("2a72e02b-7b99-778f-014d-ad0b7221ec74")
-        };
-        ParcelUuid[] uuids = bluetoothDevice.getUuids();
-        if (uuids == null) return false;
-        for (ParcelUuid u : uuids) {
-            for (ParcelUuid v : AIRPODS_UUIDS) {
-                if (u.equals(v)) return true;
-            }
-        }
-        return false;
+        return classifier.isAirPods(bluetoothDevice);
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
-        if (btReceiver != null) unregisterReceiver(btReceiver);
-        if (screenReceiver != null) unregisterReceiver(screenReceiver);
+        instance = null;
+        teardown();
+        remoteListeners.kill();
+        if (n != null) {
+            n.quit();
+            n = null;
+        }
+    }
+
+    /**
+     * The gauges in the notification depend on the density, the NotificationThread checks it and draws them again if needed
+     */
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        requestNotificationUpdate();
     }
 
     @Override
@@ -511,7 +1123,65 @@ public class PodsService extends Service {
         if (n == null || !n.isAlive()) {
             n = new NotificationThread();
             n.start();
+            n.requestUpdate();
         }
         return START_STICKY;
     }
+
+    /**
+     * Prints what the service is doing, in release builds too: adb shell dumpsys activity service com.dosse.airpods.PodsService
+     * Called on a binder thread, so it only reads things that are thread safe
+     * <p>
+     * Only the last events of the trace are printed, add "trace" to get all of them, or "trace save" to write them to a file in the app's external files directory (so they can be pulled with adb or sent with a bug report)
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter w, String[] args) {
+        if (args != null && args.length > 0 && "trace".equals(args[0])) {
+            if (args.length > 1 && "save".equals(args[1])) {
+                File dir = getExternalFilesDir(null);
+                File f = new File(dir != null ? dir : getFilesDir(), TRACE_FILE_NAME);
+                try {
+                    PrintWriter fw = new PrintWriter(f, "UTF-8");
+                    try {
+                        TraceRing.dump(fw, SystemClock.elapsedRealtimeNanos(), Integer.MAX_VALUE, trace, notificationTrace);
+                    } finally {
+                        fw.close();
+                    }
+                    w.println("Trace saved to " + f.getAbsolutePath());
+                } catch (Throwable t) {
+                    w.println("Can't save the trace: " + t);
+                }
+            } else {
+                TraceRing.dump(w, SystemClock.elapsedRealtimeNanos(), Integer.MAX_VALUE, trace, notificationTrace);
+            }
+            w.flush();
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        w.println("Status: " + status.get() + ", connected " + maybeConnected + ", notification showing " + notificationShowing);
+        startupTrace.dump(w);
+        metrics.dump(w, now);
+        LeScanner s = scanner;
+        if (s != null) w.println("Scanner: " + s.getCallbackCount() + " callbacks, " + s.getResultCount() + " results, " + s.getResultsPerCallback() + " per callback (max " + s.getMaxResultsPerCallback() + "), " + s.getOverwrittenCount() + " overwritten");
+        ScanModeController c = scanController;
+        if (c != null) c.dump(w, now);
+        w.println("Timers: next wakeup " + (timersWakeup == -1 ? "none" : (timersWakeup - now) + "ms"));
+        w.println("Predictions (minutes to empty, + to full): left " + predictor.getMinutes(DrainPredictor.LEFT) + (predictor.isCharging(DrainPredictor.LEFT) ? "+" : "") + ", right " + predictor.getMinutes(DrainPredictor.RIGHT) + (predictor.isCharging(DrainPredictor.RIGHT) ? "+" : "") + ", case " + predictor.getMinutes(DrainPredictor.CASE) + (predictor.isCharging(DrainPredictor.CASE) ? "+" : ""));
+        w.println("Status bus: " + bus.size() + " subscribers, " + bus.getPublished() + " published, " + (bus.hasDemand() ? "someone is looking" : "nobody is looking"));
+        w.println("Clients: " + remoteListeners.getRegisteredCallbackCount() + " listeners, " + clientLimiter.size() + " apps, " + clientLimiter.getAllowed() + " reads, " + clientLimiter.getRejected() + " rate limited");
+        long received = metrics.get(Metrics.BEACONS_RECEIVED), skipped = metrics.get(Metrics.BEACONS_DUPLICATE);
+        w.println("Duplicates: " + skipped + " beacons not decoded, " + (received == 0 ? 0 : skipped * 100 / received) + "% of the beacons received");
+        w.println("Device classifier: " + classifier.size() + " devices, " + classifier.getHits() + " hits, " + classifier.getMisses() + " misses");
+        NotificationThread t = n;
+        if (t != null) {
+            GaugeIconCache g = t.gauges;
+            w.println("Gauges: " + g.getBytes() / 1024 + "KB of " + g.getMaxBytes() / 1024 + "KB, " + g.getHits() + " hits, " + g.getMisses() + " drawn, " + g.getEvictions() + " evicted, " + g.getInvalidations() + " configuration changes");
+        }
+        BatteryHistory h = history;
+        if (h != null) w.println("History: " + h.size(BatteryHistory.RAW) + " changes, " + h.size(BatteryHistory.MINUTES) + " minutes, " + h.size(BatteryHistory.HOURS) + " hours");
+        BeaconLog l = beaconLog;
+        if (l != null) w.println("Beacon log: " + l.getWritten() + " written, " + l.getDropped() + " dropped");
+        TraceRing.dump(w, SystemClock.elapsedRealtimeNanos(), TRACE_DUMP_EVENTS, trace, notificationTrace);
+        w.flush();
+    }
 }
@@ -0,0 +1,100 @@
+package com.dosse.airpods;
+
+/**
+ * Estimates how close each device is, from its noisy rssi, so that DeviceTable can pick our pods reliably.
+ * <p>
+ * The rssi of a single beacon is pretty random (especially with UrbanPods, it easily jumps by 10db), so picking the device with the strongest last beacon makes the notification jump between our pods and someone else's.
+ * Instead, each device has a 1-D Kalman filter on its rssi: the estimate moves towards each new reading, by an amount that depends on how sure we are of the estimate, which grows with the number of readings and decays with the time since the last one.
+ * <p>
+ * The score of a device is its estimated rssi plus a bonus for the beacons that were received while our AirPods were connected (ACL_CONNECTED): a device that stays around all the time while we're using our pods is more likely to be ours.
+ * <p>
+ * All operations are O(1). Entries are indexes, like in DeviceTable. Not thread safe.
+ */
+public final class ProximityEstimator {
+    private static final double MEASUREMENT_VARIANCE = 36; //db², rssi readings are about ±6db
+    private static final double PROCESS_VARIANCE_PER_S = 4; //db²/s, how fast the real rssi can drift when we move
+    private static final double CONNECTED_BONUS_DB = 6; //maximum bonus
+    private static final int CONNECTED_HALF_BEACONS = 20; //the bonus is half of the maximum after this many beacons while connected
+
+    private final double[] estimate, variance;
+    private final long[] lastUpdate;
+    private final int[] connectedBeacons;
+    private boolean connected = false;
+
+    /**
+     * @param capacity maximum number of entries
+     */
+    public ProximityEstimator(int capacity) {
+        estimate = new double[capacity];
+        variance = new double[capacity];
+        lastUpdate = new long[capacity];
+        connectedBeacons = new int[capacity];
+    }
+
+    /**
+     * Starts estimating a new device
+     */
+    public void reset(int e, long timestampNs, int rssi) {
+        estimate[e] = rssi;
+        variance[e] = MEASUREMENT_VARIANCE;
+        lastUpdate[e] = timestampNs;
+        connectedBeacons[e] = connected ? 1 : 0;
+    }
+
+    /**
+     * Adds a reading
+     */
+    public void update(int e, long timestampNs, int rssi) {
+        double dt = Math.max(0, timestampNs - lastUpdate[e]) / 1e9;
+        double p = variance[e] + PROCESS_VARIANCE_PER_S * dt; //predict: the longer since the last reading, the less we trust the estimate
+        double k = p / (p + MEASUREMENT_VARIANCE);
+        estimate[e] += k * (rssi - estimate[e]);
+        variance[e] = (1 - k) * p;
+        lastUpdate[e] = timestampNs;
+        if (connected && connectedBeacons[e] < Integer.MAX_VALUE) connectedBeacons[e]++;
+    }
+
+    /**
+     * Tells the estimator whether our AirPods are connected. When they disconnect, DeviceTable clears the bonus of all devices
+     *
+     * @return true if the value changed
+     */
+    public boolean setConnected(boolean connected) {
+        boolean changed = this.connected != connected;
+        this.connected = connected;
+        return changed;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Forgets the connected bonus of an entry
+     */
+    public void clearBonus(int e) {
+        connectedBeacons[e] = 0;
+    }
+
+    /**
+     * @return the estimated rssi of a device
+     */
+    public double getEstimate(int e) {
+        return estimate[e];
+    }
+
+    /**
+     * @return the variance of the estimate, in db²
+     */
+    public double getVariance(int e) {
+        return variance[e];
+    }
+
+    /**
+     * @return the score of a device: its estimated rssi plus the connected bonus. Higher is closer
+     */
+    public double getScore(int e) {
+        int c = connectedBeacons[e];
+        return estimate[e] + CONNECTED_BONUS_DB * c / (c + CONNECTED_HALF_BEACONS);
+    }
+}
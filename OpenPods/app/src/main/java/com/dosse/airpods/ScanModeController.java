@@ -0,0 +1,324 @@
+package com.dosse.airpods;
+
+import java.io.PrintWriter;
+
+/**
+ * Decides how aggressively we scan for beacons, and applies the decision to a PodsScanner.
+ * <p>
+ * The inputs are:
+ * - whether bluetooth is on (no point in scanning otherwise)
+ * - whether some AirPods are connected (ACL_CONNECTED), if not we just keep an eye out for them in low power mode
+ * - whether a beacon was seen recently, if not we scan harder to get the status as soon as possible
+ * - how stable the decoded levels are, if they don't change for a while there's no need to scan in low latency mode
+ * - whether the screen is on, if it's off nobody is looking at the notification so we can batch results and save battery
+ * - the battery saver option, which stops the scanner when the screen is off and never uses low latency mode
+ * <p>
+ * The controller keeps track of the time spent in each mode and of the last transitions, so we can see how much radio time is saved.
+ * <p>
+ * The controller is the only one that starts and stops the scanner, so there's never more than one scan running. Its state is:
+ * - IDLE: not scanning
+ * - STARTING: startScan was called, but we don't know yet if the scan is running. It becomes SCANNING with the first beacon, or if onScanFailed wasn't called after START_CONFIRM_MS
+ * - SCANNING
+ * - STOPPING: only while stopScan is being called
+ * - ERROR: startScan threw or onScanFailed was called. The scan is started again after a backoff, from RETRY_MIN_MS to RETRY_MAX_MS
+ * Starts are rate limited: a mode change right after a start is delayed by RESTART_DEBOUNCE_MS, so a burst of events (BT on, screen on, AirPods connected...) restarts the scan once.
+ * Also, android silently ignores the scans of apps that start more than 5 of them in 30 seconds, so we never do that.
+ * Stopping is never delayed.
+ * <p>
+ * All methods are synchronized, but they are meant to be called from the main thread. Times are in ms, from any monotonic clock.
+ */
+public class ScanModeController {
+    public static final int MODE_OFF = -1;
+    public static final int STATE_IDLE = 0, STATE_STARTING = 1, STATE_SCANNING = 2, STATE_STOPPING = 3, STATE_ERROR = 4;
+    private static final String[] STATE_NAMES = {"idle", "starting", "scanning", "stopping", "error"};
+    public static final int SCAN_FAILED_ALREADY_STARTED = 1; //same as ScanCallback.SCAN_FAILED_ALREADY_STARTED
+
+    private static final long BEACON_RECENT_MS = 10000; //no beacon for this long means we lost the pods
+    private static final long LEVELS_STABLE_MS = 60000; //levels not changing for this long are considered stable
+    //batching delay when the screen is off. It must stay well below the time after which PodsService shows the status as old (TIMEOUT_CONNECTED, 5s), with room for the time between two beacons, otherwise the status goes old before every batch and fresh again when it arrives, and the notification is posted twice per batch
+    private static final long REPORT_DELAY_SCREEN_OFF_MS = 3000;
+    private static final int HISTORY_SIZE = 32;
+    private static final long START_CONFIRM_MS = 2000; //onScanFailed comes quickly, a scan that didn't fail for this long is running
+    private static final long RESTART_DEBOUNCE_MS = 1000; //minimum time between a start and a restart
+    private static final int MAX_STARTS = 5;
+    private static final long MAX_STARTS_WINDOW_MS = 30000; //android's limit: at most MAX_STARTS starts in MAX_STARTS_WINDOW_MS
+    private static final long RETRY_MIN_MS = 1000, RETRY_MAX_MS = 64000; //backoff after an error
+
+    private final PodsScanner scanner;
+
+    private boolean enabled = false, connected = false, screenOn = true, batterySaver = false;
+    private long lastBeacon = Long.MIN_VALUE / 2, lastLevelsChange = Long.MIN_VALUE / 2;
+
+    private int mode = MODE_OFF;
+    private long reportDelay = 0, modeSince = 0;
+    private final long[] timeInMode = new long[3];
+    private long transitions = 0;
+    private final long[] historyTime = new long[HISTORY_SIZE];
+    private final int[] historyMode = new int[HISTORY_SIZE];
+    private final long[] historyDelay = new long[HISTORY_SIZE];
+    private Metrics metrics = null;
+
+    private int state = STATE_IDLE;
+    private long stateSince = 0, retryAt = 0, retryDelay = RETRY_MIN_MS;
+    private final long[] startTimes = new long[MAX_STARTS]; //ring, the oldest of the last MAX_STARTS starts is at starts % MAX_STARTS
+    private long starts = 0, errors = 0;
+    private String lastError = null;
+
+    public ScanModeController(PodsScanner scanner) {
+        this.scanner = scanner;
+    }
+
+    /**
+     * @param metrics where scanner starts, stops and the time in each mode are also counted, cumulatively across controllers. Can be null
+     */
+    public synchronized void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public synchronized void setConnected(boolean connected) {
+        this.connected = connected;
+    }
+
+    public synchronized void setScreenOn(boolean screenOn) {
+        this.screenOn = screenOn;
+    }
+
+    public synchronized void setBatterySaver(boolean batterySaver) {
+        this.batterySaver = batterySaver;
+    }
+
+    /**
+     * Called for every decoded beacon
+     *
+     * @param now           current time
+     * @param levelsChanged true if the beacon changed the decoded status
+     * @return true if the beacon may change the scan mode and evaluate should be called. Most beacons don't
+     */
+    public synchronized boolean onBeacon(long now, boolean levelsChanged) {
+        if (state == STATE_STARTING) setState(now, STATE_SCANNING);
+        boolean wasRecent = now - lastBeacon < BEACON_RECENT_MS, wasStable = now - lastLevelsChange >= LEVELS_STABLE_MS;
+        lastBeacon = now;
+        if (levelsChanged) lastLevelsChange = now;
+        return mode != MODE_OFF && (!wasRecent || (levelsChanged && wasStable));
+    }
+
+    /**
+     * Forgets the last beacon, for instance when the pods disconnect, so the next time they connect we'll scan fast to get their status
+     */
+    public synchronized void resetBeacons() {
+        lastBeacon = Long.MIN_VALUE / 2;
+        lastLevelsChange = Long.MIN_VALUE / 2;
+    }
+
+    /**
+     * Picks the scan mode for the current conditions and restarts the scanner if it changed. Errors don't escape, they put the controller in STATE_ERROR and the scan is retried later
+     *
+     * @param now current time
+     * @return the time when evaluate should be called again (because the decision may change just because time passed, the scan needs to be confirmed, a start was delayed or will be retried), or -1 if it will only change when one of the inputs changes
+     */
+    public synchronized long evaluate(long now) {
+        int newMode;
+        long newDelay = 0, next = -1;
+        boolean recent = now - lastBeacon < BEACON_RECENT_MS, stable = now - lastLevelsChange >= LEVELS_STABLE_MS;
+        if (!enabled || (batterySaver && !screenOn)) {
+            newMode = MODE_OFF;
+        } else if (!connected) {
+            newMode = PodsScanner.MODE_LOW_POWER;
+        } else if (!recent) {
+            newMode = screenOn ? PodsScanner.MODE_LOW_LATENCY : PodsScanner.MODE_BALANCED;
+        } else if (!screenOn) {
+            newMode = PodsScanner.MODE_LOW_POWER;
+            next = lastBeacon + BEACON_RECENT_MS;
+        } else {
+            newMode = stable ? PodsScanner.MODE_BALANCED : PodsScanner.MODE_LOW_LATENCY;
+            next = stable ? lastBeacon + BEACON_RECENT_MS : Math.min(lastBeacon + BEACON_RECENT_MS, lastLevelsChange + LEVELS_STABLE_MS);
+        }
+        if (batterySaver && newMode == PodsScanner.MODE_LOW_LATENCY) newMode = PodsScanner.MODE_BALANCED;
+        if (newMode != MODE_OFF && !screenOn && scanner.isBatchingSupported()) newDelay = REPORT_DELAY_SCREEN_OFF_MS;
+        if (state == STATE_STARTING) {
+            if (now - stateSince >= START_CONFIRM_MS) setState(now, STATE_SCANNING);
+            else next = earliest(next, stateSince + START_CONFIRM_MS);
+        }
+        if (newMode == mode && newDelay == reportDelay) {
+            if (newMode == MODE_OFF && state == STATE_ERROR) { //we don't want to scan anymore, forget the error
+                setState(now, STATE_IDLE);
+                retryDelay = RETRY_MIN_MS;
+            }
+            return next;
+        }
+        if (newMode == MODE_OFF) {
+            stop(now);
+            if (metrics != null) metrics.increment(Metrics.SCANNER_STOPS);
+            setState(now, STATE_IDLE);
+            return next;
+        }
+        //start or restart, unless it's too soon
+        long startAt = now;
+        if (state == STATE_ERROR) startAt = Math.max(startAt, retryAt);
+        if (mode != MODE_OFF && starts > 0) startAt = Math.max(startAt, startTimes[(int) ((starts - 1) % MAX_STARTS)] + RESTART_DEBOUNCE_MS);
+        if (starts >= MAX_STARTS) startAt = Math.max(startAt, startTimes[(int) (starts % MAX_STARTS)] + MAX_STARTS_WINDOW_MS);
+        if (startAt > now) return earliest(next, startAt);
+        boolean wasScanning = mode != MODE_OFF;
+        if (wasScanning) stop(now);
+        startTimes[(int) (starts % MAX_STARTS)] = now;
+        starts++;
+        try {
+            scanner.startScan(newMode, newDelay);
+        } catch (Throwable t) {
+            fail(now, t.getClass().getSimpleName() + (t.getMessage() != null ? " (" + t.getMessage() + ")" : ""));
+            return earliest(next, retryAt);
+        }
+        setMode(now, newMode, newDelay);
+        setState(now, STATE_STARTING);
+        if (metrics != null) metrics.increment(wasScanning ? Metrics.SCANNER_RESTARTS : Metrics.SCANNER_STARTS);
+        return earliest(next, now + START_CONFIRM_MS);
+    }
+
+    /**
+     * Called when the scanner reports that the scan couldn't be started
+     *
+     * @param now       current time
+     * @param errorCode one of ScanCallback.SCAN_FAILED_*
+     * @return true if the scan was stopped and evaluate should be called, to schedule the retry
+     */
+    public synchronized boolean onScanFailed(long now, int errorCode) {
+        if (errorCode == SCAN_FAILED_ALREADY_STARTED) { //there's only one callback, so the scan that is already running is ours
+            if (state == STATE_STARTING) setState(now, STATE_SCANNING);
+            return false;
+        }
+        if (mode == MODE_OFF) return false; //a scan that we stopped in the meantime
+        stop(now);
+        fail(now, "onScanFailed " + errorCode);
+        return true;
+    }
+
+    private void stop(long now) {
+        if (mode == MODE_OFF) return;
+        setState(now, STATE_STOPPING);
+        scanner.stopScan();
+        setMode(now, MODE_OFF, 0);
+    }
+
+    private void fail(long now, String error) {
+        setState(now, STATE_ERROR);
+        retryAt = now + retryDelay;
+        retryDelay = Math.min(retryDelay * 2, RETRY_MAX_MS);
+        errors++;
+        lastError = error;
+        if (metrics != null) metrics.error("scanner", error);
+    }
+
+    private void setState(long now, int newState) {
+        if (newState == STATE_SCANNING) retryDelay = RETRY_MIN_MS; //it works again
+        state = newState;
+        stateSince = now;
+    }
+
+    private static long earliest(long a, long b) {
+        return a == -1 ? b : b == -1 ? a : Math.min(a, b);
+    }
+
+    private void setMode(long now, int newMode, long newDelay) {
+        if (mode != MODE_OFF) {
+            timeInMode[mode] += now - modeSince;
+            if (metrics != null) metrics.add(Metrics.timeInMode(mode), now - modeSince);
+        }
+        int i = (int) (transitions % HISTORY_SIZE);
+        historyTime[i] = now;
+        historyMode[i] = newMode;
+        historyDelay[i] = newDelay;
+        transitions++;
+        mode = newMode;
+        reportDelay = newDelay;
+        modeSince = now;
+    }
+
+    /**
+     * @return the current scan mode, one of PodsScanner.MODE_* or MODE_OFF
+     */
+    public synchronized int getMode() {
+        return mode;
+    }
+
+    /**
+     * @return the current report delay in ms
+     */
+    public synchronized long getReportDelay() {
+        return reportDelay;
+    }
+
+    /**
+     * @param mode one of PodsScanner.MODE_*
+     * @param now  current time
+     * @return total time spent scanning in this mode, in ms
+     */
+    public synchronized long getTimeInMode(int mode, long now) {
+        return timeInMode[mode] + (this.mode == mode ? now - modeSince : 0);
+    }
+
+    /**
+     * @return the number of mode changes since the controller was created. Stopping the scanner to switch mode counts as a change
+     */
+    public synchronized long getTransitionCount() {
+        return transitions;
+    }
+
+    /**
+     * @return one of the STATE_* constants
+     */
+    public synchronized int getState() {
+        return state;
+    }
+
+    /**
+     * @return number of times startScan was called
+     */
+    public synchronized long getStartCount() {
+        return starts;
+    }
+
+    /**
+     * @return number of times the scan couldn't be started
+     */
+    public synchronized long getErrorCount() {
+        return errors;
+    }
+
+    /**
+     * Prints the time spent in each mode and the last transitions
+     *
+     * @param w   where to print
+     * @param now current time
+     */
+    public synchronized void dump(PrintWriter w, long now) {
+        w.println("Scan mode: " + modeName(mode) + ", report delay " + reportDelay + "ms, " + STATE_NAMES[state] + " since " + (stateSince - now) + "ms");
+        w.println("Starts: " + starts + ", errors: " + errors + (lastError != null ? ", last: " + lastError : "") + (state == STATE_ERROR ? ", retry in " + (retryAt - now) + "ms" : ""));
+        w.println("Time in mode: low power " + getTimeInMode(PodsScanner.MODE_LOW_POWER, now) + "ms, balanced " + getTimeInMode(PodsScanner.MODE_BALANCED, now) + "ms, low latency " + getTimeInMode(PodsScanner.MODE_LOW_LATENCY, now) + "ms");
+        w.println("Transitions: " + transitions);
+        for (long n = Math.max(0, transitions - HISTORY_SIZE); n < transitions; n++) {
+            int i = (int) (n % HISTORY_SIZE);
+            w.println("  " + (historyTime[i] - now) + "ms: " + modeName(historyMode[i]) + ", report delay " + historyDelay[i] + "ms");
+        }
+    }
+
+    public static String stateName(int state) {
+        return STATE_NAMES[state];
+    }
+
+    public static String modeName(int mode) {
+        switch (mode) {
+            case PodsScanner.MODE_LOW_POWER:
+                return "low power";
+            case PodsScanner.MODE_BALANCED:
+                return "balanced";
+            case PodsScanner.MODE_LOW_LATENCY:
+                return "low latency";
+            default:
+                return "off";
+        }
+    }
+}
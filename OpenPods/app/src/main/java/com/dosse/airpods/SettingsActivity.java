@@ -48,7 +48,7 @@ public class SettingsActivity extends PreferenceActivity implements SharedPrefer
 
     @Override
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
-        if(key.equalsIgnoreCase("batterySaver")){
+        if(key.equalsIgnoreCase("batterySaver")||key.equalsIgnoreCase("recordBeacons")){
             Starter.restartPodsService(getApplicationContext());
         }
     }
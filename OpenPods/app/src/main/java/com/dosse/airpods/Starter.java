@@ -20,8 +20,6 @@ public class Starter extends BroadcastReceiver {
     }
 
     public static final void restartPodsService(Context context){
-        context.stopService(new Intent(context, PodsService.class));
-        try{Thread.sleep(500);}catch(Throwable t){}
-        context.startService(new Intent(context, PodsService.class));
+        PodsService.restart(context); //the service restarts itself if it's running, or just starts
     }
 }
@@ -0,0 +1,66 @@
+package com.dosse.airpods;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records how long it takes for the service to get going: from the start of onCreate to the end of onCreate, to the receivers being registered, to the first decoded beacon, and to the first notification.
+ * <p>
+ * Each event is recorded only the first time it happens after start, so calling mark on the hot path costs a volatile read once the event was recorded.
+ * Times are in ns, from any monotonic clock (SystemClock.elapsedRealtimeNanos in the app). Thread safe.
+ */
+public final class StartupTrace {
+    public static final int CREATE_END = 0, SCANNER_STARTED = 1, FIRST_BEACON = 2, FIRST_NOTIFICATION = 3, DEFERRED_SETUP_END = 4, RECEIVERS_REGISTERED = 5;
+    private static final String[] NAMES = {"onCreate", "scanner started", "first beacon", "first notification", "deferred setup", "receivers registered"};
+
+    private volatile long start = 0;
+    private final AtomicLongArray marks = new AtomicLongArray(NAMES.length);
+
+    /**
+     * Forgets all the events and starts measuring again
+     *
+     * @param now current time
+     */
+    public void start(long now) {
+        for (int i = 0; i < NAMES.length; i++) marks.set(i, 0);
+        start = now;
+    }
+
+    /**
+     * Records an event, if it wasn't recorded already
+     *
+     * @param event one of the constants
+     * @param now   current time
+     * @return true if this was the first time
+     */
+    public boolean mark(int event, long now) {
+        if (marks.get(event) != 0) return false;
+        return marks.compareAndSet(event, 0, Math.max(1, now - start));
+    }
+
+    /**
+     * @return ns from start to the event, or -1 if it didn't happen yet
+     */
+    public long get(int event) {
+        long t = marks.get(event);
+        return t == 0 ? -1 : t;
+    }
+
+    public void dump(PrintWriter w) {
+        w.println("Startup:");
+        for (int i = 0; i < NAMES.length; i++) {
+            long t = get(i);
+            w.println("  " + NAMES[i] + ": " + (t == -1 ? "not yet" : (t / 1000000) + "ms"));
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Startup:");
+        for (int i = 0; i < NAMES.length; i++) {
+            long t = get(i);
+            sb.append(' ').append(NAMES[i]).append(' ').append(t == -1 ? "-" : (t / 1000000) + "ms").append(i < NAMES.length - 1 ? "," : "");
+        }
+        return sb.toString();
+    }
+}
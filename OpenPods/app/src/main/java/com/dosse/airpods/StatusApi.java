@@ -0,0 +1,65 @@
+package com.dosse.airpods;
+
+import android.net.Uri;
+import android.os.Bundle;
+
+/**
+ * What other apps can read about the status, without scanning themselves: the same snapshot is served by the bound service (IPodsStatus) and by StatusProvider.
+ * Both require PERMISSION, which is dangerous: apps declare it with uses-permission and ask the user for it at runtime, like automation apps and launcher widgets.
+ * <p>
+ * A snapshot has these keys (Bundle) or columns (Cursor, a single row):
+ * - left, right, case: battery level 0-100, or 255 if disconnected
+ * - last_case: while the case is open, the same as case. While it's closed (case is 255), the level it had in the open-case beacons before it was closed: 255 if it was open for a single beacon, or never since OpenPods started
+ * - charging_left, charging_right, charging_case: 1 if charging
+ * - model: see PodStatus.MODEL_*
+ * - sequence: changes every time the status changes
+ * - last_seen: when the last beacon was received, System.currentTimeMillis
+ * <p>
+ * Each app can read at most CLIENT_BURST snapshots at once, then CLIENT_PER_SECOND per second, see ClientRateLimiter. Over the limit, IPodsStatus.getSnapshot returns the last snapshot that was built, StatusProvider returns null.
+ */
+public final class StatusApi {
+    public static final String ACTION_BIND = "com.dosse.airpods.STATUS";
+    public static final String PERMISSION = "com.dosse.airpods.permission.READ_STATUS";
+    public static final String AUTHORITY = "com.dosse.airpods.status";
+    public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/status");
+
+    public static final String LEFT = "left", RIGHT = "right", CASE = "case", LAST_CASE = "last_case", CHARGING_LEFT = "charging_left", CHARGING_RIGHT = "charging_right", CHARGING_CASE = "charging_case", MODEL = "model", SEQUENCE = "sequence", LAST_SEEN = "last_seen";
+    public static final String[] COLUMNS = {LEFT, RIGHT, CASE, LAST_CASE, CHARGING_LEFT, CHARGING_RIGHT, CHARGING_CASE, MODEL, SEQUENCE, LAST_SEEN};
+
+    static final int CLIENT_BURST = 10;
+    static final double CLIENT_PER_SECOND = 2;
+    static final int MAX_LISTENERS_PER_CLIENT = 4;
+    static final long LISTENER_MIN_INTERVAL_MS = 1000; //listeners and content observers are told about changes at most this often
+
+    private StatusApi() {
+    }
+
+    static Bundle toBundle(PodStatus s, long lastSeen) {
+        Bundle b = new Bundle();
+        b.putInt(LEFT, s.getLeftStatus());
+        b.putInt(RIGHT, s.getRightStatus());
+        b.putInt(CASE, s.getCaseStatus());
+        b.putInt(LAST_CASE, lastCase(s));
+        b.putInt(CHARGING_LEFT, s.isChargingL() ? 1 : 0);
+        b.putInt(CHARGING_RIGHT, s.isChargingR() ? 1 : 0);
+        b.putInt(CHARGING_CASE, s.isChargingCase() ? 1 : 0);
+        b.putInt(MODEL, s.getModel());
+        b.putLong(SEQUENCE, s.getSequence());
+        b.putLong(LAST_SEEN, lastSeen);
+        return b;
+    }
+
+    /**
+     * @return last_case for a status. PodStatus.getLastCaseStatus is the case level of the previous open-case beacon, so it's 255 for the first beacon after the case is opened, while case is valid
+     */
+    static int lastCase(PodStatus s) {
+        return s.getCaseStatus() != PodStatus.DISCONNECTED ? s.getCaseStatus() : s.getLastCaseStatus();
+    }
+
+    /**
+     * @return the snapshot as a row, in the order of COLUMNS
+     */
+    static Object[] toRow(PodStatus s, long lastSeen) {
+        return new Object[]{s.getLeftStatus(), s.getRightStatus(), s.getCaseStatus(), lastCase(s), s.isChargingL() ? 1 : 0, s.isChargingR() ? 1 : 0, s.isChargingCase() ? 1 : 0, s.getModel(), s.getSequence(), lastSeen};
+    }
+}
@@ -0,0 +1,205 @@
+package com.dosse.airpods;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Delivers the status to whoever shows it (the notification, the quick settings tile, the widget...). There's a single producer, the scanner, and any number of subscribers.
+ * <p>
+ * Delivery is conflated: each subscription has a single pending snapshot, a new status replaces it, so a slow subscriber skips the statuses it didn't have time for and only ever sees the latest one. Nothing is queued, publishing is a couple of atomic operations per subscriber.
+ * Each subscription also has its own rate limit: it gets at most one status every minIntervalMs, the first one immediately, then the latest one when the interval is over.
+ * Statuses are delivered with the subscription's Dispatcher, on the subscriber's thread (a Handler on Android).
+ * <p>
+ * The bus also knows whether anyone needs the status right now: a subscription can be active (the tile is visible, the AirPods are connected so there's a notification...) or not. The DemandListener is told when the first subscription becomes active and when the last one stops, the service uses it to run the scanner only while someone is looking.
+ * <p>
+ * Time and threads come in through Clock and Dispatcher, so StatusBusTest drives it with a fake clock and runs the deliveries by hand.
+ * Publishing doesn't lock, it's atomic operations on each subscription, from any thread. Subscribing, closing and changing whether a subscription is active hold the bus' lock, because they update the demand count.
+ */
+public final class StatusBus {
+    public interface Subscriber {
+        /**
+         * Called with the latest status, on the subscription's Dispatcher
+         */
+        void onStatus(PodStatus s);
+    }
+
+    /**
+     * Runs deliveries on the subscriber's thread
+     */
+    public interface Dispatcher {
+        void dispatch(Runnable r, long delayMs);
+    }
+
+    public interface Clock {
+        /**
+         * @return current time in ms, from a monotonic clock
+         */
+        long now();
+    }
+
+    public interface DemandListener {
+        /**
+         * Called when the first subscription becomes active, or the last one stops. It's called while holding the bus' lock, from whoever changed the subscription, so it must be quick (post something to a Handler)
+         */
+        void onDemandChanged(boolean demand);
+    }
+
+    public final class Subscription {
+        private final Subscriber subscriber;
+        private final Dispatcher dispatcher;
+        private final long minIntervalMs;
+        private final AtomicReference<PodStatus> pending = new AtomicReference<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private volatile long lastDelivery = Long.MIN_VALUE / 2;
+        private volatile boolean closed = false;
+        private boolean active; //guarded by the bus
+        private final AtomicLong delivered = new AtomicLong(), conflated = new AtomicLong();
+
+        private Subscription(Subscriber subscriber, Dispatcher dispatcher, long minIntervalMs) {
+            this.subscriber = subscriber;
+            this.dispatcher = dispatcher;
+            this.minIntervalMs = minIntervalMs;
+        }
+
+        private void offer(PodStatus s) {
+            if (closed) return;
+            if (pending.getAndSet(s) != null) conflated.incrementAndGet(); //the previous one was never delivered
+            if (scheduled.compareAndSet(false, true)) dispatcher.dispatch(deliver, Math.max(0, lastDelivery + minIntervalMs - clock.now()));
+        }
+
+        private final Runnable deliver = new Runnable() {
+            @Override
+            public void run() {
+                lastDelivery = clock.now(); //before clearing scheduled, so the next offer waits for the interval
+                scheduled.set(false);
+                PodStatus s = pending.getAndSet(null); //a status published after this is offered again, and scheduled is false so it's dispatched
+                if (s == null || closed) return;
+                delivered.incrementAndGet();
+                subscriber.onStatus(s);
+            }
+        };
+
+        /**
+         * @param active whether the subscriber needs the status right now, see DemandListener
+         */
+        public void setActive(boolean active) {
+            synchronized (StatusBus.this) {
+                if (closed || this.active == active) return;
+                this.active = active;
+                changeDemand(active ? 1 : -1);
+            }
+        }
+
+        public boolean isActive() {
+            synchronized (StatusBus.this) {
+                return active;
+            }
+        }
+
+        /**
+         * Stops the deliveries. A delivery that was already dispatched does nothing
+         */
+        public void close() {
+            synchronized (StatusBus.this) {
+                if (closed) return;
+                setActive(false);
+                closed = true;
+                subscriptions.remove(this);
+            }
+        }
+
+        /**
+         * @return number of statuses delivered
+         */
+        public long getDelivered() {
+            return delivered.get();
+        }
+
+        /**
+         * @return number of statuses that were replaced by a newer one before they could be delivered
+         */
+        public long getConflated() {
+            return conflated.get();
+        }
+    }
+
+    private final Clock clock;
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>(); //subscribing is rare, publishing isn't
+    private final AtomicReference<PodStatus> latest = new AtomicReference<>();
+    private final AtomicLong published = new AtomicLong();
+    private int activeCount = 0; //guarded by this
+    private DemandListener demandListener = null; //guarded by this
+
+    public StatusBus(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Publishes a new status to all the subscribers. Only call it when the status changed
+     */
+    public void publish(PodStatus s) {
+        latest.set(s);
+        published.incrementAndGet();
+        for (Subscription sub : subscriptions) sub.offer(s);
+    }
+
+    /**
+     * @return the last status that was published, or null if there wasn't any
+     */
+    public PodStatus getLatest() {
+        return latest.get();
+    }
+
+    /**
+     * @param subscriber    what to call with the statuses
+     * @param dispatcher    where to call it
+     * @param minIntervalMs minimum time between two deliveries
+     * @param active        whether the subscriber needs the status right now, see Subscription.setActive
+     * @return the subscription, close it when the statuses aren't needed anymore. If a status was already published, it's delivered right away
+     */
+    public Subscription subscribe(Subscriber subscriber, Dispatcher dispatcher, long minIntervalMs, boolean active) {
+        Subscription sub = new Subscription(subscriber, dispatcher, minIntervalMs);
+        subscriptions.add(sub);
+        sub.setActive(active);
+        PodStatus s = latest.get();
+        if (s != null) sub.offer(s);
+        return sub;
+    }
+
+    /**
+     * @return true if at least one subscription is active
+     */
+    public synchronized boolean hasDemand() {
+        return activeCount > 0;
+    }
+
+    /**
+     * @param l who to tell when the demand changes, or null
+     */
+    public synchronized void setDemandListener(DemandListener l) {
+        demandListener = l;
+    }
+
+    /**
+     * @return number of subscriptions
+     */
+    public int size() {
+        return subscriptions.size();
+    }
+
+    /**
+     * @return number of statuses published since the bus was created
+     */
+    public long getPublished() {
+        return published.get();
+    }
+
+    private void changeDemand(int delta) { //called while holding the lock
+        boolean before = activeCount > 0;
+        activeCount += delta;
+        boolean after = activeCount > 0;
+        if (before != after && demandListener != null) demandListener.onDemandChanged(after);
+    }
+}
@@ -0,0 +1,54 @@
+package com.dosse.airpods;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Binder;
+import android.os.Process;
+import android.os.SystemClock;
+
+/**
+ * Read-only provider with the current status, for apps that prefer a query to binding the service: content://com.dosse.airpods.status/status, the columns are in StatusApi.
+ * Reading it requires StatusApi.PERMISSION (see the manifest).
+ * <p>
+ * Queries return the snapshot that's already in memory, they never start a scan. Changes are notified on StatusApi.CONTENT_URI, at most once a second (see PodsService).
+ * An app that queries too often gets null, see ClientRateLimiter.
+ */
+public class StatusProvider extends ContentProvider {
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        int uid = Binder.getCallingUid();
+        if (uid != Process.myUid() && !PodsService.getClientLimiter().tryAcquire(uid, SystemClock.elapsedRealtime())) return null;
+        MatrixCursor c = new MatrixCursor(StatusApi.COLUMNS, 1);
+        c.addRow(StatusApi.toRow(PodsService.getStatus(), PodsService.getLastSeen()));
+        return c;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return "vnd.android.cursor.item/vnd." + StatusApi.AUTHORITY;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("Read only");
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Read only");
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Read only");
+    }
+}
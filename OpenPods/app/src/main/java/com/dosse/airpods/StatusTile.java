@@ -0,0 +1,91 @@
+package com.dosse.airpods;
+
+import android.annotation.TargetApi;
+import android.content.Intent;
+import android.graphics.drawable.Icon;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.service.quicksettings.Tile;
+import android.service.quicksettings.TileService;
+
+/**
+ * Quick settings tile with the battery levels. Tapping it opens the app.
+ * <p>
+ * It's subscribed to the status bus only while it's visible (between onStartListening and onStopListening), and while it is, the scanner runs even if the AirPods are not connected, see PodsService.
+ * The bus is static, so the subscription works even if the service isn't running, but then nothing is published: onStartListening starts the service, like StatusWidget does when a widget is added.
+ * When no beacon was received for PodsService.TIMEOUT_CONNECTED ms the tile is greyed out but keeps the last levels, like the notification marks them as old. The bus only delivers changes, so the tile sets its own timer for that.
+ */
+@TargetApi(Build.VERSION_CODES.N)
+public class StatusTile extends TileService {
+    private static final long MIN_INTERVAL_MS = 1000;
+    private static final long OLD_MARGIN_MS = 50; //so the status is old when checkOld runs
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private StatusBus.Subscription subscription = null;
+
+    @Override
+    public void onStartListening() {
+        if (subscription != null) subscription.close();
+        subscription = PodsService.getBus().subscribe(new StatusBus.Subscriber() {
+            @Override
+            public void onStatus(PodStatus s) {
+                show(s);
+            }
+        }, new StatusBus.Dispatcher() {
+            @Override
+            public void dispatch(Runnable r, long delayMs) {
+                handler.postDelayed(r, delayMs);
+            }
+        }, MIN_INTERVAL_MS, true);
+        if (PodsService.getBus().getLatest() == null) show(PodStatus.UNKNOWN);
+        try {
+            PodsService.tileListening(this);
+        } catch (Throwable t) { //android may not let us start it now, it will see the subscription when it's set up
+        }
+    }
+
+    @Override
+    public void onStopListening() {
+        if (subscription != null) subscription.close();
+        subscription = null;
+        handler.removeCallbacks(checkOld);
+    }
+
+    private final Runnable checkOld = new Runnable() {
+        @Override
+        public void run() {
+            PodStatus s = PodsService.getBus().getLatest();
+            if (s != null) show(s);
+        }
+    };
+
+    @Override
+    public void onClick() {
+        startActivityAndCollapse(new Intent(this, MainActivity.class).addFlags(Intent.FLAG_ACTIVITY_NEW_TASK));
+    }
+
+    private void show(PodStatus s) {
+        Tile tile = getQsTile();
+        if (tile == null || subscription == null) return; //not listening anymore
+        boolean connected = s.getLeftStatus() != PodStatus.DISCONNECTED || s.getRightStatus() != PodStatus.DISCONNECTED || s.getCaseStatus() != PodStatus.DISCONNECTED;
+        long age = System.currentTimeMillis() - PodsService.getLastSeen();
+        boolean old = age >= PodsService.TIMEOUT_CONNECTED;
+        handler.removeCallbacks(checkOld);
+        if (connected && !old) handler.postDelayed(checkOld, PodsService.TIMEOUT_CONNECTED - age + OLD_MARGIN_MS);
+        String levels = connected ? format("L", s.getLeftStatus()) + " " + format("R", s.getRightStatus()) + " " + format("C", s.getLastCaseStatus()) : null;
+        tile.setIcon(Icon.createWithResource(this, R.mipmap.notification_icon));
+        tile.setState(connected && !old ? Tile.STATE_ACTIVE : Tile.STATE_INACTIVE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            tile.setLabel(getString(R.string.app_name));
+            tile.setSubtitle(levels);
+        } else {
+            tile.setLabel(levels != null ? levels : getString(R.string.app_name)); //no subtitle before Q
+        }
+        tile.updateTile();
+    }
+
+    private static String format(String component, int level) {
+        return component + " " + (level == PodStatus.DISCONNECTED ? "-" : level + "%");
+    }
+}
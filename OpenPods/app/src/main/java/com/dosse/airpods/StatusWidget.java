@@ -0,0 +1,75 @@
+package com.dosse.airpods;
+
+import android.appwidget.AppWidgetManager;
+import android.appwidget.AppWidgetProvider;
+import android.content.ComponentName;
+import android.content.Context;
+import android.view.View;
+import android.widget.RemoteViews;
+
+/**
+ * Home screen widget with the status, same layout as the small notification.
+ * <p>
+ * It's updated by PodsService, which subscribes it to the status bus while there's at least one widget (see PodsService.updateWidgetSubscription), with a rate limit because every update redraws the home screen.
+ * The widget doesn't ask android for periodic updates, onUpdate is only called when a widget is added.
+ */
+public class StatusWidget extends AppWidgetProvider {
+
+    @Override
+    public void onUpdate(Context context, AppWidgetManager manager, int[] ids) {
+        PodStatus s = PodsService.getBus().getLatest();
+        manager.updateAppWidget(ids, render(context, s != null ? s : PodStatus.UNKNOWN));
+    }
+
+    @Override
+    public void onEnabled(Context context) {
+        widgetsChanged(context);
+    }
+
+    @Override
+    public void onDisabled(Context context) {
+        widgetsChanged(context);
+    }
+
+    /**
+     * Tells the service to subscribe or unsubscribe the widget. If it can't be started now (android doesn't let apps in the background start services), it will check when it's set up again
+     */
+    private static void widgetsChanged(Context context) {
+        try {
+            PodsService.widgetsChanged(context);
+        } catch (Throwable t) {
+        }
+    }
+
+    /**
+     * @return true if there's at least one widget on the home screen
+     */
+    public static boolean hasWidgets(Context context) {
+        int[] ids = AppWidgetManager.getInstance(context).getAppWidgetIds(new ComponentName(context, StatusWidget.class));
+        return ids != null && ids.length > 0;
+    }
+
+    /**
+     * Shows a status in all the widgets
+     */
+    public static void update(Context context, PodStatus s) {
+        AppWidgetManager.getInstance(context).updateAppWidget(new ComponentName(context, StatusWidget.class), render(context, s));
+    }
+
+    private static RemoteViews render(Context context, PodStatus s) {
+        RemoteViews v = new RemoteViews(context.getPackageName(), R.layout.status_small);
+        ModelDrawables d = ModelDrawables.forModel(s.getModel());
+        if (d != null) {
+            v.setImageViewResource(R.id.leftPodImg, s.getLeftStatus() != PodStatus.DISCONNECTED ? d.leftPod : d.leftPodDisconnected);
+            v.setImageViewResource(R.id.rightPodImg, s.getRightStatus() != PodStatus.DISCONNECTED ? d.rightPod : d.rightPodDisconnected);
+            v.setImageViewResource(R.id.podCaseImg, s.getCaseStatus() != PodStatus.DISCONNECTED ? d.podCase : d.podCaseDisconnected);
+        }
+        v.setTextViewText(R.id.leftPodText, s.getLeftStatus() == PodStatus.DISCONNECTED ? "-" : s.getLeftStatus() + " %");
+        v.setTextViewText(R.id.rightPodText, s.getRightStatus() == PodStatus.DISCONNECTED ? "-" : s.getRightStatus() + " %");
+        v.setTextViewText(R.id.podCaseText, s.getLastCaseStatus() == PodStatus.DISCONNECTED ? "N/C" : s.getLastCaseStatus() + " %");
+        boolean connected = s.getLeftStatus() != PodStatus.DISCONNECTED || s.getRightStatus() != PodStatus.DISCONNECTED || s.getCaseStatus() != PodStatus.DISCONNECTED;
+        boolean old = System.currentTimeMillis() - PodsService.getLastSeen() >= PodsService.TIMEOUT_CONNECTED; //PodsService renders it again when it gets old, see staleTimer
+        v.setViewVisibility(R.id.value_old_tv, connected && old ? View.VISIBLE : View.INVISIBLE);
+        return v;
+    }
+}
@@ -0,0 +1,189 @@
+package com.dosse.airpods;
+
+/**
+ * Deadlines of the service (scan mode changes, old status in the notification, devices going away...), in a hashed timer wheel.
+ * <p>
+ * The wheel has a power of 2 number of slots, each one is a tick of tickMs. A timer goes in the slot of its deadline (deadline / tickMs, modulo the number of slots), in a doubly linked list, so scheduling and cancelling are O(1).
+ * Deadlines further than a full turn just stay in their slot for more turns, they're skipped until their time comes.
+ * advance runs the timers whose deadline passed, nextDeadline tells when to call it again: there's no polling, whoever drives the wheel sleeps until the next deadline, or forever if there are no timers.
+ * <p>
+ * Timers are allocated once with newTimer and reused, so rescheduling doesn't allocate anything.
+ * Times are in ms, from any monotonic clock, so it can be driven by a virtual clock in tests.
+ * <p>
+ * Not thread safe, everything must be done on the thread that drives the wheel (the main thread in PodsService).
+ */
+public final class TimerWheel {
+    /**
+     * A deadline and what to do when it passes
+     */
+    public static final class Timer {
+        private final Runnable task;
+        private long deadline;
+        private int slot = -1;
+        private Timer prev, next;
+
+        private Timer(Runnable task) {
+            this.task = task;
+        }
+
+        public boolean isScheduled() {
+            return slot != -1;
+        }
+
+        /**
+         * @return when the timer will run, if it's scheduled
+         */
+        public long getDeadline() {
+            return deadline;
+        }
+    }
+
+    private final long tickMs;
+    private final Timer[] slots;
+    private final int mask;
+    private long currentTick; //all the ticks before this one were processed
+    private int count = 0;
+    private long earliest = -1; //cached nextDeadline, -1 if there are no timers
+    private boolean earliestValid = true;
+    private long fired = 0;
+
+    /**
+     * @param tickMs resolution, timers run at most tickMs after their deadline (plus how late advance is called)
+     * @param slots  number of slots, rounded up to a power of 2. slots * tickMs should be longer than most deadlines
+     * @param now    current time
+     */
+    public TimerWheel(long tickMs, int slots, long now) {
+        if (tickMs <= 0 || slots <= 0) throw new IllegalArgumentException("tickMs and slots must be positive");
+        this.tickMs = tickMs;
+        int n = Integer.highestOneBit(slots);
+        if (n < slots) n <<= 1;
+        this.slots = new Timer[n];
+        mask = n - 1;
+        currentTick = now / tickMs;
+    }
+
+    public Timer newTimer(Runnable task) {
+        return new Timer(task);
+    }
+
+    /**
+     * Schedules a timer, or moves it if it was already scheduled
+     *
+     * @param deadline when it should run. If it's in the past, it runs at the next advance
+     */
+    public void schedule(Timer t, long deadline) {
+        if (t.slot != -1) unlink(t);
+        t.deadline = deadline;
+        long tick = Math.max(deadline / tickMs, currentTick); //what's late goes in the next slot to be processed
+        t.slot = (int) (tick & mask);
+        t.prev = null;
+        t.next = slots[t.slot];
+        if (t.next != null) t.next.prev = t;
+        slots[t.slot] = t;
+        count++;
+        if (earliestValid && (earliest == -1 || deadline < earliest)) earliest = deadline;
+    }
+
+    /**
+     * Schedules a timer, unless it's already scheduled to run earlier
+     */
+    public void scheduleIfEarlier(Timer t, long deadline) {
+        if (t.slot == -1 || deadline < t.deadline) schedule(t, deadline);
+    }
+
+    public void cancel(Timer t) {
+        if (t.slot != -1) unlink(t);
+    }
+
+    private void unlink(Timer t) {
+        if (t.prev != null) t.prev.next = t.next;
+        else slots[t.slot] = t.next;
+        if (t.next != null) t.next.prev = t.prev;
+        t.prev = t.next = null;
+        t.slot = -1;
+        count--;
+        if (t.deadline == earliest) earliestValid = false;
+    }
+
+    /**
+     * Runs the timers whose deadline is now or earlier. A timer can reschedule itself or others while it runs, but not at now or earlier over and over, that would never end
+     *
+     * @param now current time
+     * @return number of timers that ran
+     */
+    public int advance(long now) {
+        long nowTick = now / tickMs;
+        int ran = 0;
+        //at most one full turn, after that every slot was visited
+        long last = Math.min(nowTick, currentTick + slots.length - 1);
+        for (long tick = currentTick; tick <= last && count > 0; tick++) {
+            Timer t = slots[(int) (tick & mask)];
+            while (t != null) {
+                Timer next = t.next;
+                if (t.deadline <= now) {
+                    unlink(t);
+                    ran++;
+                    fired++;
+                    t.task.run(); //may schedule timers in this slot, they're either in the future or visited when we get back to it
+                    next = slots[(int) (tick & mask)]; //the list may have changed, start over, what's left is in the future
+                    while (next != null && next.deadline > now) next = next.next;
+                }
+                t = next;
+            }
+        }
+        currentTick = nowTick;
+        //timers that were scheduled in the past by the timers that ran can be in a slot we already visited, look for them until there are none left. It's rare, they're normally scheduled in the future
+        while (count > 0 && nextDeadline() <= now) ran += runLate(now);
+        return ran;
+    }
+
+    private int runLate(long now) {
+        int ran = 0;
+        for (int i = 0; i < slots.length; i++) {
+            Timer t = slots[i];
+            while (t != null) {
+                Timer next = t.next;
+                if (t.deadline <= now) {
+                    unlink(t);
+                    ran++;
+                    fired++;
+                    t.task.run();
+                    next = slots[i];
+                    while (next != null && next.deadline > now) next = next.next;
+                }
+                t = next;
+            }
+        }
+        return ran;
+    }
+
+    /**
+     * @return the earliest deadline, or -1 if there are no timers. When nothing changed since the last call it's O(1), otherwise it looks at all the timers
+     */
+    public long nextDeadline() {
+        if (!earliestValid) {
+            earliest = -1;
+            for (Timer s : slots) {
+                for (Timer t = s; t != null; t = t.next) {
+                    if (earliest == -1 || t.deadline < earliest) earliest = t.deadline;
+                }
+            }
+            earliestValid = true;
+        }
+        return earliest;
+    }
+
+    /**
+     * @return number of scheduled timers
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return number of timers that ran since the wheel was created
+     */
+    public long getFiredCount() {
+        return fired;
+    }
+}
@@ -0,0 +1,201 @@
+package com.dosse.airpods;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The last things the service did, always on, in release builds too, so we can see what happened on a phone with a problem: adb shell dumpsys activity service com.dosse.airpods.PodsService trace
+ * <p>
+ * Each record is an event code, 2 numbers whose meaning depends on the event, and a timestamp. Nothing is formatted when recording, the names and the strings are only made by dump.
+ * The records are in a ring of fixed size, the oldest ones are overwritten, so recording doesn't allocate anything and the memory used never changes.
+ * <p>
+ * A ring has a single writer, that doesn't take any lock: it claims the next record, writes it, then moves the head, all with ordered stores (lazySet), which are cheap.
+ * Readers (dump, on a binder thread) can run at the same time: they read the head, the records, and what was claimed, the records the writer may have overwritten in the meantime are thrown away.
+ * Each thread that records events has its own ring, dump merges them by time.
+ * <p>
+ * Times are in ns, from any monotonic clock (SystemClock.elapsedRealtimeNanos in the app).
+ */
+public final class TraceRing {
+    //events, the comments say what the 2 numbers are
+    public static final int SCAN_CALLBACK = 0, //beacons in the callback, 1 if one of them was decoded
+            SELECTED = 1, //address of the device that is now selected, its estimated rssi
+            STATUS = 2, //new status (packed, see PodStatus), its sequence number
+            NOTIFICATION_POSTED = 3, //sequence number of the status, 1 if the values are fresh
+            NOTIFICATION_REMOVED = 4,
+            SCANNER_START = 5,
+            SCANNER_STOP = 6,
+            SCAN_MODE = 7, //mode, state (see ScanModeController)
+            SCAN_FAILED = 8, //error code
+            BT_ON = 9,
+            BT_OFF = 10,
+            ACL_CONNECTED = 11,
+            ACL_DISCONNECTED = 12,
+            SCREEN_ON = 13,
+            SCREEN_OFF = 14,
+            PROXY_CONNECTED = 15, //1 if our AirPods were already connected
+            PROXY_DISCONNECTED = 16,
+            DEMAND = 17, //1 if someone needs the status
+            RESTART = 18;
+    private static final String[] NAMES = {"scan callback", "selected", "status", "notification posted", "notification removed",
+            "scanner start", "scanner stop", "scan mode", "scan failed",
+            "bt on", "bt off", "acl connected", "acl disconnected", "screen on", "screen off", "proxy connected", "proxy disconnected",
+            "demand", "restart"};
+
+    public static final int FIELDS = 4; //longs per record: time, event, a, b
+
+    private final String name;
+    private final int mask;
+    private final AtomicLongArray records;
+    private final AtomicLong head = new AtomicLong(); //index of the next record, all the ones before are complete
+    private final AtomicLong claimed = new AtomicLong(); //index after the record being written, the writer may be overwriting the ones before claimed - capacity
+
+    /**
+     * @param name     name of the thread that writes in it, for dump
+     * @param capacity number of records, rounded up to a power of 2
+     */
+    public TraceRing(String name, int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+        int n = Integer.highestOneBit(capacity);
+        if (n < capacity) n <<= 1;
+        this.name = name;
+        mask = n - 1;
+        records = new AtomicLongArray(n * FIELDS);
+    }
+
+    /**
+     * Records an event. Only call it from the thread that owns this ring
+     *
+     * @param now   current time in ns
+     * @param event one of the constants
+     */
+    public void record(long now, int event, long a, long b) {
+        //every store is ordered after the previous ones, so a reader that sees a field of record i sees claimed > i afterwards
+        long i = head.get();
+        int r = (int) (i & mask) * FIELDS;
+        claimed.lazySet(i + 1);
+        records.lazySet(r, now);
+        records.lazySet(r + 1, event);
+        records.lazySet(r + 2, a);
+        records.lazySet(r + 3, b);
+        head.lazySet(i + 1);
+    }
+
+    public void record(long now, int event) {
+        record(now, event, 0, 0);
+    }
+
+    /**
+     * @return number of events recorded since the ring was created, including the ones that were overwritten
+     */
+    public long getRecorded() {
+        return head.get();
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Copies the records that are in the ring, oldest first. Can be called from any thread, while the writer is recording
+     *
+     * @param out where the records are copied, FIELDS longs per record, at least getCapacity() records
+     * @return number of complete records copied
+     */
+    public int snapshot(long[] out) {
+        long end = head.get(), start = Math.max(0, end - (mask + 1));
+        for (long i = start; i < end; i++) {
+            int r = (int) (i & mask) * FIELDS, o = (int) (i - start) * FIELDS;
+            for (int f = 0; f < FIELDS; f++) out[o + f] = records.get(r + f);
+        }
+        //the writer may have overwritten the oldest ones while we were copying, all of them if it recorded more than a full ring
+        long valid = Math.max(start, claimed.get() - (mask + 1));
+        if (valid >= end) return 0;
+        int n = (int) (end - valid);
+        if (valid > start) System.arraycopy(out, (int) (valid - start) * FIELDS, out, 0, n * FIELDS);
+        return n;
+    }
+
+    /**
+     * Prints the events of several rings, merged by time, oldest first
+     *
+     * @param now   current time in ns, times are printed relative to it
+     * @param limit maximum number of events, the most recent ones are printed
+     */
+    public static void dump(PrintWriter w, long now, int limit, TraceRing... rings) {
+        long[][] snapshots = new long[rings.length][];
+        int[] sizes = new int[rings.length], positions = new int[rings.length];
+        int total = 0;
+        for (int i = 0; i < rings.length; i++) {
+            snapshots[i] = new long[rings[i].getCapacity() * FIELDS];
+            sizes[i] = rings[i].snapshot(snapshots[i]);
+            total += sizes[i];
+        }
+        int skip = Math.max(0, total - limit);
+        w.println("Trace: " + Math.min(total, limit) + " events (" + total + " in memory)");
+        for (int k = 0; k < total; k++) {
+            int best = -1;
+            for (int i = 0; i < rings.length; i++) {
+                if (positions[i] < sizes[i] && (best == -1 || snapshots[i][positions[i] * FIELDS] < snapshots[best][positions[best] * FIELDS])) best = i;
+            }
+            int o = positions[best]++ * FIELDS;
+            if (k < skip) continue;
+            long[] s = snapshots[best];
+            w.println("  " + format(now, rings[best].name, s[o], (int) s[o + 1], s[o + 2], s[o + 3]));
+        }
+    }
+
+    private static String format(long now, String thread, long time, int event, long a, long b) {
+        String what = event >= 0 && event < NAMES.length ? NAMES[event] : "event " + event;
+        switch (event) {
+            case SCAN_CALLBACK:
+                what += " " + a + " beacons" + (b == 1 ? ", decoded" : "");
+                break;
+            case SELECTED:
+                what += a == DeviceTable.NO_ADDRESS ? " nothing" : " " + formatAddress(a) + ", " + b + "db";
+                break;
+            case STATUS:
+                what += " " + new PodStatus(a, b);
+                break;
+            case NOTIFICATION_POSTED:
+                what += ", status " + a + (b == 1 ? "" : ", old values");
+                break;
+            case SCAN_MODE:
+                what += " " + ScanModeController.modeName((int) a) + ", " + ScanModeController.stateName((int) b);
+                break;
+            case SCAN_FAILED:
+                what += " " + a;
+                break;
+            case PROXY_CONNECTED:
+                if (a == 1) what += ", airpods already connected";
+                break;
+            case DEMAND:
+                what += a == 1 ? ", someone is looking" : ", nobody is looking";
+                break;
+            case NOTIFICATION_REMOVED:
+            case SCANNER_START:
+            case SCANNER_STOP:
+            case BT_ON:
+            case BT_OFF:
+            case ACL_CONNECTED:
+            case ACL_DISCONNECTED:
+            case SCREEN_ON:
+            case SCREEN_OFF:
+            case PROXY_DISCONNECTED:
+            case RESTART:
+                break;
+            default:
+                what += " " + a + " " + b;
+        }
+        return String.format("%10.3fs", (time - now) / 1e9) + " " + thread + ": " + what;
+    }
+
+    private static String formatAddress(long a) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 5; i >= 0; i--) {
+            sb.append(String.format("%02X", (a >>> (i * 8)) & 0xFF));
+            if (i > 0) sb.append(':');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,74 @@
+package com.dosse.airpods;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Flushing and compacting of BatteryHistory, in a temporary folder
+ */
+public class BatteryHistoryTest {
+    private static final long DAY_MS = 86400000L;
+    private static final String[] FILES = {"history_raw.bin", "history_minutes.bin", "history_hours.bin"};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static long status(int level) {
+        return PodStatus.pack(level, level, level, PodStatus.DISCONNECTED, false, false, false, PodStatus.MODEL_AIRPODS_NORMAL);
+    }
+
+    @Test
+    public void changesAreKeptAfterReopening() throws IOException {
+        long now = System.currentTimeMillis();
+        BatteryHistory h = new BatteryHistory(folder.getRoot(), 100, 100, 100);
+        h.record(now - 2000, status(90));
+        h.record(now - 1000, status(80));
+        h.close();
+        h = new BatteryHistory(folder.getRoot(), 100, 100, 100);
+        BatteryHistory.Bucket[] out = new BatteryHistory.Bucket[10];
+        assertEquals(2, h.query(BatteryHistory.RAW, 0, Long.MAX_VALUE, out));
+        assertEquals(80, out[1].lastL);
+        h.close();
+    }
+
+    @Test
+    public void oldChangesAreCompacted() throws IOException {
+        long now = System.currentTimeMillis();
+        BatteryHistory h = new BatteryHistory(folder.getRoot(), 100, 100, 100);
+        h.record(now - 2 * DAY_MS, status(90));
+        h.record(now - 2 * DAY_MS + 10, status(80));
+        h.record(now, status(70));
+        h.flush();
+        assertEquals(1, h.size(BatteryHistory.RAW));
+        assertEquals(1, h.size(BatteryHistory.MINUTES));
+        BatteryHistory.Bucket[] out = new BatteryHistory.Bucket[10];
+        assertEquals(1, h.query(BatteryHistory.MINUTES, 0, Long.MAX_VALUE, out));
+        assertEquals(2, out[0].count);
+        assertEquals(80, out[0].minL);
+        assertEquals(90, out[0].maxL);
+        h.close();
+    }
+
+    @Test
+    public void flushWithNothingToDoDoesNotWrite() throws IOException {
+        BatteryHistory h = new BatteryHistory(folder.getRoot(), 100, 100, 100);
+        h.record(System.currentTimeMillis(), status(50));
+        h.flush();
+        for (String f : FILES) new File(folder.getRoot(), f).setLastModified(0);
+        h.flush(); //nothing pending, nothing old enough to compact
+        BatteryHistory.Bucket[] out = new BatteryHistory.Bucket[10];
+        assertEquals(1, h.query(BatteryHistory.RAW, 0, Long.MAX_VALUE, out)); //query flushes too
+        for (String f : FILES) assertEquals(f + " was written", 0, new File(folder.getRoot(), f).lastModified());
+        h.record(System.currentTimeMillis(), status(40));
+        h.flush();
+        assertEquals("only the ring that changed is written", 0, new File(folder.getRoot(), FILES[BatteryHistory.MINUTES]).lastModified());
+        assertEquals(0, new File(folder.getRoot(), FILES[BatteryHistory.HOURS]).lastModified());
+        h.close();
+    }
+}
@@ -0,0 +1,151 @@
+package com.dosse.airpods;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Decodes the captures in UPods RE.md, and beacons of genuine AirPods built from the known format, and checks the model, levels and charging flags.
+ * <p>
+ * Remember that for UrbanPods byte 12 is the right pod and byte 13 is the left one. The first bit of a pod's byte says it's there, none of the captures has a pod charging (NC).
+ */
+public class BeaconDecoderTest {
+    //the two full captures in UPods RE.md (manufacturer data n°76, without the 4C 00 company id)
+    static final byte[] CAPTURE_FULL = bytes("07 19 01 02 20 55 AA 58 33 00 00 D7 E4 E4 38 48 20 80 40 A7 4F E2 C2 08 21 07 41");
+    static final byte[] CAPTURE_HALF = bytes("07 19 01 02 20 55 AA 58 33 00 00 D7 B2 BC 07 48 20 80 40 A7 4F 3E C2 08 21 07 41");
+
+    @Test
+    public void fullCapture() {
+        assertDecoded(CAPTURE_FULL, 100, 100, 56, false, false, false);
+    }
+
+    @Test
+    public void halfCapture() {
+        assertDecoded(CAPTURE_HALF, 60, 50, 7, false, false, false);
+    }
+
+    //rows of the table at the end of UPods RE.md, bytes 12, 13, 14 applied to the full capture (byte 21 is not decoded)
+
+    @Test
+    public void airpodsFullCaseNotEmptyNotFull() {
+        assertDecoded(row("E4 E4 38"), 100, 100, 56, false, false, false);
+    }
+
+    @Test
+    public void airpodsNotFullCaseEmpty() {
+        assertDecoded(row("B2 BC 07"), 60, 50, 7, false, false, false);
+    }
+
+    @Test
+    public void noRightAirpod() {
+        assertDecoded(row("28 BC 06"), 60, PodStatus.DISCONNECTED, 6, false, false, false); //28 is the last level of the right pod (40), without the first bit
+    }
+
+    @Test
+    public void noLeftAirpod() {
+        assertDecoded(row("B2 32 06"), PodStatus.DISCONNECTED, 50, 6, false, false, false);
+    }
+
+    @Test
+    public void noLeftRightAirpod() {
+        assertDecoded(row("28 32 FF"), PodStatus.DISCONNECTED, PodStatus.DISCONNECTED, PodStatus.DISCONNECTED, false, false, false);
+    }
+
+    @Test
+    public void caseChargingWithAirpods() {
+        assertDecoded(row("A8 B2 B7"), 50, 40, 55, false, false, true);
+    }
+
+    @Test
+    public void allCharged() {
+        assertDecoded(row("E4 E4 5B"), 100, 100, 91, false, false, false);
+    }
+
+    @Test
+    public void unknownModelIsDecodedLikeAClone() {
+        byte[] data = CAPTURE_FULL.clone();
+        data[3] = 0x13;
+        assertDecoded(data, 100, 100, 56, false, false, false);
+    }
+
+    //genuine AirPods: levels in the nibbles of byte 6, case in the low nibble of byte 7, charging flags in the high nibble of byte 7
+
+    @Test
+    public void pro() {
+        assertDecoded(genuine(0x0E, false, 0x7A, 0x53), PodStatus.MODEL_AIRPODS_PRO, 100, 75, 35, true, false, true);
+    }
+
+    @Test
+    public void proFlipped() {
+        assertDecoded(genuine(0x0E, true, 0x7A, 0x53), PodStatus.MODEL_AIRPODS_PRO, 75, 100, 35, false, true, true);
+    }
+
+    @Test
+    public void airpods2Disconnected() {
+        assertDecoded(genuine(0x0F, false, 0xFF, 0x0F), PodStatus.MODEL_AIRPODS_NORMAL, PodStatus.DISCONNECTED, PodStatus.DISCONNECTED, PodStatus.DISCONNECTED, false, false, false);
+    }
+
+    @Test
+    public void airpods2Empty() {
+        assertDecoded(genuine(0x0F, false, 0x00, 0x30), PodStatus.MODEL_AIRPODS_NORMAL, 5, 5, 5, true, true, false);
+    }
+
+    @Test
+    public void registryKnowsThePro() {
+        assertNotNull(PodsModel.forId(0x0E20));
+        assertEquals(PodStatus.MODEL_AIRPODS_PRO, PodsModel.forId(0x0E20).model);
+    }
+
+    @Test
+    public void rejectsWrongLength() {
+        BeaconDecoder.Result r = new BeaconDecoder.Result();
+        assertFalse(BeaconDecoder.decode(bytes("10 05 0B 1C 8F 21 3D"), r));
+        assertFalse(BeaconDecoder.decode(null, r));
+        assertEquals("a rejected beacon leaves the result untouched", BeaconDecoder.DISCONNECTED, r.leftStatus);
+    }
+
+    static byte[] row(String bytes12to14) {
+        byte[] data = CAPTURE_FULL.clone();
+        byte[] b = bytes(bytes12to14);
+        data[12] = b[0];
+        data[13] = b[1];
+        data[14] = b[2];
+        return data;
+    }
+
+    static byte[] genuine(int model, boolean flipped, int levels, int caseAndCharge) {
+        byte[] data = CAPTURE_FULL.clone();
+        data[3] = (byte) model;
+        data[4] = 0x20;
+        data[5] = (byte) (flipped ? 0x00 : 0x20);
+        data[6] = (byte) levels;
+        data[7] = (byte) caseAndCharge;
+        return data;
+    }
+
+    static void assertDecoded(byte[] data, int left, int right, int caseStatus, boolean chargeL, boolean chargeR, boolean chargeCase) {
+        assertDecoded(data, PodStatus.MODEL_AIRPODS_NORMAL, left, right, caseStatus, chargeL, chargeR, chargeCase);
+    }
+
+    static void assertDecoded(byte[] data, int model, int left, int right, int caseStatus, boolean chargeL, boolean chargeR, boolean chargeCase) {
+        BeaconDecoder.Result r = new BeaconDecoder.Result();
+        assertTrue("not decoded", BeaconDecoder.decode(data, r));
+        assertEquals("model", model, r.model);
+        assertEquals("left", left, r.leftStatus);
+        assertEquals("right", right, r.rightStatus);
+        assertEquals("case", caseStatus, r.caseStatus);
+        assertEquals("left charging", chargeL, r.chargeL);
+        assertEquals("right charging", chargeR, r.chargeR);
+        assertEquals("case charging", chargeCase, r.chargeCase);
+    }
+
+    static byte[] bytes(String hex) {
+        String[] parts = hex.trim().split(" +");
+        byte[] ret = new byte[parts.length];
+        for (int i = 0; i < parts.length; i++) ret[i] = (byte) Integer.parseInt(parts[i], 16);
+        return ret;
+    }
+}
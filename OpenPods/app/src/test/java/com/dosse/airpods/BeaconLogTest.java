@@ -0,0 +1,76 @@
+package com.dosse.airpods;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writing a BeaconLog and reading it back with BeaconLogReader, in a temporary folder, and the writer thread sleeping while there's nothing to write
+ */
+public class BeaconLogTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recordsAreReadBack() throws IOException {
+        BeaconLog log = new BeaconLog(folder.getRoot(), "beacons.bin", 100, 2);
+        for (int i = 0; i < 10; i++) assertTrue(log.append(i * 1000L, 0x0123456789ABL + i, -50 - i, BeaconDecoderTest.CAPTURE_FULL));
+        log.close();
+        assertEquals(10, log.getWritten());
+        BeaconLogReader r = new BeaconLogReader(new File(folder.getRoot(), "beacons.bin"));
+        assertEquals(10, r.size());
+        byte[] data = new byte[BeaconDecoder.DATA_LENGTH];
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i * 1000L, r.getTimestamp(i));
+            assertEquals(0x0123456789ABL + i, r.getAddress(i));
+            assertEquals(-50 - i, r.getRssi(i));
+            r.getData(i, data);
+            assertArrayEquals(BeaconDecoderTest.CAPTURE_FULL, data);
+        }
+        r.close();
+    }
+
+    @Test
+    public void filesAreRotated() throws IOException {
+        BeaconLog log = new BeaconLog(folder.getRoot(), "beacons.bin", 4, 2);
+        for (int i = 0; i < 10; i++) log.append(i, i, -50, BeaconDecoderTest.CAPTURE_FULL);
+        log.close();
+        BeaconLogReader current = new BeaconLogReader(new File(folder.getRoot(), "beacons.bin")), previous = new BeaconLogReader(new File(folder.getRoot(), "beacons.bin.1"));
+        assertEquals(2, current.size());
+        assertEquals(4, previous.size());
+        assertEquals("the oldest file was deleted", 4, previous.getTimestamp(0));
+        current.close();
+        previous.close();
+    }
+
+    @Test(timeout = 10000)
+    public void idleWriterSleepsUntilAppend() throws InterruptedException, IOException {
+        BeaconLog log = new BeaconLog(folder.getRoot(), "beacons.bin", 100, 2);
+        Thread writer = findWriter();
+        while (writer.getState() != Thread.State.WAITING) {
+            assertTrue("the writer waits with a timeout while there's nothing to write: " + writer.getState(), writer.getState() != Thread.State.TIMED_WAITING);
+            Thread.sleep(1);
+        }
+        log.append(0, 1, -50, BeaconDecoderTest.CAPTURE_FULL);
+        while (writer.getState() != Thread.State.TIMED_WAITING) Thread.sleep(1); //a beacon starts the flush timer
+        log.close();
+        assertEquals(1, log.getWritten());
+        BeaconLogReader r = new BeaconLogReader(new File(folder.getRoot(), "beacons.bin"));
+        assertEquals(1, r.size());
+        r.close();
+    }
+
+    private static Thread findWriter() {
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().equals("BeaconLog") && t.isAlive()) return t;
+        }
+        throw new AssertionError("no writer thread");
+    }
+}
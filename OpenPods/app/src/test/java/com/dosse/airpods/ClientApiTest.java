@@ -0,0 +1,26 @@
+package com.dosse.airpods;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The API for other apps (StatusApi), without Android: ClientRateLimiter. How many clients affect the scanner is in StatusApiTest, it needs the service
+ */
+public class ClientApiTest {
+    @Test
+    public void limiter() {
+        ClientRateLimiter l = new ClientRateLimiter(10, 2);
+        int ok = 0;
+        for (int i = 0; i < 100; i++) if (l.tryAcquire(1, 0)) ok++;
+        assertEquals("calls allowed at once", 10, ok);
+        assertTrue("a client was limited because of another one", l.tryAcquire(2, 0));
+        ok = 0;
+        for (long t = 0; t < 60000; t += 10) if (l.tryAcquire(1, t)) ok++; //polling every 10ms for a minute
+        assertTrue(ok + " calls allowed in a minute, expected 120", ok >= 115 && ok <= 125);
+        assertTrue("still limited after a minute of silence", l.tryAcquire(1, 120000));
+        for (int uid = 1000; uid < 2000; uid++) l.tryAcquire(uid, 120000);
+        assertTrue("remembers " + l.size() + " clients", l.size() <= 256);
+    }
+}
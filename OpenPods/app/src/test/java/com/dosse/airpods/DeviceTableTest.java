@@ -0,0 +1,59 @@
+package com.dosse.airpods;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Selection of DeviceTable when devices come and go
+ */
+public class DeviceTableTest {
+    private static final long SECOND = 1000000000L;
+    private static final long A = 0xA, B = 0xB, C = 0xC;
+
+    @Test
+    public void closerDeviceIsOnlySelectedAfterEnoughBeacons() {
+        DeviceTable t = new DeviceTable(4, 60 * SECOND);
+        t.onBeacon(A, 0, -80, BeaconDecoderTest.CAPTURE_FULL);
+        t.onBeacon(B, SECOND, -40, BeaconDecoderTest.CAPTURE_FULL);
+        assertEquals("one beacon is not enough to switch", A, t.getKey(t.getSelected()));
+        for (int i = 2; i < 10; i++) t.onBeacon(B, i * SECOND, -40, BeaconDecoderTest.CAPTURE_FULL);
+        assertEquals(B, t.getKey(t.getSelected()));
+        assertEquals(1, t.getSwitches());
+    }
+
+    @Test
+    public void evictingTheSelectedDeviceKeepsTheHysteresis() {
+        DeviceTable t = new DeviceTable(2, 60 * SECOND);
+        //A is selected, then B is seen more recently, so A is the one that will be evicted
+        t.onBeacon(A, 0, -40, BeaconDecoderTest.CAPTURE_FULL);
+        for (int i = 1; i <= 5; i++) t.onBeacon(B, i * SECOND, -70, BeaconDecoderTest.CAPTURE_FULL);
+        assertEquals(A, t.getKey(t.getSelected()));
+        //the table is full, C evicts A: B is the only one left with enough beacons, C has to beat it like any other device
+        t.onBeacon(C, 6 * SECOND, -30, BeaconDecoderTest.CAPTURE_FULL);
+        assertEquals(1, t.getEvictions());
+        assertEquals(-1, t.find(A));
+        assertEquals("the new device was selected with a single beacon", B, t.getKey(t.getSelected()));
+        for (int i = 7; i < 15; i++) t.onBeacon(C, i * SECOND, -30, BeaconDecoderTest.CAPTURE_FULL);
+        assertEquals(C, t.getKey(t.getSelected()));
+    }
+
+    @Test
+    public void evictingTheOnlyDeviceSelectsTheNewOne() {
+        DeviceTable t = new DeviceTable(1, 60 * SECOND);
+        t.onBeacon(A, 0, -40, BeaconDecoderTest.CAPTURE_FULL);
+        t.onBeacon(B, SECOND, -80, BeaconDecoderTest.CAPTURE_FULL);
+        assertEquals(B, t.getKey(t.getSelected()));
+    }
+
+    @Test
+    public void expiringTheSelectedDeviceSelectsTheStrongest() {
+        DeviceTable t = new DeviceTable(4, 10 * SECOND);
+        t.onBeacon(A, 0, -40, BeaconDecoderTest.CAPTURE_FULL);
+        t.onBeacon(B, 5 * SECOND, -80, BeaconDecoderTest.CAPTURE_FULL);
+        t.onBeacon(C, 6 * SECOND, -60, BeaconDecoderTest.CAPTURE_FULL);
+        assertEquals(A, t.getKey(t.getSelected()));
+        assertEquals(1, t.expire(11 * SECOND));
+        assertEquals(C, t.getKey(t.getSelected()));
+    }
+}
@@ -0,0 +1,139 @@
+package com.dosse.airpods;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * DrainPredictor against synthetic charge and discharge curves, with beacons every second like the real thing, the 1% steps and glitches of clones, and the 10% steps of genuine AirPods
+ */
+public class DrainPredictorTest {
+    private static final long MINUTE = 60000;
+
+    private final Random r = new Random(18);
+    private final DrainPredictor p = new DrainPredictor();
+
+    @Test
+    public void cloneDischarge() {
+        //100% to 0% in 4 hours, 1% steps, 1 beacon in 200 is garbage
+        feed(0, 60 * MINUTE, 100, -100.0 / 240, 1, 0.005, false);
+        assertMinutes("after 1h", 180, 0.1);
+        feed(60 * MINUTE, 180 * MINUTE, 75, -100.0 / 240, 1, 0.005, false);
+        assertMinutes("after 3h", 60, 0.1);
+    }
+
+    @Test
+    public void genuineDischarge() {
+        //levels are 95, 85, 75... 100% to 0% in 5 hours
+        feed(0, 120 * MINUTE, 100, -100.0 / 300, 10, 0, false);
+        assertMinutes("10% steps after 2h", 180, 0.15);
+    }
+
+    @Test
+    public void charging() {
+        //20% to 100% in 80 minutes
+        feed(0, 30 * MINUTE, 20, 1.0, 1, 0.005, true);
+        assertMinutes("after 30 minutes", 50, 0.1);
+        assertTrue(p.isCharging(DrainPredictor.LEFT));
+    }
+
+    @Test
+    public void notEnoughData() {
+        feed(0, 5 * MINUTE, 100, -100.0 / 240, 1, 0, false);
+        assertEquals(DrainPredictor.UNKNOWN, p.getMinutes(DrainPredictor.LEFT));
+    }
+
+    @Test
+    public void startsOverWhenChargingStarts() {
+        feed(0, 60 * MINUTE, 100, -100.0 / 240, 1, 0, false);
+        feed(60 * MINUTE, 61 * MINUTE, 75, 1.0, 1, 0, true);
+        assertEquals(DrainPredictor.UNKNOWN, p.getMinutes(DrainPredictor.LEFT));
+    }
+
+    @Test
+    public void flatLevel() {
+        //a case that isn't used
+        feed(0, 120 * MINUTE, 80, 0, 1, 0.005, false);
+        assertEquals(DrainPredictor.UNKNOWN, p.getMinutes(DrainPredictor.LEFT));
+    }
+
+    @Test
+    public void disconnected() {
+        feed(0, 60 * MINUTE, 100, -100.0 / 240, 1, 0, false);
+        p.update(60 * MINUTE, DrainPredictor.LEFT, PodStatus.DISCONNECTED, false);
+        assertEquals(DrainPredictor.UNKNOWN, p.getMinutes(DrainPredictor.LEFT));
+    }
+
+    @Test
+    public void followsAFasterDischarge() {
+        //the rate doubles after 1 hour (100% in 4 hours, then 100% in 2 hours). An hour later 25% is left, 30 minutes at the new rate, 60 at the old one. The prediction must be closer to the new one
+        feed(0, 60 * MINUTE, 100, -100.0 / 240, 1, 0, false);
+        feed(60 * MINUTE, 120 * MINUTE, 75, -100.0 / 120, 1, 0, false);
+        assertMinutes("faster discharge", 30, 0.45);
+    }
+
+    @Test
+    public void versionChangesOnlyWithWhatIsShown() {
+        //100% to 0% in 4 hours: a sample every 30s, but the rounded time to empty only changes every 5 minutes or so
+        long v = p.getVersion(), shown = DrainPredictor.UNKNOWN;
+        int samples = 0, versions = 0;
+        for (long t = 0; t < 120 * MINUTE; t += 1000) {
+            boolean changed = p.update(t, DrainPredictor.LEFT, (int) (100 - t * 100.0 / (240 * MINUTE)), false);
+            if (t % 30000 == 0) samples++;
+            assertEquals("the version changed, but the rounded time didn't, or the other way around", changed, p.getRoundedMinutes(DrainPredictor.LEFT) != shown);
+            assertEquals(changed, p.getVersion() != v);
+            if (changed) versions++;
+            shown = p.getRoundedMinutes(DrainPredictor.LEFT);
+            v = p.getVersion();
+        }
+        assertTrue(versions + " versions for " + samples + " samples", versions > 0 && versions * 4 < samples);
+        assertEquals(0, shown % 5);
+        assertTrue(p.update(120 * MINUTE, DrainPredictor.LEFT, PodStatus.DISCONNECTED, false));
+        assertEquals(DrainPredictor.UNKNOWN, p.getRoundedMinutes(DrainPredictor.LEFT));
+        assertFalse(p.update(120 * MINUTE + 1000, DrainPredictor.LEFT, PodStatus.DISCONNECTED, false));
+    }
+
+    @Test
+    public void samplesWithoutAPredictionDontChangeTheVersion() {
+        long v = p.getVersion();
+        assertFalse(p.update(0, DrainPredictor.LEFT, 90, false));
+        assertFalse("a sample that doesn't give a prediction yet", p.update(30000, DrainPredictor.LEFT, 90, false));
+        assertFalse("a component that had no prediction goes away", p.update(31000, DrainPredictor.LEFT, PodStatus.DISCONNECTED, false));
+        assertEquals(v, p.getVersion());
+    }
+
+    @Test
+    public void predictionAppearsWithANewVersion() {
+        //genuine AirPods, 10% steps: the level doesn't change for 30 minutes, the prediction appears anyway
+        long v = -1, t;
+        for (t = 0; p.getRoundedMinutes(DrainPredictor.LEFT) == DrainPredictor.UNKNOWN; t += 1000) {
+            assertTrue("no prediction after 30 minutes", t < 30 * MINUTE);
+            if (p.update(t, DrainPredictor.LEFT, t < 10 * MINUTE ? 95 : 85, false)) v = p.getVersion();
+        }
+        assertEquals("the prediction appeared without a new version", v, p.getVersion());
+    }
+
+    /**
+     * Sends a beacon every second from start to end, with the left pod going from startLevel at slope %/min
+     *
+     * @param step    levels are rounded down to multiples of this, genuine AirPods report 5, 15, 25...
+     * @param garbage probability that a beacon has a random level
+     */
+    private void feed(long start, long end, double startLevel, double slope, int step, double garbage, boolean charging) {
+        for (long t = start; t < end; t += 1000) {
+            double level = Math.max(0, Math.min(100, startLevel + slope * (t - start) / MINUTE));
+            int reported = step == 1 ? (int) level : Math.min(100, (int) (level / step) * step + step / 2);
+            if (r.nextDouble() < garbage) reported = r.nextInt(101);
+            p.update(t, DrainPredictor.LEFT, reported, charging);
+        }
+    }
+
+    private void assertMinutes(String what, long expected, double tolerance) {
+        long minutes = p.getMinutes(DrainPredictor.LEFT);
+        assertTrue(what + ": " + minutes + " minutes, expected " + expected, minutes != DrainPredictor.UNKNOWN && Math.abs(minutes - expected) <= expected * tolerance);
+    }
+}
@@ -0,0 +1,106 @@
+package com.dosse.airpods;
+
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The gauges of the notification, on Robolectric for the bitmaps: the same gauge is drawn once, the least recently used ones are dropped when the budget is full, and a new density throws them all away but the night mode doesn't.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class GaugeIconCacheTest {
+    private static final int MDPI_BYTES = 24 * 24 * 4; //24dp ARGB_8888 at 160dpi
+
+    private GaugeIconCache cache;
+
+    private static Configuration configuration(int densityDpi, boolean night) {
+        Configuration c = new Configuration();
+        c.densityDpi = densityDpi;
+        c.uiMode = night ? Configuration.UI_MODE_NIGHT_YES : Configuration.UI_MODE_NIGHT_NO;
+        return c;
+    }
+
+    @Before
+    public void setUp() {
+        cache = new GaugeIconCache(3 * MDPI_BYTES);
+        assertFalse("nothing to throw away yet", cache.setConfiguration(configuration(160, false)));
+    }
+
+    @Test
+    public void sameBucketIsAHit() {
+        Bitmap b = cache.get(GaugeIconCache.LEFT, 50, false, GaugeIconCache.THEME_LIGHT);
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(MDPI_BYTES, cache.getBytes());
+        assertSame(b, cache.get(GaugeIconCache.LEFT, 50, false, GaugeIconCache.THEME_LIGHT));
+        assertSame("levels are rounded down to 5%", b, cache.get(GaugeIconCache.LEFT, 54, false, GaugeIconCache.THEME_LIGHT));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void everyPartOfTheKeyIsAMiss() {
+        Bitmap b = cache.get(GaugeIconCache.LEFT, 50, false, GaugeIconCache.THEME_LIGHT);
+        assertNotSame(b, cache.get(GaugeIconCache.LEFT, 55, false, GaugeIconCache.THEME_LIGHT));
+        assertNotSame(b, cache.get(GaugeIconCache.RIGHT, 50, false, GaugeIconCache.THEME_LIGHT));
+        assertNotSame(b, cache.get(GaugeIconCache.LEFT, 50, true, GaugeIconCache.THEME_LIGHT));
+        assertNotSame(b, cache.get(GaugeIconCache.LEFT, 50, false, GaugeIconCache.THEME_DARK));
+        assertEquals(0, cache.getHits());
+        assertEquals(5, cache.getMisses());
+    }
+
+    @Test
+    public void disconnectedHasNoGauge() {
+        assertNull(cache.get(GaugeIconCache.CASE, PodStatus.DISCONNECTED, false, GaugeIconCache.THEME_LIGHT));
+        assertEquals(0, cache.getMisses());
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() {
+        Bitmap first = cache.get(GaugeIconCache.LEFT, 10, false, GaugeIconCache.THEME_LIGHT);
+        cache.get(GaugeIconCache.LEFT, 20, false, GaugeIconCache.THEME_LIGHT);
+        cache.get(GaugeIconCache.LEFT, 30, false, GaugeIconCache.THEME_LIGHT);
+        assertSame(first, cache.get(GaugeIconCache.LEFT, 10, false, GaugeIconCache.THEME_LIGHT)); //now 20 is the least recently used
+        cache.get(GaugeIconCache.LEFT, 40, false, GaugeIconCache.THEME_LIGHT);
+        assertEquals(1, cache.getEvictions());
+        assertEquals(3 * MDPI_BYTES, cache.getBytes());
+        assertSame(first, cache.get(GaugeIconCache.LEFT, 10, false, GaugeIconCache.THEME_LIGHT));
+        int misses = cache.getMisses();
+        cache.get(GaugeIconCache.LEFT, 20, false, GaugeIconCache.THEME_LIGHT);
+        assertEquals("20 was evicted, it's drawn again", misses + 1, cache.getMisses());
+        assertTrue(cache.getBytes() <= cache.getMaxBytes());
+    }
+
+    @Test
+    public void newDensityThrowsTheGaugesAway() {
+        Bitmap b = cache.get(GaugeIconCache.RIGHT, 80, true, GaugeIconCache.THEME_LIGHT);
+        assertFalse("same configuration", cache.setConfiguration(configuration(160, false)));
+        assertTrue(cache.setConfiguration(configuration(320, false)));
+        assertEquals(1, cache.getInvalidations());
+        assertEquals(0, cache.getBytes());
+        Bitmap hd = cache.get(GaugeIconCache.RIGHT, 80, true, GaugeIconCache.THEME_LIGHT);
+        assertNotSame(b, hd);
+        assertEquals("drawn at the new density", 4 * MDPI_BYTES, hd.getByteCount());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void nightModeKeepsTheGauges() {
+        Bitmap b = cache.get(GaugeIconCache.CASE, 60, false, GaugeIconCache.THEME_LIGHT);
+        assertFalse("the layouts are white in night mode too", cache.setConfiguration(configuration(160, true)));
+        assertEquals(0, cache.getInvalidations());
+        assertSame(b, cache.get(GaugeIconCache.CASE, 60, false, GaugeIconCache.THEME_LIGHT));
+    }
+}
@@ -0,0 +1,128 @@
+package com.dosse.airpods;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Several threads publish and read the status at the same time.
+ * Every status that is published has the same level for the left pod, the right pod and the case, and the same charging flag for all 3, so a reader that gets a mix of two beacons sees different values.
+ */
+public class PodStatusHolderTest {
+    private static final int WRITERS = 2, READERS = 4, PUBLISHES = 200000;
+
+    private static BeaconDecoder.Result result(int level) {
+        BeaconDecoder.Result r = new BeaconDecoder.Result();
+        r.leftStatus = r.rightStatus = r.caseStatus = level;
+        r.chargeL = r.chargeR = r.chargeCase = (level & 1) == 1;
+        r.model = PodStatus.MODEL_AIRPODS_PRO;
+        return r;
+    }
+
+    @Test
+    public void sameValueIsNotPublishedTwice() {
+        PodStatusHolder h = new PodStatusHolder();
+        assertTrue(h.publish(result(50), 1000));
+        assertTrue("the last case status is the one of the previous snapshot, it catches up with the second beacon", h.publish(result(50), 2000));
+        assertFalse(h.publish(result(50), 3000));
+        assertEquals(2, h.getSequence());
+        assertEquals("the last seen time changes anyway", 3000, h.getLastSeen());
+    }
+
+    @Test(timeout = 60000)
+    public void concurrentStatusIsNeverTornOrLost() throws InterruptedException {
+        final PodStatusHolder h = new PodStatusHolder();
+        final CountDownLatch start = new CountDownLatch(1), writersDone = new CountDownLatch(WRITERS);
+        final AtomicLong changes = new AtomicLong();
+        final AtomicReference<String> problem = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w++) {
+            final int offset = w * 37;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    BeaconDecoder.Result[] results = new BeaconDecoder.Result[101];
+                    for (int l = 0; l <= 100; l++) results[l] = result(l);
+                    await(start);
+                    for (int i = 0; i < PUBLISHES; i++) {
+                        if (h.publish(results[(i + offset) % 101], i)) changes.incrementAndGet();
+                    }
+                    writersDone.countDown();
+                }
+            });
+        }
+        for (int r = 0; r < READERS; r++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    await(start);
+                    long lastSequence = -1;
+                    while (writersDone.getCount() > 0 && problem.get() == null) {
+                        PodStatus s = h.get();
+                        if (s.getSequence() < lastSequence) problem.compareAndSet(null, "sequence went back from " + lastSequence + " to " + s.getSequence());
+                        lastSequence = s.getSequence();
+                        if (s.getSequence() == 0) continue; //UNKNOWN
+                        if (s.getLeftStatus() != s.getRightStatus() || s.getLeftStatus() != s.getCaseStatus() || s.isChargingL() != s.isChargingR() || s.isChargingL() != s.isChargingCase() || s.isChargingL() != ((s.getLeftStatus() & 1) == 1) || s.getModel() != PodStatus.MODEL_AIRPODS_PRO)
+                            problem.compareAndSet(null, "torn status: " + s);
+                    }
+                }
+            });
+        }
+        for (Thread t : threads) t.start();
+        start.countDown();
+        for (Thread t : threads) t.join();
+        assertNull(problem.get(), problem.get());
+        //every publish that returned true made exactly one new snapshot, none was overwritten by a concurrent one
+        assertEquals("changes lost", changes.get(), h.getSequence());
+    }
+
+    @Test(timeout = 60000)
+    public void disconnectDuringPublishKeepsTheSequence() throws InterruptedException {
+        final PodStatusHolder h = new PodStatusHolder();
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicLong changes = new AtomicLong();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                await(start);
+                for (int i = 0; i < PUBLISHES; i++) {
+                    if (h.publish(result(i % 101), i)) changes.incrementAndGet();
+                }
+            }
+        };
+        Thread disconnecter = new Thread() {
+            @Override
+            public void run() {
+                await(start);
+                for (int i = 0; i < PUBLISHES / 10; i++) {
+                    long before = h.getSequence();
+                    h.disconnect();
+                    if (h.getSequence() < before) throw new AssertionError("sequence went back");
+                }
+            }
+        };
+        writer.start();
+        disconnecter.start();
+        start.countDown();
+        writer.join();
+        disconnecter.join();
+        assertTrue("sequence " + h.getSequence() + " lower than the changes published " + changes.get(), h.getSequence() >= changes.get());
+    }
+
+    private static void await(CountDownLatch l) {
+        try {
+            l.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.dosse.airpods;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ScanModeControllerTest {
+    private static final long BEACON_GAP_MS = 1000; //time between two beacons of the pods, roughly
+    private static final int SEQUENCES = 2000, EVENTS = 400;
+
+    /**
+     * Remembers what the controller asked for
+     */
+    static final class FakeScanner implements PodsScanner {
+        final boolean batching;
+        int mode = ScanModeController.MODE_OFF;
+        long reportDelay = 0;
+        int running = 0, maxRunning = 0, starts = 0;
+
+        FakeScanner(boolean batching) {
+            this.batching = batching;
+        }
+
+        @Override
+        public void startScan(int scanMode, long reportDelayMillis) {
+            mode = scanMode;
+            reportDelay = reportDelayMillis;
+            starts++;
+            maxRunning = Math.max(maxRunning, ++running);
+        }
+
+        @Override
+        public void stopScan() {
+            running--;
+        }
+
+        @Override
+        public boolean isBatchingSupported() {
+            return batching;
+        }
+    }
+
+    /**
+     * Scanner that complains when it's used wrong. A start can throw, and a running scan can fail, like the real one
+     */
+    static final class StrictScanner implements PodsScanner {
+        boolean active = false, failed = false, failNextStart = false;
+        int mode;
+        long reportDelay;
+        final long[] startTimes = new long[6];
+        long starts = 0, now = 0;
+        String problem = null;
+
+        @Override
+        public void startScan(int scanMode, long reportDelayMillis) throws Exception {
+            if (active) problem = "startScan while a scan is running";
+            failed = false;
+            if (failNextStart) {
+                failNextStart = false;
+                throw new Exception("BT Off");
+            }
+            startTimes[(int) (starts % startTimes.length)] = now;
+            starts++;
+            if (starts > 5 && now - startTimes[(int) (starts % startTimes.length)] < 30000) problem = "more than 5 starts in 30s";
+            active = true;
+            mode = scanMode;
+            reportDelay = reportDelayMillis;
+        }
+
+        @Override
+        public void stopScan() {
+            if (!active && !failed) problem = "stopScan without a scan"; //stopping a scan that failed is fine
+            active = false;
+            failed = false;
+        }
+
+        @Override
+        public boolean isBatchingSupported() {
+            return true;
+        }
+    }
+
+    /**
+     * Throws random sequences of events at the controller (BT on/off, AirPods connecting, screen on/off, battery saver, beacons, scan failures, time passing) and checks that:
+     * - there's never more than one scan running: startScan is never called while a scan is running, stopScan only when one is
+     * - the controller's mode matches what the scanner is doing
+     * - there are never more than 5 starts in 30 seconds
+     * - when the events stop, the scanner ends up doing what the controller wants
+     */
+    @Test
+    public void randomEventsNeverBreakTheScanner() {
+        Random r = new Random(17);
+        for (int s = 0; s < SEQUENCES; s++) {
+            StrictScanner scanner = new StrictScanner();
+            ScanModeController c = new ScanModeController(scanner);
+            long now = 0, scheduled = -1;
+            for (int e = 0; e < EVENTS; e++) {
+                //time passes, sometimes not at all so events come in bursts
+                long step = r.nextInt(4) == 0 ? 0 : r.nextInt(5000);
+                if (scheduled != -1 && scheduled <= now + step) {
+                    now = Math.max(now, scheduled);
+                } else {
+                    now += step;
+                    switch (r.nextInt(8)) {
+                        case 0:
+                            c.setEnabled(r.nextInt(4) != 0);
+                            break;
+                        case 1:
+                            c.setConnected(r.nextBoolean());
+                            break;
+                        case 2:
+                            c.setScreenOn(r.nextBoolean());
+                            break;
+                        case 3:
+                            c.setBatterySaver(r.nextInt(4) == 0);
+                            break;
+                        case 4:
+                        case 5:
+                            if (scanner.active) c.onBeacon(now, r.nextInt(8) == 0);
+                            break;
+                        case 6:
+                            if (scanner.active && r.nextInt(4) == 0) { //the scan failed, it's not running anymore
+                                scanner.active = false;
+                                scanner.failed = true;
+                                if (!c.onScanFailed(now, 2 + r.nextInt(3))) scanner.problem = "onScanFailed ignored for a running scan";
+                            } else if (scanner.active && r.nextInt(4) == 0) { //already started: the scan is still running
+                                c.onScanFailed(now, ScanModeController.SCAN_FAILED_ALREADY_STARTED);
+                            }
+                            break;
+                        default:
+                            scanner.failNextStart = r.nextInt(8) == 0;
+                            break;
+                    }
+                }
+                scanner.now = now;
+                scheduled = c.evaluate(now);
+                assertConsistent(scanner, c, "sequence " + s + ", event " + e + " at " + now + "ms");
+            }
+            //no more events: following the schedule, the scanner must end up doing what the controller wants
+            scanner.failNextStart = false;
+            for (int i = 0; i < 100 && scheduled != -1; i++) {
+                now = Math.max(now, scheduled);
+                scanner.now = now;
+                scheduled = c.evaluate(now);
+                assertConsistent(scanner, c, "sequence " + s + ", settling at " + now + "ms");
+            }
+            int state = c.getState();
+            if (state != ScanModeController.STATE_IDLE && state != ScanModeController.STATE_SCANNING) fail("sequence " + s + ": settled in state " + ScanModeController.stateName(state));
+        }
+    }
+
+    private static void assertConsistent(StrictScanner scanner, ScanModeController c, String where) {
+        assertNull(where, scanner.problem);
+        boolean scanning = c.getMode() != ScanModeController.MODE_OFF;
+        assertEquals(where + ": the controller thinks the scanner is " + (scanning ? "on" : "off"), scanning, scanner.active);
+        if (scanning) {
+            assertEquals(where + ": the scanner is in a different mode", c.getMode(), scanner.mode);
+            assertEquals(where + ": the scanner has a different report delay", c.getReportDelay(), scanner.reportDelay);
+        }
+    }
+
+    @Test
+    public void batchingDoesNotMakeTheStatusOld() {
+        FakeScanner scanner = new FakeScanner(true);
+        ScanModeController c = new ScanModeController(scanner);
+        c.setEnabled(true);
+        c.setConnected(true);
+        c.setScreenOn(false);
+        c.onBeacon(1000, true);
+        c.evaluate(1000);
+        assertEquals(PodsScanner.MODE_LOW_POWER, scanner.mode);
+        assertTrue("screen off should batch", scanner.reportDelay > 0);
+        //the newest beacon of a batch is up to a beacon gap older than the previous batch, the next batch must arrive before that beacon is TIMEOUT_CONNECTED old
+        assertTrue("report delay " + scanner.reportDelay + "ms, the status goes old after " + PodsService.TIMEOUT_CONNECTED + "ms", scanner.reportDelay + BEACON_GAP_MS < PodsService.TIMEOUT_CONNECTED);
+    }
+
+    @Test
+    public void noBatchingWithoutControllerSupport() {
+        FakeScanner scanner = new FakeScanner(false);
+        ScanModeController c = new ScanModeController(scanner);
+        c.setEnabled(true);
+        c.setConnected(true);
+        c.setScreenOn(false);
+        c.onBeacon(1000, true);
+        c.evaluate(1000);
+        assertEquals(0, scanner.reportDelay);
+    }
+}
@@ -0,0 +1,321 @@
+package com.dosse.airpods;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothProfile;
+import android.content.Intent;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.os.Process;
+import android.os.RemoteException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.android.controller.ServiceController;
+import org.robolectric.shadow.api.Shadow;
+import org.robolectric.shadows.ShadowBinder;
+import org.robolectric.shadows.ShadowBluetoothAdapter;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The API for other apps, on Robolectric: binding PodsService with StatusApi.ACTION_BIND, listeners registered with the binder, and queries to StatusProvider.
+ * The service is not created, setup would start the scanner and the API doesn't need it. Changes are sent to the listeners with PodsService.remoteSubscriber, like the bus does.
+ * Except in manyClientsDoNotMakeUsScan, where it's created with a CountingScanner instead of LeScanner, to see what the clients make the service do with the scanner
+ */
+@RunWith(RobolectricTestRunner.class)
+public class StatusApiTest {
+    private static final int CLIENTS = 200;
+
+    private PodsService service;
+    private IPodsStatus api;
+
+    private static final class Recorder extends IPodsStatusListener.Stub {
+        final List<Bundle> snapshots = new ArrayList<>();
+
+        @Override
+        public void onStatusChanged(Bundle snapshot) {
+            snapshots.add(snapshot);
+        }
+    }
+
+    private static final class CountingScanner implements PodsScanner {
+        int starts = 0, stops = 0;
+        boolean scanning = false;
+
+        @Override
+        public void startScan(int scanMode, long reportDelayMillis) {
+            starts++;
+            scanning = true;
+        }
+
+        @Override
+        public void stopScan() {
+            stops++;
+            scanning = false;
+        }
+
+        @Override
+        public boolean isBatchingSupported() {
+            return true;
+        }
+    }
+
+    public static class CountingService extends PodsService {
+        final CountingScanner scanner = new CountingScanner();
+
+        @Override
+        PodsScanner createScanner(BluetoothAdapter ba) {
+            return scanner;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        service = Robolectric.buildService(PodsService.class).get();
+        api = IPodsStatus.Stub.asInterface(service.onBind(new Intent(StatusApi.ACTION_BIND)));
+    }
+
+    @After
+    public void tearDown() {
+        ShadowBinder.reset();
+    }
+
+    private static PodStatus status(int level, long sequence) {
+        return new PodStatus(PodStatus.pack(level, level + 10, level + 20, level + 20, true, false, false, PodStatus.MODEL_AIRPODS_PRO), sequence);
+    }
+
+    @Test
+    public void onlyTheStatusActionBinds() {
+        assertNotNull(api);
+        assertNull(service.onBind(new Intent()));
+        assertNull(service.onBind(null));
+    }
+
+    @Test
+    public void snapshotIsTheCurrentStatus() throws RemoteException {
+        Bundle b = api.getSnapshot();
+        PodStatus s = PodsService.getStatus();
+        assertEquals(s.getLeftStatus(), b.getInt(StatusApi.LEFT));
+        assertEquals(StatusApi.lastCase(s), b.getInt(StatusApi.LAST_CASE));
+        assertEquals(s.getSequence(), b.getLong(StatusApi.SEQUENCE));
+    }
+
+    @Test
+    public void lastCaseIsTheCaseWhileItsOpen() {
+        PodStatusHolder h = new PodStatusHolder();
+        BeaconDecoder.Result r = new BeaconDecoder.Result();
+        int[] cases = {50, 50, PodStatus.DISCONNECTED, 60}; //open, closed, opened again
+        int[] expected = {50, 50, 50, 60};
+        for (int i = 0; i < cases.length; i++) {
+            r.caseStatus = cases[i];
+            h.publish(r, i);
+            assertEquals("beacon " + i, expected[i], StatusApi.toBundle(h.get(), i).getInt(StatusApi.LAST_CASE));
+            assertEquals("beacon " + i, expected[i], StatusApi.toRow(h.get(), i)[3]);
+        }
+        assertEquals("the holder has the case of the previous beacon, closed", PodStatus.DISCONNECTED, h.get().getLastCaseStatus());
+    }
+
+    @Test
+    public void throttledClientsGetTheLastSnapshot() throws RemoteException {
+        ShadowBinder.setCallingUid(20005);
+        long sequence = api.getSnapshot().getLong(StatusApi.SEQUENCE);
+        for (int i = 0; i < StatusApi.CLIENT_BURST * 2; i++) {
+            Bundle b = api.getSnapshot();
+            assertNotNull("a throttled client got null", b);
+            assertEquals(sequence, b.getLong(StatusApi.SEQUENCE));
+        }
+        service.remoteSubscriber.onStatus(status(50, 49)); //still throttled, but the listeners got a new snapshot
+        assertEquals(49, api.getSnapshot().getLong(StatusApi.SEQUENCE));
+    }
+
+    @Test
+    public void listenersGetTheChanges() throws RemoteException {
+        Recorder a = new Recorder(), b = new Recorder();
+        api.registerListener(a);
+        api.registerListener(b);
+        service.remoteSubscriber.onStatus(status(50, 42));
+        assertEquals(1, a.snapshots.size());
+        assertEquals(1, b.snapshots.size());
+        Bundle snapshot = a.snapshots.get(0);
+        assertEquals(50, snapshot.getInt(StatusApi.LEFT));
+        assertEquals(60, snapshot.getInt(StatusApi.RIGHT));
+        assertEquals(70, snapshot.getInt(StatusApi.CASE));
+        assertEquals(1, snapshot.getInt(StatusApi.CHARGING_LEFT));
+        assertEquals(PodStatus.MODEL_AIRPODS_PRO, snapshot.getInt(StatusApi.MODEL));
+        assertEquals(42, snapshot.getLong(StatusApi.SEQUENCE));
+        api.unregisterListener(a);
+        service.remoteSubscriber.onStatus(status(40, 43));
+        assertEquals("unregistered listener was called", 1, a.snapshots.size());
+        assertEquals(2, b.snapshots.size());
+        api.unregisterListener(b);
+    }
+
+    @Test
+    public void listenersPerClientAreLimited() throws RemoteException {
+        ShadowBinder.setCallingUid(20001);
+        List<Recorder> recorders = new ArrayList<>();
+        for (int i = 0; i < StatusApi.MAX_LISTENERS_PER_CLIENT + 2; i++) {
+            Recorder r = new Recorder();
+            recorders.add(r);
+            api.registerListener(r);
+        }
+        ShadowBinder.setCallingUid(20002); //another app isn't affected
+        Recorder other = new Recorder();
+        api.registerListener(other);
+        service.remoteSubscriber.onStatus(status(50, 44));
+        int called = 0;
+        for (Recorder r : recorders) called += r.snapshots.size();
+        assertEquals(StatusApi.MAX_LISTENERS_PER_CLIENT, called);
+        assertEquals(1, other.snapshots.size());
+    }
+
+    @Test
+    public void registeringAgainDoesNotCount() throws RemoteException {
+        ShadowBinder.setCallingUid(20004);
+        Recorder r = new Recorder();
+        for (int i = 0; i < StatusApi.MAX_LISTENERS_PER_CLIENT * 3; i++) api.registerListener(r); //like a client that registers in every onServiceConnected
+        List<Recorder> others = new ArrayList<>();
+        for (int i = 0; i < StatusApi.MAX_LISTENERS_PER_CLIENT - 1; i++) {
+            Recorder o = new Recorder();
+            others.add(o);
+            api.registerListener(o);
+        }
+        service.remoteSubscriber.onStatus(status(50, 46));
+        assertEquals("registered once", 1, r.snapshots.size());
+        for (Recorder o : others) assertEquals("the client is still below the limit", 1, o.snapshots.size());
+        api.unregisterListener(r);
+        Recorder last = new Recorder();
+        api.registerListener(last);
+        service.remoteSubscriber.onStatus(status(40, 47));
+        assertEquals("unregistering once frees the slot", 1, last.snapshots.size());
+    }
+
+    /**
+     * Many apps bind the service, register a listener, read the snapshot and query the provider, while nobody is looking (AirPods not connected, no tile, no widget): the scanner must stay off, and the listeners still get the changes.
+     * Then something that is looking (like the tile) subscribes, to check that the scanner of this test is the one the service starts
+     */
+    @Test
+    public void manyClientsDoNotMakeUsScan() throws RemoteException {
+        ShadowBluetoothAdapter adapter = Shadow.extract(BluetoothAdapter.getDefaultAdapter());
+        adapter.setEnabled(true);
+        adapter.setProfileProxy(BluetoothProfile.HEADSET, null); //no headset proxy, the real one would try to bind to the system's bluetooth service
+        ServiceController<CountingService> controller = Robolectric.buildService(CountingService.class).create();
+        CountingService created = controller.get();
+        CountingScanner scanner = created.scanner;
+        ShadowLooper.idleMainLooper();
+        assertFalse("scanning while nobody is looking", scanner.scanning);
+        int starts = scanner.starts, stops = scanner.stops;
+        IPodsStatus api = IPodsStatus.Stub.asInterface(created.onBind(new Intent(StatusApi.ACTION_BIND)));
+        StatusProvider provider = Robolectric.setupContentProvider(StatusProvider.class, StatusApi.AUTHORITY);
+        final int[] changes = {0};
+        ContentObserver observer = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                changes[0]++;
+            }
+        };
+        created.getContentResolver().registerContentObserver(StatusApi.CONTENT_URI, false, observer);
+        List<Recorder> listeners = new ArrayList<>();
+        int snapshots = 0, queries = 0;
+        for (int k = 0; k < CLIENTS; k++) {
+            ShadowBinder.setCallingUid(30000 + k);
+            Recorder r = new Recorder();
+            listeners.add(r);
+            api.registerListener(r);
+            if (api.getSnapshot() != null) snapshots++;
+            Cursor c = provider.query(StatusApi.CONTENT_URI, null, null, null, null);
+            if (c != null) {
+                queries++;
+                c.close();
+            }
+            ShadowLooper.idleMainLooper();
+        }
+        ShadowBinder.reset();
+        PodsService.getBus().publish(status(50, 48));
+        ShadowLooper.idleMainLooper(StatusApi.LISTENER_MIN_INTERVAL_MS);
+        assertEquals(CLIENTS, snapshots);
+        assertEquals(CLIENTS, queries);
+        for (Recorder r : listeners) assertEquals(48, r.snapshots.get(r.snapshots.size() - 1).getLong(StatusApi.SEQUENCE));
+        assertTrue("the provider observers weren't notified", changes[0] > 0);
+        assertFalse("the clients made us scan", scanner.scanning);
+        assertEquals(starts, scanner.starts);
+        assertEquals(stops, scanner.stops);
+
+        StatusBus.Subscription looking = PodsService.getBus().subscribe(new StatusBus.Subscriber() {
+            @Override
+            public void onStatus(PodStatus s) {
+            }
+        }, new StatusBus.Dispatcher() {
+            @Override
+            public void dispatch(Runnable r, long delayMs) {
+                r.run();
+            }
+        }, 0, true);
+        ShadowLooper.idleMainLooper();
+        assertTrue("the service doesn't use the scanner of the test", scanner.scanning);
+        assertEquals(starts + 1, scanner.starts);
+        looking.close();
+        ShadowLooper.idleMainLooper();
+        assertFalse(scanner.scanning);
+        created.getContentResolver().unregisterContentObserver(observer);
+        controller.destroy();
+    }
+
+    @Test
+    public void providerObserversAreNotified() {
+        final int[] changes = {0};
+        ContentObserver observer = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                changes[0]++;
+            }
+        };
+        service.getContentResolver().registerContentObserver(StatusApi.CONTENT_URI, false, observer);
+        service.remoteSubscriber.onStatus(status(50, 45));
+        service.getContentResolver().unregisterContentObserver(observer);
+        assertEquals(1, changes[0]);
+    }
+
+    @Test
+    public void providerQuery() {
+        StatusProvider provider = Robolectric.setupContentProvider(StatusProvider.class, StatusApi.AUTHORITY);
+        Cursor c = provider.query(StatusApi.CONTENT_URI, null, null, null, null);
+        assertNotNull(c);
+        assertEquals(1, c.getCount());
+        assertTrue(c.moveToFirst());
+        PodStatus s = PodsService.getStatus();
+        assertEquals(s.getLeftStatus(), c.getInt(c.getColumnIndex(StatusApi.LEFT)));
+        assertEquals(s.getSequence(), c.getLong(c.getColumnIndex(StatusApi.SEQUENCE)));
+        c.close();
+    }
+
+    @Test
+    public void providerIsRateLimitedForOtherApps() {
+        StatusProvider provider = Robolectric.setupContentProvider(StatusProvider.class, StatusApi.AUTHORITY);
+        ShadowBinder.setCallingUid(20003);
+        int answered = 0;
+        for (int i = 0; i < StatusApi.CLIENT_BURST * 2; i++) {
+            Cursor c = provider.query(StatusApi.CONTENT_URI, null, null, null, null);
+            if (c != null) {
+                answered++;
+                c.close();
+            }
+        }
+        assertEquals(StatusApi.CLIENT_BURST, answered);
+        ShadowBinder.setCallingUid(Process.myUid()); //we are never limited
+        assertNotNull(provider.query(StatusApi.CONTENT_URI, null, null, null, null));
+    }
+}
@@ -0,0 +1,214 @@
+package com.dosse.airpods;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * StatusBus with a virtual clock, and with real threads
+ */
+public class StatusBusTest {
+    private static final int SEQUENCES = 300, EVENTS = 2000, SUBSCRIBERS = 6;
+
+    private long now;
+    private String problem; //set by the callbacks, checked after each event
+
+    /**
+     * Runs what the bus dispatches when the virtual clock gets there, in order
+     */
+    private final class Scheduler implements StatusBus.Dispatcher {
+        private final class Task implements Comparable<Task> {
+            final long time, order;
+            final Runnable r;
+
+            Task(long time, long order, Runnable r) {
+                this.time = time;
+                this.order = order;
+                this.r = r;
+            }
+
+            @Override
+            public int compareTo(Task o) {
+                return time != o.time ? Long.compare(time, o.time) : Long.compare(order, o.order);
+            }
+        }
+
+        final PriorityQueue<Task> queue = new PriorityQueue<>();
+        long order = 0;
+
+        @Override
+        public void dispatch(Runnable r, long delayMs) {
+            if (delayMs < 0) problem = "negative delay " + delayMs;
+            queue.add(new Task(now + delayMs, order++, r));
+        }
+
+        void runUntil(long t) {
+            while (!queue.isEmpty() && queue.peek().time <= t) {
+                Task task = queue.poll();
+                now = Math.max(now, task.time);
+                task.r.run();
+            }
+            now = Math.max(now, t);
+        }
+    }
+
+    private final class Recorder implements StatusBus.Subscriber {
+        final int id;
+        final long interval;
+        long lastTime = Long.MIN_VALUE / 2, lastSequence = -1;
+
+        Recorder(int id, long interval) {
+            this.id = id;
+            this.interval = interval;
+        }
+
+        @Override
+        public void onStatus(PodStatus s) {
+            if (now - lastTime < interval) problem = "subscriber " + id + ": delivered after " + (now - lastTime) + "ms, the rate limit is " + interval + "ms";
+            if (s.getSequence() <= lastSequence) problem = "subscriber " + id + ": status " + s.getSequence() + " delivered after " + lastSequence;
+            lastTime = now;
+            lastSequence = s.getSequence();
+        }
+    }
+
+    /**
+     * Subscribers with different rate limits, random publishes, subscriptions coming and going.
+     * Deliveries must respect the rate limits, never go back to an older status, and once publishing stops every subscriber must end up with the latest status. The DemandListener must follow the active subscriptions
+     */
+    @Test
+    public void randomSubscribersWithVirtualClock() {
+        Random r = new Random(20);
+        for (int q = 0; q < SEQUENCES; q++) {
+            now = 0;
+            StatusBus bus = new StatusBus(new StatusBus.Clock() {
+                @Override
+                public long now() {
+                    return now;
+                }
+            });
+            final boolean[] demand = {false};
+            bus.setDemandListener(new StatusBus.DemandListener() {
+                @Override
+                public void onDemandChanged(boolean d) {
+                    if (d == demand[0]) problem = "demand listener called twice with " + d;
+                    demand[0] = d;
+                }
+            });
+            Scheduler scheduler = new Scheduler();
+            StatusBus.Subscription[] subs = new StatusBus.Subscription[SUBSCRIBERS];
+            Recorder[] recorders = new Recorder[SUBSCRIBERS];
+            boolean[] active = new boolean[SUBSCRIBERS];
+            long sequence = 0;
+            PodStatus last = null;
+            for (int e = 0; e < EVENTS; e++) {
+                int i = r.nextInt(SUBSCRIBERS);
+                switch (r.nextInt(10)) {
+                    case 0: //subscribe or unsubscribe
+                        if (subs[i] == null) {
+                            recorders[i] = new Recorder(i, r.nextBoolean() ? 0 : r.nextInt(10000));
+                            active[i] = r.nextBoolean();
+                            subs[i] = bus.subscribe(recorders[i], scheduler, recorders[i].interval, active[i]);
+                        } else {
+                            subs[i].close();
+                            subs[i] = null;
+                            active[i] = false;
+                        }
+                        break;
+                    case 1:
+                        if (subs[i] != null) {
+                            active[i] = r.nextBoolean();
+                            subs[i].setActive(active[i]);
+                        }
+                        break;
+                    case 2:
+                    case 3:
+                        scheduler.runUntil(now + r.nextInt(r.nextBoolean() ? 100 : 5000));
+                        break;
+                    default: //bursts of publishes
+                        int n = 1 + r.nextInt(5);
+                        for (int k = 0; k < n; k++) {
+                            last = new PodStatus(PodStatus.pack(r.nextInt(101), r.nextInt(101), r.nextInt(101), r.nextInt(101), false, false, false, 0), ++sequence);
+                            bus.publish(last);
+                        }
+                        break;
+                }
+                String where = "sequence " + q + ", event " + e;
+                assertNull(where, problem);
+                boolean anyActive = false;
+                for (int k = 0; k < SUBSCRIBERS; k++) {
+                    if (active[k]) anyActive = true;
+                }
+                assertEquals(where + ": demand", anyActive, bus.hasDemand());
+                assertEquals(where + ": demand listener", anyActive, demand[0]);
+            }
+            //no more publishes: everyone that is subscribed must get the latest status
+            scheduler.runUntil(now + 20000);
+            for (int k = 0; k < SUBSCRIBERS; k++) {
+                if (subs[k] == null) continue;
+                if (last != null) assertEquals("sequence " + q + ", subscriber " + k + ": last status", last.getSequence(), recorders[k].lastSequence);
+                subs[k].close();
+            }
+            assertFalse("sequence " + q + ": demand after everyone unsubscribed", bus.hasDemand() || demand[0]);
+            scheduler.runUntil(now + 20000); //deliveries dispatched before close must do nothing
+            assertNull("sequence " + q, problem);
+        }
+    }
+
+    /**
+     * One producer publishing as fast as it can and slow subscribers, each on its own thread. They must only see newer and newer statuses, and the latest one at the end
+     */
+    @Test(timeout = 60000)
+    public void slowSubscribersOnTheirOwnThreads() throws InterruptedException {
+        final int PUBLISHES = 200000, THREADS = 4;
+        StatusBus bus = new StatusBus(new StatusBus.Clock() {
+            @Override
+            public long now() {
+                return System.nanoTime() / 1000000;
+            }
+        });
+        List<ScheduledExecutorService> executors = new ArrayList<>();
+        final AtomicLong[] lastSeen = new AtomicLong[THREADS];
+        final String[] problems = new String[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            final ScheduledExecutorService ex = Executors.newSingleThreadScheduledExecutor();
+            executors.add(ex);
+            final int id = i;
+            lastSeen[i] = new AtomicLong(-1);
+            bus.subscribe(new StatusBus.Subscriber() {
+                @Override
+                public void onStatus(PodStatus s) {
+                    if (s.getSequence() <= lastSeen[id].get()) problems[id] = "status " + s.getSequence() + " after " + lastSeen[id].get();
+                    lastSeen[id].set(s.getSequence());
+                    long t = System.nanoTime();
+                    while (System.nanoTime() - t < 20000 * (id + 1)) ; //slow subscriber
+                }
+            }, new StatusBus.Dispatcher() {
+                @Override
+                public void dispatch(Runnable r, long delayMs) {
+                    ex.schedule(r, delayMs, TimeUnit.MILLISECONDS);
+                }
+            }, i, true);
+        }
+        for (int k = 1; k <= PUBLISHES; k++) bus.publish(new PodStatus(PodStatus.pack(k % 101, 50, 50, 50, false, false, false, 0), k));
+        for (ScheduledExecutorService ex : executors) {
+            ex.shutdown(); //runs what's already scheduled, including the last delivery
+            assertTrue(ex.awaitTermination(10, TimeUnit.SECONDS));
+        }
+        for (int i = 0; i < THREADS; i++) {
+            assertNull("subscriber " + i, problems[i]);
+            assertEquals("subscriber " + i + ": last status", PUBLISHES, lastSeen[i].get());
+        }
+    }
+}
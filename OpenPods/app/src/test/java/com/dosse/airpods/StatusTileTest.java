@@ -0,0 +1,58 @@
+package com.dosse.airpods;
+
+import android.content.Intent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowApplication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * StatusTile starts the service when it becomes visible, and its subscription to the bus is what makes the service scan
+ */
+@RunWith(RobolectricTestRunner.class)
+public class StatusTileTest {
+    private StatusTile tile;
+    private ShadowApplication app;
+
+    @Before
+    public void setUp() {
+        tile = Robolectric.buildService(StatusTile.class).create().get();
+        app = shadowOf(RuntimeEnvironment.application);
+        app.clearStartedServices();
+    }
+
+    @After
+    public void tearDown() {
+        tile.onStopListening();
+    }
+
+    @Test
+    public void listeningStartsTheService() {
+        tile.onStartListening();
+        Intent started = app.getNextStartedService();
+        assertNotNull("the tile didn't start the service", started);
+        assertEquals(PodsService.class.getName(), started.getComponent().getClassName());
+        assertTrue("the tile doesn't make the service scan", PodsService.getBus().hasDemand());
+    }
+
+    @Test
+    public void stopListeningRemovesTheDemand() {
+        tile.onStartListening();
+        tile.onStopListening();
+        assertFalse(PodsService.getBus().hasDemand());
+        assertNotNull(app.getNextStartedService());
+        assertNull("started more than once", app.getNextStartedService());
+    }
+}
@@ -0,0 +1,177 @@
+package com.dosse.airpods;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * TimerWheel driven by a virtual clock
+ */
+public class TimerWheelTest {
+    private static final int SEQUENCES = 500, EVENTS = 2000, TIMERS = 16;
+
+    private TimerWheel wheel;
+    private TimerWheel.Timer[] timers;
+    private long[] expected; //deadline of each timer, -1 if it's not scheduled
+    private long now;
+    private final Random r = new Random(19);
+    private String problem;
+
+    private final class Task implements Runnable {
+        final int id;
+
+        Task(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public void run() {
+            if (expected[id] == -1) problem = "timer " + id + " ran but it wasn't scheduled";
+            else if (expected[id] > now) problem = "timer " + id + " ran at " + now + ", its deadline is " + expected[id];
+            expected[id] = -1;
+            //what the timers of PodsService do: reschedule themselves, or change other timers
+            switch (r.nextInt(6)) {
+                case 0:
+                    schedule(id, now + 1 + r.nextInt(10000));
+                    break;
+                case 1:
+                    int other = r.nextInt(TIMERS);
+                    wheel.cancel(timers[other]);
+                    expected[other] = -1;
+                    break;
+                case 2:
+                    schedule(r.nextInt(TIMERS), now - r.nextInt(500)); //already late, runs in this advance or the next one
+                    break;
+            }
+        }
+    }
+
+    private void schedule(int id, long deadline) {
+        wheel.schedule(timers[id], deadline);
+        expected[id] = deadline;
+    }
+
+    /**
+     * Random timers, that reschedule and cancel each other while they run like the timers of PodsService, some deadlines several turns of the wheel away. Checks that:
+     * - a timer runs exactly once per schedule, never before its deadline, and as soon as the clock reaches it
+     * - cancelled and rescheduled timers don't run at their old deadline
+     * - nextDeadline is always the earliest deadline, and -1 when there are no timers, so whoever drives the wheel never wakes up for nothing
+     */
+    @Test
+    public void randomTimers() {
+        for (int s = 0; s < SEQUENCES; s++) {
+            long tick = 1 + r.nextInt(200);
+            int slots = 1 << r.nextInt(9); //as small as 1 slot, so most deadlines are several turns away
+            now = r.nextInt(1000000);
+            wheel = new TimerWheel(tick, slots, now);
+            timers = new TimerWheel.Timer[TIMERS];
+            expected = new long[TIMERS];
+            for (int i = 0; i < TIMERS; i++) {
+                timers[i] = wheel.newTimer(new Task(i));
+                expected[i] = -1;
+            }
+            for (int e = 0; e < EVENTS; e++) {
+                int id = r.nextInt(TIMERS);
+                boolean advanced = false;
+                switch (r.nextInt(4)) {
+                    case 0:
+                        schedule(id, now + r.nextInt(r.nextBoolean() ? 1000 : 100000));
+                        break;
+                    case 1:
+                        wheel.cancel(timers[id]);
+                        expected[id] = -1;
+                        break;
+                    case 2:
+                        if (expected[id] == -1 || r.nextBoolean()) schedule(id, now + r.nextInt(5000));
+                        break;
+                    default:
+                        //time passes: either to the next deadline, like the Handler in PodsService, or by a random amount
+                        long next = wheel.nextDeadline();
+                        if (next != -1 && r.nextBoolean()) now = Math.max(now, next);
+                        else now += r.nextInt(r.nextBoolean() ? 100 : 20000);
+                        wheel.advance(now);
+                        advanced = true;
+                        break;
+                }
+                assertConsistent("sequence " + s + ", event " + e + " at " + now + "ms", advanced);
+            }
+            //no more events: cancel everything and check that there's nothing to wake up for
+            for (int i = 0; i < TIMERS; i++) wheel.cancel(timers[i]);
+            assertEquals("sequence " + s + ": timers left after cancelling all of them", -1, wheel.nextDeadline());
+            assertEquals(0, wheel.size());
+        }
+    }
+
+    /**
+     * @param advanced true if advance was just called, so no timer can be due. Otherwise a timer that was just scheduled at now or earlier waits for the next advance
+     */
+    private void assertConsistent(String where, boolean advanced) {
+        assertNull(where, problem);
+        long earliest = -1;
+        int count = 0;
+        for (int i = 0; i < TIMERS; i++) {
+            if (expected[i] == -1) {
+                assertFalse(where + ": timer " + i + " is scheduled but it shouldn't be", timers[i].isScheduled());
+                continue;
+            }
+            count++;
+            assertTrue(where + ": timer " + i + " should be scheduled at " + expected[i], timers[i].isScheduled() && timers[i].getDeadline() == expected[i]);
+            assertFalse(where + ": timer " + i + " is due since " + expected[i] + " but it didn't run", advanced && expected[i] <= now);
+            if (earliest == -1 || expected[i] < earliest) earliest = expected[i];
+        }
+        assertEquals(where + ": size", count, wheel.size());
+        assertEquals(where + ": next deadline", earliest, wheel.nextDeadline());
+    }
+
+    /**
+     * The timers of PodsService: a beacon every second for a minute, then nothing. The stale timer must fire once, TIMEOUT_CONNECTED after the last beacon, and the device expiry once, DEVICES_MAX_T after it, then there must be no more wakeups
+     */
+    @Test
+    public void serviceTimersAreLazy() {
+        final long timeout = 5000, maxAge = 10000;
+        final long[] lastBeacon = {0}, staleAt = {-1}, expiredAt = {-1};
+        now = 0;
+        wheel = new TimerWheel(100, 512, now);
+        final TimerWheel.Timer[] t = new TimerWheel.Timer[2];
+        t[0] = wheel.newTimer(new Runnable() {
+            @Override
+            public void run() {
+                if (now >= lastBeacon[0] + timeout) staleAt[0] = now;
+                else wheel.schedule(t[0], lastBeacon[0] + timeout);
+            }
+        });
+        t[1] = wheel.newTimer(new Runnable() {
+            @Override
+            public void run() {
+                if (now > lastBeacon[0] + maxAge) expiredAt[0] = now;
+                else wheel.schedule(t[1], lastBeacon[0] + maxAge + 1);
+            }
+        });
+        int wakeups = 0;
+        long nextBeacon = 0;
+        for (; ; ) {
+            long next = wheel.nextDeadline();
+            if (nextBeacon != -1 && (next == -1 || nextBeacon <= next)) { //a beacon
+                now = nextBeacon;
+                lastBeacon[0] = now;
+                if (!t[0].isScheduled()) wheel.schedule(t[0], now + timeout);
+                if (!t[1].isScheduled()) wheel.schedule(t[1], now + maxAge + 1);
+                nextBeacon = now < 60000 ? now + 1000 : -1;
+            } else if (next != -1) { //the Handler wakes us up for the next deadline
+                now = next;
+                wakeups++;
+                wheel.advance(now);
+            } else {
+                break;
+            }
+        }
+        assertEquals("the status became old", 60000 + timeout, staleAt[0]);
+        assertEquals("the devices expired", 60000 + maxAge + 1, expiredAt[0]);
+        assertTrue(wakeups + " wakeups, the timers are not lazy", wakeups <= 60000 / timeout + 60000 / maxAge + 2);
+    }
+}
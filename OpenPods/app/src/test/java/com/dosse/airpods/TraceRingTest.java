@@ -0,0 +1,121 @@
+package com.dosse.airpods;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * After the ring wraps around a snapshot has exactly the last getCapacity() events, oldest first; a reader taking snapshots while a writer records as fast as it can never sees a record that is half old and half new, or out of order; recording doesn't allocate; dump merges several rings by time and only prints the last events.
+ */
+public class TraceRingTest {
+    private static final int CAPACITY = 1024, EVENTS = 19;
+    private static final long CONCURRENT_RECORDS = 20000000, ALLOCATION_RECORDS = 10000000;
+
+    /**
+     * Every field of record i can be computed from i, so a torn record is easy to see
+     */
+    private static void record(TraceRing ring, long i) {
+        ring.record(i, (int) (i % EVENTS), i * 31, ~i);
+    }
+
+    /**
+     * @return null if the records are consecutive and each one is complete, what's wrong otherwise
+     */
+    private static String verify(long[] out, int n) {
+        for (int k = 0; k < n; k++) {
+            int o = k * TraceRing.FIELDS;
+            long i = out[o];
+            if (out[o + 1] != i % EVENTS || out[o + 2] != i * 31 || out[o + 3] != ~i) return "record " + i + " is torn";
+            if (k > 0 && i != out[o - TraceRing.FIELDS] + 1) return "record " + i + " follows " + out[o - TraceRing.FIELDS];
+        }
+        return null;
+    }
+
+    @Test
+    public void capacityIsRoundedUp() {
+        assertEquals(CAPACITY, new TraceRing("test", CAPACITY - 100).getCapacity());
+        assertEquals(1, new TraceRing("test", 1).getCapacity());
+    }
+
+    @Test
+    public void wrapAround() {
+        TraceRing ring = new TraceRing("test", CAPACITY);
+        long[] out = new long[CAPACITY * TraceRing.FIELDS];
+        for (long i = 0; i < CAPACITY * 5 / 2; i++) {
+            record(ring, i);
+            int n = ring.snapshot(out);
+            assertEquals("records in the snapshot after " + (i + 1) + " records", (int) Math.min(i + 1, CAPACITY), n);
+            assertNull("after " + (i + 1) + " records", verify(out, n));
+            assertEquals("last record after " + (i + 1) + " records", i, out[(n - 1) * TraceRing.FIELDS]);
+        }
+        assertEquals(CAPACITY * 5 / 2, ring.getRecorded());
+    }
+
+    @Test(timeout = 60000)
+    public void concurrentReaderNeverSeesTornRecords() throws InterruptedException {
+        final TraceRing ring = new TraceRing("test", CAPACITY);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                for (long i = 0; i < CONCURRENT_RECORDS; i++) record(ring, i);
+            }
+        };
+        writer.start();
+        long[] out = new long[CAPACITY * TraceRing.FIELDS];
+        long last = -1;
+        String problem = null;
+        while (writer.isAlive() && problem == null) {
+            int n = ring.snapshot(out);
+            problem = verify(out, n);
+            if (problem == null && n > 0 && out[(n - 1) * TraceRing.FIELDS] < last) problem = "the snapshot ends at " + out[(n - 1) * TraceRing.FIELDS] + ", the previous one ended at " + last;
+            if (n > 0) last = out[(n - 1) * TraceRing.FIELDS];
+        }
+        writer.join();
+        assertNull(problem, problem);
+        int n = ring.snapshot(out);
+        assertEquals(CAPACITY, n);
+        assertEquals("the last snapshot doesn't end with the last record", CONCURRENT_RECORDS - 1, out[(n - 1) * TraceRing.FIELDS]);
+    }
+
+    @Test
+    public void recordingDoesNotAllocate() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue("allocations can't be measured on this JVM", threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        TraceRing ring = new TraceRing("test", CAPACITY);
+        for (long i = 0; i < ALLOCATION_RECORDS; i++) record(ring, i); //warm up, so the JIT doesn't allocate while we measure
+        long id = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(id);
+        for (long i = 0; i < ALLOCATION_RECORDS; i++) record(ring, i);
+        long allocated = allocations.getThreadAllocatedBytes(id) - before;
+        assertTrue(allocated + " bytes allocated while recording, it shouldn't allocate", allocated <= 1024);
+    }
+
+    @Test
+    public void dumpMergesRingsByTime() {
+        TraceRing main = new TraceRing("main", 16), other = new TraceRing("notification", 16);
+        main.record(1000, TraceRing.SCANNER_START);
+        other.record(2000, TraceRing.NOTIFICATION_POSTED, 1, 1);
+        main.record(3000, TraceRing.SELECTED, 0x0123456789ABL, -55);
+        main.record(4000, TraceRing.SCAN_FAILED, 2, 0);
+        other.record(5000, TraceRing.NOTIFICATION_REMOVED);
+        StringWriter all = new StringWriter(), last = new StringWriter();
+        TraceRing.dump(new PrintWriter(all), 5000, Integer.MAX_VALUE, main, other);
+        TraceRing.dump(new PrintWriter(last), 5000, 2, main, other);
+        String[] expected = {"scanner start", "notification posted, status 1", "selected 01:23:45:67:89:AB, -55db", "scan failed 2", "notification removed"};
+        String[] lines = all.toString().split("\n");
+        assertEquals(all.toString(), expected.length + 1, lines.length);
+        for (int i = 0; i < expected.length; i++) assertTrue("event " + i + " is \"" + lines[i + 1].trim() + "\", it should be " + expected[i], lines[i + 1].endsWith(expected[i]));
+        String[] limited = last.toString().split("\n");
+        assertEquals(last.toString(), 3, limited.length);
+        assertTrue(last.toString(), limited[1].endsWith(expected[3]) && limited[2].endsWith(expected[4]));
+    }
+}
@@ -0,0 +1,120 @@
+package com.dosse.airpods.benchmark;
+
+import com.dosse.airpods.DeviceTable;
+
+import java.util.Random;
+
+/**
+ * Beacons to feed to the benchmarks.
+ * <p>
+ * The captured payloads are the ones in UPods RE.md (manufacturer data n°76, without the 4C 00 company id).
+ * Crowd traffic is synthetic: several devices with random addresses, levels and signal strength, plus some Apple beacons that are not from AirPods and must be rejected.
+ */
+public final class BeaconCorpus {
+    //the two full captures in UPods RE.md
+    public static final byte[] CAPTURE_FULL = bytes("07 19 01 02 20 55 AA 58 33 00 00 D7 E4 E4 38 48 20 80 40 A7 4F E2 C2 08 21 07 41");
+    public static final byte[] CAPTURE_HALF = bytes("07 19 01 02 20 55 AA 58 33 00 00 D7 B2 BC 07 48 20 80 40 A7 4F 3E C2 08 21 07 41");
+    //the table at the end of UPods RE.md, bytes 12, 13, 14 and 21 applied to the first capture
+    private static final int[][] TABLE = {
+            {0xE4, 0xE4, 0x38, 0xE2}, //airpods full, case not empty not full, not charging
+            {0xB2, 0xBC, 0x07, 0x3E}, //airpods not full, case empty, not charging
+            {0x28, 0xBC, 0x06, 0x3E}, //no right airpod
+            {0xB2, 0x32, 0x06, 0x3E}, //no left airpod
+            {0x28, 0x32, 0xFF, 0x3E}, //no left/right airpod
+            {0xA8, 0xB2, 0xB7, 0x3E}, //case charging with airpods
+            {0xE4, 0xE4, 0x5B, 0x3E}, //all charged
+    };
+
+    private BeaconCorpus() {
+    }
+
+    /**
+     * @return all the captured payloads: the two full captures and the rows of the table
+     */
+    public static byte[][] captures() {
+        byte[][] ret = new byte[TABLE.length + 2][];
+        ret[0] = CAPTURE_FULL.clone();
+        ret[1] = CAPTURE_HALF.clone();
+        for (int i = 0; i < TABLE.length; i++) {
+            byte[] b = CAPTURE_FULL.clone();
+            b[12] = (byte) TABLE[i][0];
+            b[13] = (byte) TABLE[i][1];
+            b[14] = (byte) TABLE[i][2];
+            b[21] = (byte) TABLE[i][3];
+            ret[i + 2] = b;
+        }
+        return ret;
+    }
+
+    /**
+     * A sequence of beacons, as they would be received by the scanner callback
+     */
+    public static final class Stream {
+        public final int[] rssi, device;
+        public final long[] address;
+        public final byte[][] payload;
+        public final String[] addresses;
+
+        Stream(int size, int devices) {
+            rssi = new int[size];
+            address = new long[size];
+            device = new int[size];
+            payload = new byte[size][];
+            addresses = new String[devices];
+        }
+
+        public int size() {
+            return rssi.length;
+        }
+    }
+
+    /**
+     * Generates crowd traffic. Device 0 is the closest one, like your own pods would be.
+     *
+     * @param devices     number of distinct devices sending beacons
+     * @param size        number of beacons
+     * @param rejectRatio fraction of the beacons that are from Apple devices that are not AirPods
+     * @param seed        seed for the random generator, the same seed always gives the same stream
+     */
+    public static Stream crowd(int devices, int size, double rejectRatio, long seed) {
+        Random r = new Random(seed);
+        Stream s = new Stream(size, devices);
+        byte[][] captures = captures();
+        byte[][] devicePayloads = new byte[devices][];
+        int[] baseRssi = new int[devices];
+        for (int d = 0; d < devices; d++) {
+            s.addresses[d] = randomAddress(r);
+            byte[] p = captures[r.nextInt(captures.length)].clone();
+            p[12] = (byte) ((r.nextBoolean() ? 0x80 : 0) | r.nextInt(101));
+            p[13] = (byte) ((r.nextBoolean() ? 0x80 : 0) | r.nextInt(101));
+            p[14] = (byte) (r.nextInt(8) == 0 ? 0xFF : r.nextInt(101));
+            devicePayloads[d] = p;
+            baseRssi[d] = d == 0 ? -45 : -60 - r.nextInt(40);
+        }
+        byte[] notAirPods = bytes("10 05 0B 1C 8F 21 3D");
+        for (int i = 0; i < size; i++) {
+            int d = r.nextInt(devices);
+            s.device[i] = d;
+            s.address[i] = DeviceTable.parseAddress(s.addresses[d]);
+            s.rssi[i] = baseRssi[d] + r.nextInt(11) - 5;
+            s.payload[i] = r.nextDouble() < rejectRatio ? notAirPods : devicePayloads[d];
+        }
+        return s;
+    }
+
+    public static String randomAddress(Random r) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 6; i++) {
+            if (i > 0) sb.append(':');
+            sb.append(String.format("%02X", r.nextInt(256)));
+        }
+        return sb.toString();
+    }
+
+    public static byte[] bytes(String hex) {
+        String[] parts = hex.trim().split(" +");
+        byte[] ret = new byte[parts.length];
+        for (int i = 0; i < parts.length; i++) ret[i] = (byte) Integer.parseInt(parts[i], 16);
+        return ret;
+    }
+}
@@ -0,0 +1,310 @@
+package com.dosse.airpods.benchmark;
+
+import com.dosse.airpods.BeaconPipeline;
+import com.dosse.airpods.DeviceTable;
+import com.dosse.airpods.PodStatus;
+import com.dosse.airpods.PodStatusHolder;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Simulates a crowd of pods around us (a packed bus) with a virtual clock, and pushes their beacons through the same code PodsService uses: BeaconPipeline (DeviceTable, ProximityEstimator, BeaconDecoder) and PodStatusHolder.
+ * <p>
+ * Each virtual pod has:
+ * - a scripted battery curve. Ours go down 1% every few seconds, so the status changes often and staleness shows
+ * - a random address that rotates every 2-6 minutes (real pods do it about every 15 minutes, it's compressed so the runs can be short)
+ * - an rssi with noise on each beacon. Ours are in our ears, their rssi wanders between -62 and -48db. The others are spread uniformly over the area around us, between 0.5 and 15m, and walk around; their rssi is -59db at 1m, minus 25db per decade of distance. So with a few people the others are rarely as close as ours, in a crowd someone almost always is
+ * - packet loss, higher when the signal is weak
+ * Device 0 is ours. Everything is seeded, the same scenario always gives the same beacons.
+ * <p>
+ * For each scenario (number of devices) it reports:
+ * - CPU time per beacon, and bytes allocated per beacon, of the pipeline alone
+ * - memory used by the pipeline: what it allocates when it's created (it never grows after that, the table has a fixed capacity), the bytes per beacon show that it stays that way
+ * - selection accuracy: how often the selected device is ours (any of its addresses), against the ground truth
+ * - how long the notification would show old values (no beacon for 5s), and how long it would show levels that are not ours
+ * <p>
+ * Run it with ./gradlew :benchmark:crowdSimulation [-Pdevices=1,10,500] [-Pseconds=600]. CrowdSimulatorTest fails if the accuracy with few devices or the allocations per beacon get worse.
+ */
+public final class CrowdSimulator {
+    private static final int DEVICES_CAPACITY = 64; //same as PodsService
+    private static final long DEVICES_MAX_AGE_NS = 10000000000L; //same as PodsService
+    static final long DUPLICATE_WINDOW_NS = 3000000000L; //same as PodsService
+    private static final long TIMEOUT_CONNECTED_NS = 5000000000L; //same as PodsService
+    private static final long WARMUP_NS = 3000000000L; //no selection can be right before our pods were heard
+    private static final long SECOND = 1000000000L;
+    private static final double MIN_DISTANCE = 0.5, MAX_DISTANCE = 15; //m, where the other people are
+    private static final int[] DEFAULT_DEVICES = {1, 2, 5, 10, 20, 50, 100, 200, 500};
+    static final long DEFAULT_SECONDS = 600;
+
+    /**
+     * The beacons of a scenario, in the order they're received
+     */
+    static final class Stream {
+        int size = 0;
+        long[] timestamp = new long[1024], address = new long[1024];
+        int[] rssi = new int[1024], owner = new int[1024];
+        byte[][] payload = new byte[1024][];
+        final Map<Long, Integer> owners = new HashMap<>(); //every address that was used, and its device
+        Pod ours; //ground truth, device 0
+
+        void add(long t, long a, int r, int o, byte[] p) {
+            if (size == timestamp.length) {
+                int n = size * 2;
+                timestamp = Arrays.copyOf(timestamp, n);
+                address = Arrays.copyOf(address, n);
+                rssi = Arrays.copyOf(rssi, n);
+                owner = Arrays.copyOf(owner, n);
+                payload = Arrays.copyOf(payload, n);
+            }
+            timestamp[size] = t;
+            address[size] = a;
+            rssi[size] = r;
+            owner[size] = o;
+            payload[size] = p;
+            size++;
+        }
+    }
+
+    private static final class Pod {
+        long address, nextRotation;
+        double rssiMean, distance, loss; //distance is 0 for ours
+        long interval;
+        //battery script: levels at t=0 and % per second, negative when discharging
+        double left0, right0, case0, leftSlope, rightSlope, caseSlope;
+        int payloadLevels = -1;
+        byte[] payload;
+
+        int left(long t) {
+            return level(left0 + leftSlope * t / SECOND);
+        }
+
+        int right(long t) {
+            return level(right0 + rightSlope * t / SECOND);
+        }
+
+        int caseLevel(long t) {
+            return level(case0 + caseSlope * t / SECOND);
+        }
+
+        private static int level(double l) {
+            return (int) Math.max(0, Math.min(100, l));
+        }
+
+        /**
+         * @return the payload with the levels at time t. A new array only when the levels change, like the real thing it's the same bytes until then
+         */
+        byte[] payload(long t) {
+            int l = left(t), r = right(t), c = caseLevel(t);
+            int levels = (l << 16) | (r << 8) | c;
+            if (levels != payloadLevels) {
+                payloadLevels = levels;
+                payload = BeaconCorpus.CAPTURE_FULL.clone(); //clone format: byte 13 is left, 12 is right, the first bit says the pod is there. 14 is the case, the first bit is charging
+                payload[13] = (byte) (0x80 | l);
+                payload[12] = (byte) (0x80 | r);
+                payload[14] = (byte) ((caseSlope > 0 ? 0x80 : 0) | c);
+            }
+            return payload;
+        }
+    }
+
+    public static void main(String[] args) {
+        int[] scenarios = DEFAULT_DEVICES;
+        long seconds = DEFAULT_SECONDS;
+        if (args.length >= 1 && !args[0].isEmpty()) {
+            String[] parts = args[0].split(",");
+            scenarios = new int[parts.length];
+            for (int i = 0; i < parts.length; i++) scenarios[i] = Integer.parseInt(parts[i].trim());
+        }
+        if (args.length >= 2 && !args[1].isEmpty()) seconds = Long.parseLong(args[1]);
+
+        pipelineOnly(generate(100, 120, 0)); //warms up the JIT, so the first scenario isn't slower than the others
+        System.out.println(String.format("%8s %9s %9s %9s %9s %9s %9s %9s", "devices", "beacons", "ns/beacon", "B/beacon", "table KB", "accuracy", "old %", "wrong %"));
+        for (int devices : scenarios) {
+            Stream s = generate(devices, seconds, devices);
+            long[] cost = pipelineOnly(s);
+            double[] quality = quality(s, seconds);
+            double allocated = cost[1] < 0 ? Double.NaN : (double) cost[1] / s.size;
+            System.out.println(String.format("%8d %9d %9.0f %9s %9s %8.1f%% %8.2f%% %8.2f%%", devices, s.size, (double) cost[0] / s.size, cost[1] < 0 ? "n/a" : String.format("%.2f", allocated), cost[2] < 0 ? "n/a" : String.valueOf(cost[2] / 1024), quality[0] * 100, quality[1] * 100, quality[2] * 100));
+        }
+    }
+
+    /**
+     * Generates the beacons of a scenario
+     */
+    static Stream generate(int devices, long seconds, long seed) {
+        Random r = new Random(seed * 7919 + devices);
+        Stream s = new Stream();
+        final Pod[] pods = new Pod[devices];
+        PriorityQueue<long[]> next = new PriorityQueue<>(devices, new java.util.Comparator<long[]>() { //{time, device}
+            @Override
+            public int compare(long[] a, long[] b) {
+                return Long.compare(a[0], b[0]);
+            }
+        });
+        for (int d = 0; d < devices; d++) {
+            Pod p = new Pod();
+            p.address = newAddress(r, s, d);
+            p.nextRotation = (120 + r.nextInt(240)) * SECOND;
+            if (d == 0) {
+                p.rssiMean = -55;
+                p.loss = 0.05;
+                p.left0 = 100;
+                p.right0 = 95;
+                p.case0 = 30;
+                p.leftSlope = -1 / 3.0;
+                p.rightSlope = -1 / 3.5;
+                p.caseSlope = 1 / 10.0;
+            } else {
+                p.distance = Math.sqrt(MIN_DISTANCE * MIN_DISTANCE + r.nextDouble() * (MAX_DISTANCE * MAX_DISTANCE - MIN_DISTANCE * MIN_DISTANCE)); //uniform over the area
+                p.rssiMean = rssiAt(p.distance);
+                p.loss = 0.05 + r.nextDouble() * 0.25;
+                p.left0 = 20 + r.nextInt(81);
+                p.right0 = 20 + r.nextInt(81);
+                p.case0 = r.nextInt(101);
+                p.leftSlope = -r.nextDouble() / 60;
+                p.rightSlope = -r.nextDouble() / 60;
+                p.caseSlope = r.nextInt(4) == 0 ? r.nextDouble() / 30 : 0;
+            }
+            p.interval = (200 + r.nextInt(200)) * 1000000L;
+            pods[d] = p;
+            next.add(new long[]{r.nextInt(400) * 1000000L, d});
+        }
+        long end = seconds * SECOND, lastWalk = 0;
+        while (!next.isEmpty()) {
+            long[] e = next.poll();
+            long t = e[0];
+            if (t >= end) break;
+            Pod p = pods[(int) e[1]];
+            if (t - lastWalk >= SECOND) { //random walk, once per second for everyone: we turn our head, people move around
+                for (Pod q : pods) {
+                    if (q.distance == 0) {
+                        q.rssiMean = Math.max(-62, Math.min(-48, q.rssiMean + r.nextGaussian()));
+                    } else {
+                        q.distance = Math.max(MIN_DISTANCE, Math.min(MAX_DISTANCE, q.distance + r.nextGaussian() * 0.2));
+                        q.rssiMean = rssiAt(q.distance);
+                    }
+                }
+                lastWalk = t;
+            }
+            if (t >= p.nextRotation) {
+                p.address = newAddress(r, s, (int) e[1]);
+                p.nextRotation = t + (120 + r.nextInt(240)) * SECOND;
+            }
+            int rssi = (int) Math.round(p.rssiMean + r.nextGaussian() * 4);
+            double loss = p.loss + (rssi < -90 ? (-90 - rssi) / 10.0 : 0);
+            if (rssi >= -100 && r.nextDouble() >= loss) s.add(t, p.address, rssi, (int) e[1], p.payload(t));
+            e[0] = t + p.interval + r.nextInt(10) * 1000000L; //advertising delay, 0-10ms
+            next.add(e);
+        }
+        s.ours = pods[0];
+        return s;
+    }
+
+    private static double rssiAt(double meters) {
+        return -59 - 25 * Math.log10(meters);
+    }
+
+    private static long newAddress(Random r, Stream s, int owner) {
+        long a;
+        do {
+            a = DeviceTable.parseAddress(BeaconCorpus.randomAddress(r));
+        } while (s.owners.containsKey(a));
+        s.owners.put(a, owner);
+        return a;
+    }
+
+    /**
+     * Runs the beacons through the pipeline and the status holder like the scanner callback does, and nothing else, several times
+     *
+     * @return best CPU time in ns, bytes allocated (-1 if the JVM can't tell), bytes allocated to create the pipeline (-1 if the JVM can't tell)
+     */
+    static long[] pipelineOnly(Stream s) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean allocations = threads instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean) threads : null;
+        long thread = Thread.currentThread().getId();
+        long best = Long.MAX_VALUE, allocated = -1, created = -1;
+        for (int run = 0; run < 3; run++) {
+            long alloc0 = allocations != null ? allocations.getThreadAllocatedBytes(thread) : 0;
+            BeaconPipeline pipeline = newPipeline(DUPLICATE_WINDOW_NS);
+            PodStatusHolder status = new PodStatusHolder();
+            if (allocations != null) {
+                created = allocations.getThreadAllocatedBytes(thread) - alloc0;
+                alloc0 = allocations.getThreadAllocatedBytes(thread);
+            }
+            long cpu0 = threads.getCurrentThreadCpuTime();
+            for (int i = 0; i < s.size; i++) {
+                process(pipeline, status, s, i);
+            }
+            long cpu = threads.getCurrentThreadCpuTime() - cpu0;
+            if (allocations != null) allocated = allocations.getThreadAllocatedBytes(thread) - alloc0;
+            best = Math.min(best, cpu);
+        }
+        return new long[]{best, allocated, created};
+    }
+
+    /**
+     * @param duplicateWindowNs see BeaconPipeline, 0 to decode every beacon
+     * @return a pipeline set up like the one of PodsService, with our pods connected
+     */
+    static BeaconPipeline newPipeline(long duplicateWindowNs) {
+        BeaconPipeline pipeline = new BeaconPipeline(DEVICES_CAPACITY, DEVICES_MAX_AGE_NS, duplicateWindowNs);
+        pipeline.setConnected(true);
+        return pipeline;
+    }
+
+    /**
+     * Processes beacon i like the scanner callback of PodsService
+     *
+     * @return true if there's a status
+     */
+    static boolean process(BeaconPipeline pipeline, PodStatusHolder status, Stream s, int i) {
+        if (!pipeline.onBeacon(s.timestamp[i], s.timestamp[i], s.rssi[i], s.address[i], s.payload[i])) return false;
+        status.publish(pipeline.getResult(), s.timestamp[i] / 1000000);
+        return true;
+    }
+
+    /**
+     * Runs the beacons through the pipeline again, comparing what would be shown with the ground truth
+     *
+     * @return selection accuracy, fraction of the time the status is old, fraction of the time the levels shown are not ours
+     */
+    static double[] quality(Stream s, long seconds) {
+        BeaconPipeline pipeline = newPipeline(DUPLICATE_WINDOW_NS);
+        DeviceTable devices = pipeline.getDevices();
+        PodStatusHolder status = new PodStatusHolder();
+        Pod ours = s.ours;
+        long counted = 0, right = 0, lastDecoded = Long.MIN_VALUE / 2, oldNs = 0, wrongNs = 0, prev = WARMUP_NS;
+        long selectedKey = DeviceTable.NO_ADDRESS;
+        int selectedOwner = -1;
+        for (int i = 0; i <= s.size; i++) {
+            long t = i < s.size ? s.timestamp[i] : seconds * SECOND;
+            if (t > prev) { //what was shown between the previous beacon and this one
+                long oldFrom = Math.max(prev, lastDecoded + TIMEOUT_CONNECTED_NS);
+                if (t > oldFrom) oldNs += t - oldFrom;
+                PodStatus shown = status.get();
+                if (shown.getLeftStatus() != ours.left(prev) || shown.getRightStatus() != ours.right(prev) || shown.getLastCaseStatus() != ours.caseLevel(prev)) wrongNs += t - prev;
+                prev = t;
+            }
+            if (i == s.size) break;
+            if (!process(pipeline, status, s, i)) continue;
+            lastDecoded = t;
+            long key = devices.getKey(devices.getSelected());
+            if (key != selectedKey) { //the map lookup boxes, only do it when the selection changes
+                selectedKey = key;
+                Integer o = s.owners.get(key);
+                selectedOwner = o != null ? o : -1;
+            }
+            if (t < WARMUP_NS) continue;
+            counted++;
+            if (selectedOwner == 0) right++;
+        }
+        double total = seconds * SECOND - WARMUP_NS;
+        return new double[]{counted == 0 ? 0 : (double) right / counted, oldNs / total, wrongNs / total};
+    }
+}
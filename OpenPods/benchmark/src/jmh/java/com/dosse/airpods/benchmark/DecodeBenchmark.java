@@ -0,0 +1,63 @@
+package com.dosse.airpods.benchmark;
+
+import com.dosse.airpods.BeaconDecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of decoding the captured payloads, with BeaconDecoder and with the hex string decoding that was used before it
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DecodeBenchmark {
+    private byte[][] captures;
+    private BeaconDecoder.Result result;
+    private int i;
+
+    @Setup
+    public void setup() {
+        captures = BeaconCorpus.captures();
+        result = new BeaconDecoder.Result();
+        i = 0;
+    }
+
+    @Benchmark
+    public BeaconDecoder.Result decoder() {
+        BeaconDecoder.decode(next(), result);
+        return result;
+    }
+
+    @Benchmark
+    public void hexStrings(Blackhole bh) {
+        String[] hexstr = decodeHex(next());
+        bh.consume(Integer.parseInt(hexstr[13], 16) & 0b01111111);
+        bh.consume(Integer.parseInt(hexstr[12], 16) & 0b01111111);
+        bh.consume(Integer.parseInt(hexstr[14], 16));
+        bh.consume((Integer.parseInt(hexstr[13], 16) & 0b10000000) != 0);
+        bh.consume((Integer.parseInt(hexstr[12], 16) & 0b10000000) != 0);
+        bh.consume(Integer.parseInt(hexstr[14], 16) == 255);
+    }
+
+    private byte[] next() {
+        i = (i + 1) % captures.length;
+        return captures[i];
+    }
+
+    private static String[] decodeHex(byte[] bArr) {
+        String[] ret = new String[bArr.length];
+        for (int i = 0; i < bArr.length; ++i) {
+            ret[i] = String.format("%02x", bArr[i]);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,135 @@
+package com.dosse.airpods.benchmark;
+
+import com.dosse.airpods.BatchingScanner;
+import com.dosse.airpods.BeaconDecoder;
+
+/**
+ * In-process PodsScanner that behaves like a BT controller, to count callbacks without a radio.
+ * <p>
+ * The test calls advertise for every advertisement sent by a simulated device, and advanceTo as time passes. The fake:
+ * - only receives advertisements during the scan window of the current mode (same windows as Android: 512ms every 5120ms for low power, 1024ms every 4096ms for balanced, always for low latency)
+ * - applies the manufacturer data filter, like the controller does
+ * - without report delay, delivers each advertisement in its own callback
+ * - with a report delay, keeps them in the controller queue and delivers them all in one callback when the delay expires (or when the controller queue is full)
+ */
+public final class FakeScanner extends BatchingScanner {
+    private static final long[] WINDOW_NS = {512000000L, 1024000000L, 4096000000L}, INTERVAL_NS = {5120000000L, 4096000000L, 4096000000L};
+
+    private final boolean batchingSupported;
+    private byte[] filterData = null, filterMask = null;
+    private boolean running = false;
+    private int mode;
+    private long reportDelayNs, startNs, nextFlushNs;
+    private long now = 0; //the scan windows start when the scan is started
+
+    //controller queue
+    private final long[] qTimestamp, qAddress;
+    private final int[] qRssi;
+    private final byte[][] qData;
+    private int qCount = 0;
+
+    /**
+     * @param queueSize          queue size of the BatchingScanner, how many beacons are delivered to the listener per callback
+     * @param controllerCapacity how many results the simulated controller can hold while batching
+     * @param batchingSupported  what isBatchingSupported returns
+     */
+    public FakeScanner(int queueSize, int controllerCapacity, boolean batchingSupported, Listener listener) {
+        super(queueSize, listener);
+        this.batchingSupported = batchingSupported;
+        qTimestamp = new long[controllerCapacity];
+        qAddress = new long[controllerCapacity];
+        qRssi = new int[controllerCapacity];
+        qData = new byte[controllerCapacity][];
+    }
+
+    /**
+     * Sets the manufacturer data filter, same semantics as ScanFilter.Builder.setManufacturerData. null to receive everything
+     */
+    public void setFilter(byte[] data, byte[] mask) {
+        filterData = data;
+        filterMask = mask;
+    }
+
+    @Override
+    public void startScan(int scanMode, long reportDelayMillis) {
+        running = true;
+        mode = scanMode;
+        reportDelayNs = reportDelayMillis * 1000000L;
+        startNs = now;
+        nextFlushNs = now + reportDelayNs;
+    }
+
+    @Override
+    public void stopScan() {
+        flush();
+        running = false;
+    }
+
+    @Override
+    public boolean isBatchingSupported() {
+        return batchingSupported;
+    }
+
+    /**
+     * A simulated device sent an advertisement
+     *
+     * @param data manufacturer specific data n°76
+     */
+    public void advertise(long timestampNs, long address, int rssi, byte[] data) {
+        advanceTo(timestampNs);
+        if (!running || (timestampNs - startNs) % INTERVAL_NS[mode] >= WINDOW_NS[mode] || !matches(data)) return;
+        if (reportDelayNs == 0) {
+            beginCallback();
+            offer(timestampNs, address, rssi, data);
+            endCallback();
+            return;
+        }
+        if (qCount == qTimestamp.length) flush(); //controller queue full, it flushes early
+        qTimestamp[qCount] = timestampNs;
+        qAddress[qCount] = address;
+        qRssi[qCount] = rssi;
+        qData[qCount] = data;
+        qCount++;
+    }
+
+    /**
+     * Moves time forward, delivering batches whose report delay expired
+     */
+    public void advanceTo(long nowNs) {
+        now = nowNs;
+        if (running && reportDelayNs != 0 && nowNs >= nextFlushNs) {
+            flush();
+            nextFlushNs = nowNs - (nowNs - nextFlushNs) % reportDelayNs + reportDelayNs;
+        }
+    }
+
+    private void flush() {
+        if (qCount == 0) return;
+        beginCallback();
+        for (int i = 0; i < qCount; i++) offer(qTimestamp[i], qAddress[i], qRssi[i], qData[i]);
+        endCallback();
+        qCount = 0;
+    }
+
+    private boolean matches(byte[] data) {
+        if (data == null) return false;
+        if (filterData == null) return true;
+        if (data.length < filterData.length) return false;
+        for (int i = 0; i < filterData.length; i++) {
+            if (((data[i] ^ filterData[i]) & filterMask[i]) != 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the filter PodsService used before BeaconDecoder.getFilter: only type and length
+     */
+    public static byte[][] legacyFilter() {
+        byte[] data = new byte[BeaconDecoder.DATA_LENGTH], mask = new byte[BeaconDecoder.DATA_LENGTH];
+        data[0] = 7;
+        data[1] = 25;
+        mask[0] = -1;
+        mask[1] = -1;
+        return new byte[][]{data, mask};
+    }
+}
@@ -0,0 +1,63 @@
+package com.dosse.airpods.benchmark;
+
+import com.dosse.airpods.BeaconPipeline;
+import com.dosse.airpods.PodStatusHolder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a single beacon going through the same path as in PodsService: filter, table of nearby devices, decode, status update.
+ * <p>
+ * The beacon rate doesn't change how fast we feed beacons to the pipeline, it changes the timestamps, and therefore how many devices are still in the table and how often they expire.
+ * With 200 devices the table is always full and devices are evicted.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PipelineBenchmark {
+    private static final int STREAM_SIZE = 1 << 16;
+    private static final int DEVICES_CAPACITY = 64; //same as PodsService
+    private static final long DEVICES_MAX_AGE_NS = 10000000000L; //same as PodsService
+
+    @Param({"1", "100", "5000"})
+    public int beaconsPerSecond;
+
+    @Param({"1", "20", "200"})
+    public int devices;
+
+    @Param({"0", "3000"})
+    public long duplicateWindowMs; //3000 like PodsService, 0 decodes every beacon
+
+    private BeaconCorpus.Stream stream;
+    private BeaconPipeline pipeline;
+    private PodStatusHolder status;
+    private long intervalNs, now;
+    private int i;
+
+    @Setup
+    public void setup() {
+        stream = BeaconCorpus.crowd(devices, STREAM_SIZE, 0.1, 42);
+        pipeline = new BeaconPipeline(DEVICES_CAPACITY, DEVICES_MAX_AGE_NS, duplicateWindowMs * 1000000L);
+        status = new PodStatusHolder();
+        intervalNs = 1000000000L / beaconsPerSecond;
+        now = 0;
+        i = 0;
+    }
+
+    @Benchmark
+    public boolean onBeacon() {
+        int k = i++ & (STREAM_SIZE - 1);
+        now += intervalNs;
+        if (!pipeline.onBeacon(now, now, stream.rssi[k], stream.address[k], stream.payload[k])) return false;
+        return status.publish(pipeline.getResult(), now / 1000000L);
+    }
+}
@@ -0,0 +1,82 @@
+package com.dosse.airpods.benchmark;
+
+import com.dosse.airpods.BeaconLog;
+import com.dosse.airpods.BeaconLogReader;
+import com.dosse.airpods.BeaconPipeline;
+import com.dosse.airpods.PodStatusHolder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a beacon log recorded by the app (Settings, Record beacons) through the pipeline, at full speed.
+ * <p>
+ * Pass the log with -Pjmh.params=logFile=/path/to/beacons.bin or edit the default. If no log is given, a synthetic one is recorded from crowd traffic.
+ * To see what the pipeline decides for each beacon of a log instead, use ReplayLog.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ReplayBenchmark {
+    private static final int SYNTHETIC_SIZE = 1 << 16;
+    private static final int DEVICES_CAPACITY = 64; //same as PodsService
+    private static final long DEVICES_MAX_AGE_NS = 10000000000L; //same as PodsService
+
+    @Param({""})
+    public String logFile;
+
+    private File file;
+    private BeaconLogReader reader;
+
+    @Setup
+    public void setup() throws IOException {
+        if (logFile.isEmpty()) {
+            file = File.createTempFile("beacons", ".bin");
+            file.delete();
+            record(BeaconCorpus.crowd(20, SYNTHETIC_SIZE, 0, 42), file, 10000000L); //100 beacons per second
+            file.deleteOnExit();
+        } else {
+            file = new File(logFile);
+        }
+        reader = new BeaconLogReader(file);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        reader.close();
+    }
+
+    /**
+     * Replays the whole log with a fresh pipeline, the result is the time for the whole log (the synthetic one has 65536 beacons)
+     */
+    @Benchmark
+    public int replay() {
+        return reader.replay(new BeaconPipeline(DEVICES_CAPACITY, DEVICES_MAX_AGE_NS), new PodStatusHolder());
+    }
+
+    /**
+     * Writes a stream to a beacon log, like the app would
+     *
+     * @param intervalNs time between beacons
+     */
+    static void record(BeaconCorpus.Stream s, File f, long intervalNs) {
+        BeaconLog log = new BeaconLog(f.getParentFile(), f.getName(), s.size(), 1);
+        long now = 0;
+        for (int i = 0; i < s.size(); i++) {
+            now += intervalNs;
+            while (!log.append(now, s.address[i], s.rssi[i], s.payload[i]) && s.payload[i].length == 27) Thread.yield(); //the ring is full, wait for the writer
+        }
+        log.close();
+    }
+}
@@ -0,0 +1,61 @@
+package com.dosse.airpods.benchmark;
+
+import com.dosse.airpods.BeaconDecoder;
+import com.dosse.airpods.BeaconLogReader;
+import com.dosse.airpods.BeaconPipeline;
+import com.dosse.airpods.DeviceTable;
+import com.dosse.airpods.PodStatusHolder;
+
+import java.io.File;
+
+/**
+ * Replays a beacon log recorded by the app and prints what the pipeline decides, to reproduce bugs from the field.
+ * <p>
+ * Run it with ./gradlew :benchmark:replayLog -PbeaconLog=/path/to/beacons.bin
+ * Every beacon is printed in hex with its address and rssi, followed by the new status when it changes.
+ */
+public final class ReplayLog {
+    private static final int DEVICES_CAPACITY = 64; //same as PodsService
+    private static final long DEVICES_MAX_AGE_NS = 10000000000L; //same as PodsService
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: ReplayLog beacons.bin");
+            System.exit(1);
+        }
+        BeaconLogReader reader = new BeaconLogReader(new File(args[0]));
+        try {
+            BeaconPipeline pipeline = new BeaconPipeline(DEVICES_CAPACITY, DEVICES_MAX_AGE_NS);
+            PodStatusHolder status = new PodStatusHolder();
+            byte[] data = new byte[BeaconDecoder.DATA_LENGTH];
+            long start = reader.size() > 0 ? reader.getTimestamp(0) : 0;
+            int rejected = 0, changes = 0;
+            for (int i = 0; i < reader.size(); i++) {
+                long ts = reader.getTimestamp(i);
+                reader.getData(i, data);
+                System.out.println(String.format("%10.3fs %012X %4ddb %s", (ts - start) / 1e9, reader.getAddress(i), reader.getRssi(i), hex(data)));
+                if (!pipeline.onBeacon(ts, ts, reader.getRssi(i), reader.getAddress(i), data)) {
+                    rejected++;
+                    continue;
+                }
+                if (status.publish(pipeline.getResult(), ts / 1000000)) {
+                    changes++;
+                    DeviceTable devices = pipeline.getDevices();
+                    System.out.println(String.format("            -> %s, from %012X", status.get(), devices.getKey(devices.getSelected())));
+                }
+            }
+            System.out.println(reader.size() + " beacons, " + rejected + " rejected, " + changes + " status changes, " + pipeline.getDevices().getEvictions() + " devices evicted");
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static String hex(byte[] data) {
+        StringBuilder sb = new StringBuilder(data.length * 3);
+        for (byte b : data) {
+            if (sb.length() > 0) sb.append(' ');
+            sb.append(String.format("%02X", b));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,99 @@
+package com.dosse.airpods.benchmark;
+
+import com.dosse.airpods.BeaconBatch;
+import com.dosse.airpods.BeaconDecoder;
+import com.dosse.airpods.BeaconPipeline;
+import com.dosse.airpods.DeviceTable;
+import com.dosse.airpods.PodsScanner;
+
+import java.util.Random;
+
+/**
+ * Counts how many times the app is woken up by the scanner, with FakeScanner, for the old and new scanner configurations.
+ * <p>
+ * Run it with ./gradlew :benchmark:scannerWakeups
+ * <p>
+ * Simulated traffic, 10 minutes: our pods and 15 other Apple devices, each sending an advertisement every 200ms. Half of the other devices send proximity pairing messages that are not from paired pods (the prefix byte is not 01), they pass the old filter but not the new one.
+ * ScannerWakeupsTest checks the filter, the report delay and the queue on the same traffic.
+ */
+public final class ScannerWakeups {
+    private static final long DURATION_NS = 600000000000L;
+    private static final long ADVERTISING_INTERVAL_NS = 200000000L;
+    private static final int OTHER_DEVICES = 15;
+    static final int QUEUE_SIZE = 128; //same as PodsService
+
+    /**
+     * What the listener got during a run, the scanner has the rest of the counters
+     */
+    static final class Run {
+        FakeScanner scanner;
+        long delivered, decoded;
+    }
+
+    public static void main(String[] args) throws Exception {
+        print("old filter, balanced", run(false, PodsScanner.MODE_BALANCED, 0, QUEUE_SIZE));
+        print("new filter, balanced", run(true, PodsScanner.MODE_BALANCED, 0, QUEUE_SIZE));
+        print("new filter, low power", run(true, PodsScanner.MODE_LOW_POWER, 0, QUEUE_SIZE));
+        print("new filter, low power, 10s", run(true, PodsScanner.MODE_LOW_POWER, 10000, QUEUE_SIZE));
+        print("new filter, low latency", run(true, PodsScanner.MODE_LOW_LATENCY, 0, QUEUE_SIZE));
+        print("new filter, low latency, 2s", run(true, PodsScanner.MODE_LOW_LATENCY, 2000, QUEUE_SIZE));
+    }
+
+    private static void print(String name, Run r) {
+        FakeScanner scanner = r.scanner;
+        System.out.println(String.format("%-30s %7d callbacks, %7d results, %6.1f results/callback, %5d rejected, %6d decoded", name + ":", scanner.getCallbackCount(), scanner.getResultCount(), scanner.getResultsPerCallback(), scanner.getRejectedCount(), r.decoded));
+    }
+
+    /**
+     * @param newFilter true for BeaconDecoder.getFilter, false for FakeScanner.legacyFilter
+     * @param queueSize beacons delivered per callback, at most
+     */
+    static Run run(boolean newFilter, int mode, long reportDelayMillis, int queueSize) throws Exception {
+        final BeaconPipeline pipeline = new BeaconPipeline(64, 10000000000L);
+        final Run ret = new Run();
+        FakeScanner scanner = new FakeScanner(queueSize, 1024, true, new PodsScanner.Listener() {
+            @Override
+            public void onBeacons(BeaconBatch batch) {
+                ret.delivered += batch.size();
+                for (int i = 0; i < batch.size(); i++) {
+                    if (pipeline.onBeacon(batch.getTimestamp(i), batch.getTimestamp(i), batch.getRssi(i), batch.getAddress(i), batch.getData(i))) ret.decoded++;
+                }
+            }
+
+            @Override
+            public void onScanFailed(int errorCode) {
+            }
+        });
+        if (newFilter) {
+            byte[] data = new byte[BeaconDecoder.DATA_LENGTH], mask = new byte[BeaconDecoder.DATA_LENGTH];
+            BeaconDecoder.getFilter(data, mask);
+            scanner.setFilter(data, mask);
+        } else {
+            byte[][] f = FakeScanner.legacyFilter();
+            scanner.setFilter(f[0], f[1]);
+        }
+
+        Random r = new Random(42);
+        int devices = OTHER_DEVICES + 1;
+        long[] address = new long[devices], phase = new long[devices];
+        byte[][] payload = new byte[devices][];
+        int[] rssi = new int[devices];
+        for (int d = 0; d < devices; d++) {
+            address[d] = DeviceTable.parseAddress(BeaconCorpus.randomAddress(r));
+            phase[d] = (long) (r.nextDouble() * ADVERTISING_INTERVAL_NS);
+            payload[d] = BeaconCorpus.CAPTURE_FULL.clone();
+            if (d > 0 && d % 2 == 0) payload[d][2] = 0x05; //not from paired pods
+            rssi[d] = d == 0 ? -50 : -60 - r.nextInt(30);
+        }
+
+        scanner.startScan(mode, reportDelayMillis);
+        //advertisements in time order: every device sends one per interval, at its own phase
+        for (long t = 0; t < DURATION_NS; t += ADVERTISING_INTERVAL_NS) {
+            for (int d = 0; d < devices; d++) scanner.advertise(t + phase[d], address[d], rssi[d], payload[d]);
+        }
+        scanner.advanceTo(DURATION_NS);
+        scanner.stopScan();
+        ret.scanner = scanner;
+        return ret;
+    }
+}
@@ -0,0 +1,161 @@
+package com.dosse.airpods.benchmark;
+
+import com.dosse.airpods.BeaconDecoder;
+import com.dosse.airpods.BeaconLogReader;
+import com.dosse.airpods.BeaconPipeline;
+import com.dosse.airpods.DeviceTable;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measures how often the pipeline selects the wrong device on multi-device traffic, compared to the old selection (strongest last rssi).
+ * <p>
+ * Run it with ./gradlew :benchmark:selectionAccuracy, optionally with -PbeaconLog=/path/to/beacons.bin -Pmine=AA:BB:CC:DD:EE:FF
+ * - Without a log, synthetic traffic is used: our pods and a colleague's a few db weaker, with noisy rssi, plus some devices further away. Our pods are device 0.
+ * - With a log, our pods are the address given with -Pmine, or the device with the best mean rssi in the log.
+ * The first 3 seconds are not counted, no selection can be right before both devices were seen.
+ * SelectionAccuracyTest checks the results on the synthetic traffic, and on a small log.
+ */
+public final class SelectionAccuracy {
+    private static final int DEVICES_CAPACITY = 64; //same as PodsService
+    private static final long DEVICES_MAX_AGE_NS = 10000000000L; //same as PodsService
+    private static final long WARMUP_NS = 3000000000L;
+
+    static final int SYNTHETIC_DEVICES = 10;
+
+    static final class Traffic {
+        long[] timestamp, address;
+        int[] rssi;
+        byte[][] payload;
+        long mine;
+    }
+
+    static final class Result {
+        int counted, wrong, switches;
+
+        double wrongRate() {
+            return (double) wrong / Math.max(1, counted);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Traffic t;
+        if (args.length >= 1 && !args[0].isEmpty()) {
+            t = load(new File(args[0]), args.length >= 2 ? args[1] : "");
+        } else {
+            t = synthetic(new Random(42), 5000, SYNTHETIC_DEVICES);
+        }
+        print("strongest last rssi:", run(t, true));
+        print("proximity estimator:", run(t, false));
+    }
+
+    private static void print(String name, Result r) {
+        System.out.println(String.format("%-22s %6d beacons, wrong device %5.1f%%, %5d switches", name, r.counted, 100 * r.wrongRate(), r.switches));
+    }
+
+    /**
+     * @param legacy true to select the device with the strongest last rssi, like before ProximityEstimator, false to use the pipeline
+     */
+    static Result run(Traffic t, boolean legacy) {
+        BeaconPipeline pipeline = new BeaconPipeline(DEVICES_CAPACITY, DEVICES_MAX_AGE_NS);
+        pipeline.setConnected(true);
+        DeviceTable devices = pipeline.getDevices();
+        Map<Long, Integer> lastRssi = new HashMap<>();
+        long legacySelected = DeviceTable.NO_ADDRESS, previous = DeviceTable.NO_ADDRESS;
+        Result ret = new Result();
+        long start = t.timestamp[0];
+        for (int i = 0; i < t.timestamp.length; i++) {
+            if (!pipeline.onBeacon(t.timestamp[i], t.timestamp[i], t.rssi[i], t.address[i], t.payload[i])) continue;
+            long selected;
+            if (legacy) { //strongest last rssi, like before ProximityEstimator
+                lastRssi.put(t.address[i], t.rssi[i]);
+                if (legacySelected == DeviceTable.NO_ADDRESS || t.rssi[i] > lastRssi.get(legacySelected)) legacySelected = t.address[i];
+                selected = legacySelected;
+            } else {
+                selected = devices.getKey(devices.getSelected());
+            }
+            if (selected != previous && previous != DeviceTable.NO_ADDRESS) ret.switches++;
+            previous = selected;
+            if (t.timestamp[i] - start < WARMUP_NS) continue;
+            ret.counted++;
+            if (selected != t.mine) ret.wrong++;
+        }
+        return ret;
+    }
+
+    /**
+     * Our pods at -60db and a colleague's at -64db, both with ±6db of gaussian noise, plus devices further away. Each device sends about 5 beacons per second
+     *
+     * @param devices at least 2, our pods and the colleague's
+     */
+    static Traffic synthetic(Random r, int seconds, int devices) {
+        byte[][] captures = BeaconCorpus.captures();
+        long[] addresses = new long[devices];
+        double[] base = new double[devices];
+        for (int d = 0; d < devices; d++) {
+            addresses[d] = DeviceTable.parseAddress(BeaconCorpus.randomAddress(r));
+            base[d] = d == 0 ? -60 : d == 1 ? -64 : -70 - r.nextInt(25);
+        }
+        int n = seconds * devices * 5;
+        Traffic t = new Traffic();
+        t.timestamp = new long[n];
+        t.address = new long[n];
+        t.rssi = new int[n];
+        t.payload = new byte[n][];
+        t.mine = addresses[0];
+        long now = 0;
+        for (int i = 0; i < n; i++) {
+            int d = r.nextInt(devices);
+            now += 1000000000L / (devices * 5);
+            t.timestamp[i] = now;
+            t.address[i] = addresses[d];
+            t.rssi[i] = (int) Math.round(base[d] + r.nextGaussian() * 6);
+            t.payload[i] = captures[d % captures.length];
+        }
+        return t;
+    }
+
+    /**
+     * @param mine address of our pods, empty for the device with the best mean rssi
+     */
+    static Traffic load(File f, String mine) throws Exception {
+        BeaconLogReader reader = new BeaconLogReader(f);
+        try {
+            int n = reader.size();
+            Traffic t = new Traffic();
+            t.timestamp = new long[n];
+            t.address = new long[n];
+            t.rssi = new int[n];
+            t.payload = new byte[n][];
+            Map<Long, long[]> rssiSum = new HashMap<>();
+            for (int i = 0; i < n; i++) {
+                t.timestamp[i] = reader.getTimestamp(i);
+                t.address[i] = reader.getAddress(i);
+                t.rssi[i] = reader.getRssi(i);
+                t.payload[i] = new byte[BeaconDecoder.DATA_LENGTH];
+                reader.getData(i, t.payload[i]);
+                long[] s = rssiSum.get(t.address[i]);
+                if (s == null) rssiSum.put(t.address[i], s = new long[2]);
+                s[0] += t.rssi[i];
+                s[1]++;
+            }
+            t.mine = DeviceTable.parseAddress(mine);
+            if (t.mine == DeviceTable.NO_ADDRESS) {
+                double best = Double.NEGATIVE_INFINITY;
+                for (Map.Entry<Long, long[]> e : rssiSum.entrySet()) {
+                    double mean = (double) e.getValue()[0] / e.getValue()[1];
+                    if (mean > best) {
+                        best = mean;
+                        t.mine = e.getKey();
+                    }
+                }
+            }
+            return t;
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.dosse.airpods.benchmark;
+
+import com.dosse.airpods.BeaconDecoder;
+import com.dosse.airpods.PodStatus;
+import com.dosse.airpods.PodStatusHolder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of publishing and reading PodStatus snapshots when several threads write and read at the same time.
+ * <p>
+ * Readers check that every snapshot they get is one that was actually published (left and right always have the same value in this benchmark), a torn read would throw.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class StatusContentionBenchmark {
+    private PodStatusHolder status;
+
+    @Setup
+    public void setup() {
+        status = new PodStatusHolder();
+    }
+
+    @State(Scope.Thread)
+    public static class Writer {
+        final BeaconDecoder.Result result = new BeaconDecoder.Result();
+        int level = 0;
+    }
+
+    @State(Scope.Thread)
+    public static class Reader {
+        long lastSequence = -1;
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(2)
+    public boolean publish(Writer w) {
+        w.level = (w.level + 1) % 101;
+        w.result.leftStatus = w.level;
+        w.result.rightStatus = w.level;
+        w.result.caseStatus = w.level;
+        return status.publish(w.result, 0);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(2)
+    public int read(Reader r) {
+        PodStatus s = status.get();
+        if (s.getSequence() == r.lastSequence) return -1; //nothing changed, skip the work
+        if (s.getSequence() < r.lastSequence) throw new IllegalStateException("Sequence went back");
+        if (s.getLeftStatus() != s.getRightStatus()) throw new IllegalStateException("Torn status " + s);
+        r.lastSequence = s.getSequence();
+        return s.getLeftStatus();
+    }
+}
@@ -0,0 +1,35 @@
+package com.dosse.airpods.benchmark;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * The crowds of CrowdSimulator, with the same seeds as ./gradlew :benchmark:crowdSimulation: with few people around our pods must almost always be the ones selected, and the pipeline must not allocate per beacon, however many devices there are.
+ */
+public class CrowdSimulatorTest {
+    private static final int[] FEW_DEVICES = {1, 2, 5, 10}, ALL_DEVICES = {1, 10, 100, 500};
+    private static final double MIN_ACCURACY_FEW = 0.95, MAX_ALLOCATED_PER_BEACON = 16; //a new PodStatus when the levels change is fine, one object per beacon isn't
+
+    @Test
+    public void fewDevicesSelectOurs() {
+        for (int devices : FEW_DEVICES) {
+            CrowdSimulator.Stream s = CrowdSimulator.generate(devices, CrowdSimulator.DEFAULT_SECONDS, devices);
+            double accuracy = CrowdSimulator.quality(s, CrowdSimulator.DEFAULT_SECONDS)[0];
+            assertTrue(devices + " devices: selection accuracy " + String.format("%.1f%%", accuracy * 100) + ", it should be at least " + (int) (MIN_ACCURACY_FEW * 100) + "%", accuracy >= MIN_ACCURACY_FEW);
+        }
+    }
+
+    @Test
+    public void pipelineDoesNotAllocate() {
+        CrowdSimulator.pipelineOnly(CrowdSimulator.generate(100, 120, 0)); //warms up the JIT, so it doesn't allocate while we measure
+        for (int devices : ALL_DEVICES) {
+            CrowdSimulator.Stream s = CrowdSimulator.generate(devices, CrowdSimulator.DEFAULT_SECONDS, devices);
+            long allocated = CrowdSimulator.pipelineOnly(s)[1];
+            assumeTrue("allocations can't be measured on this JVM", allocated >= 0);
+            double perBeacon = (double) allocated / s.size;
+            assertTrue(devices + " devices: " + String.format("%.2f", perBeacon) + " bytes allocated per beacon, the pipeline shouldn't allocate", perBeacon <= MAX_ALLOCATED_PER_BEACON);
+        }
+    }
+}
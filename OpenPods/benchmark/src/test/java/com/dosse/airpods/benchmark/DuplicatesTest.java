@@ -0,0 +1,66 @@
+package com.dosse.airpods.benchmark;
+
+import com.dosse.airpods.BeaconDecoder;
+import com.dosse.airpods.BeaconPipeline;
+import com.dosse.airpods.PodStatusHolder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Skipping duplicate beacons must not change anything but the cost: the crowds of CrowdSimulator go through a pipeline that skips them and one that decodes everything, and after every beacon both must have the same status and the same selected device.
+ */
+public class DuplicatesTest {
+    private static final long SECONDS = 300;
+
+    @Test
+    public void oneDevice() {
+        assertTrue("no duplicates were skipped, the test doesn't test anything", compare(1) > 0);
+    }
+
+    @Test
+    public void fewDevices() {
+        compare(5);
+    }
+
+    @Test
+    public void crowd() {
+        compare(50);
+    }
+
+    @Test
+    public void packedBus() {
+        compare(500);
+    }
+
+    /**
+     * @return number of duplicates that were skipped. With more devices than the table can hold there may be none, they're evicted before their next beacon
+     */
+    private static long compare(int devices) {
+        CrowdSimulator.Stream s = CrowdSimulator.generate(devices, SECONDS, devices);
+        BeaconPipeline all = CrowdSimulator.newPipeline(0), skipping = CrowdSimulator.newPipeline(CrowdSimulator.DUPLICATE_WINDOW_NS);
+        PodStatusHolder allStatus = new PodStatusHolder(), skippingStatus = new PodStatusHolder();
+        BeaconDecoder.Result reference = new BeaconDecoder.Result();
+        for (int i = 0; i < s.size; i++) {
+            boolean a = CrowdSimulator.process(all, allStatus, s, i), b = CrowdSimulator.process(skipping, skippingStatus, s, i);
+            assertEquals("beacon " + i + ": accepted", a, b);
+            assertEquals("beacon " + i + ": status " + allStatus.get() + " decoding all the beacons, " + skippingStatus.get() + " skipping duplicates", allStatus.get().getPacked(), skippingStatus.get().getPacked());
+            int sa = all.getDevices().getSelected(), sb = skipping.getDevices().getSelected();
+            long ka = sa == -1 ? -1 : all.getDevices().getKey(sa), kb = sb == -1 ? -1 : skipping.getDevices().getKey(sb);
+            assertEquals("beacon " + i + ": selected device", ka, kb);
+            //the result is only decoded when the selected device or its last beacon changed, it must be what we'd get by decoding it now
+            if (b) {
+                assertTrue("beacon " + i + ": the last beacon of the selected device can't be decoded", BeaconDecoder.decode(skipping.getDevices().getPayload(sb), reference));
+                assertTrue("beacon " + i + ": the result is not the last beacon of the selected device", same(reference, skipping.getResult()));
+            }
+        }
+        assertEquals("last seen", allStatus.getLastSeen(), skippingStatus.getLastSeen());
+        return skipping.getDevices().getDuplicates();
+    }
+
+    private static boolean same(BeaconDecoder.Result a, BeaconDecoder.Result b) {
+        return a.leftStatus == b.leftStatus && a.rightStatus == b.rightStatus && a.caseStatus == b.caseStatus && a.chargeL == b.chargeL && a.chargeR == b.chargeR && a.chargeCase == b.chargeCase && a.flipped == b.flipped && a.model == b.model;
+    }
+}
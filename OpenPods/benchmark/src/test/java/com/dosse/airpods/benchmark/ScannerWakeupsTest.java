@@ -0,0 +1,72 @@
+package com.dosse.airpods.benchmark;
+
+import com.dosse.airpods.BeaconBatch;
+import com.dosse.airpods.BeaconDecoder;
+import com.dosse.airpods.PodsScanner;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Wakeups of the app with FakeScanner, on the traffic of ScannerWakeups: the filter of BeaconDecoder.getFilter keeps the proximity messages that are not from paired pods in the controller, the report delay turns many callbacks into a few, and beacons that don't fit in the queue are counted.
+ */
+public class ScannerWakeupsTest {
+    private static final long DURATION_MS = 600000; //same as ScannerWakeups
+
+    @Test
+    public void filterMatchesOnlyPairedPods() {
+        byte[] data = new byte[BeaconDecoder.DATA_LENGTH], mask = new byte[BeaconDecoder.DATA_LENGTH];
+        BeaconDecoder.getFilter(data, mask);
+        assertEquals("the prefix is matched", (byte) 0xFF, mask[2]);
+        assertEquals(BeaconDecoder.PREFIX_PAIRED, data[2]);
+        byte[] notPaired = BeaconCorpus.CAPTURE_FULL.clone();
+        notPaired[2] = 0x05;
+        assertTrue(BeaconDecoder.matchesFilter(BeaconCorpus.CAPTURE_FULL));
+        assertFalse(BeaconDecoder.matchesFilter(notPaired));
+    }
+
+    @Test
+    public void filterKeepsOtherMessagesInTheController() throws Exception {
+        ScannerWakeups.Run legacy = ScannerWakeups.run(false, PodsScanner.MODE_BALANCED, 0, ScannerWakeups.QUEUE_SIZE);
+        ScannerWakeups.Run filtered = ScannerWakeups.run(true, PodsScanner.MODE_BALANCED, 0, ScannerWakeups.QUEUE_SIZE);
+        assertTrue("the old filter lets the messages of unpaired pods through", legacy.scanner.getRejectedCount() > 0);
+        assertEquals(0, filtered.scanner.getRejectedCount());
+        assertEquals("each message that isn't from paired pods was a wakeup", legacy.scanner.getCallbackCount() - legacy.scanner.getRejectedCount(), filtered.scanner.getCallbackCount());
+        assertEquals("no beacon of paired pods is lost", legacy.decoded, filtered.decoded);
+    }
+
+    @Test
+    public void reportDelayReducesCallbacks() throws Exception {
+        ScannerWakeups.Run immediate = ScannerWakeups.run(true, PodsScanner.MODE_LOW_LATENCY, 0, ScannerWakeups.QUEUE_SIZE);
+        ScannerWakeups.Run delayed = ScannerWakeups.run(true, PodsScanner.MODE_LOW_LATENCY, 2000, ScannerWakeups.QUEUE_SIZE);
+        assertEquals("one callback per beacon", immediate.scanner.getResultCount(), immediate.scanner.getCallbackCount());
+        assertEquals("one callback per report delay", DURATION_MS / 2000, delayed.scanner.getCallbackCount());
+        assertEquals(immediate.scanner.getResultCount(), delayed.scanner.getResultCount());
+        assertEquals(immediate.decoded, delayed.decoded);
+        assertEquals(0, delayed.scanner.getOverwrittenCount());
+    }
+
+    @Test
+    public void beaconsThatDontFitInTheQueueAreCounted() throws Exception {
+        ScannerWakeups.Run r = ScannerWakeups.run(true, PodsScanner.MODE_LOW_LATENCY, 2000, 8);
+        FakeScanner s = r.scanner;
+        assertTrue("the test needs callbacks with more beacons than the queue", s.getMaxResultsPerCallback() > s.getQueueSize());
+        assertEquals(s.getCallbackCount() * s.getQueueSize(), r.delivered);
+        assertEquals(s.getResultCount() - r.delivered, s.getOverwrittenCount());
+    }
+
+    @Test
+    public void fullBatchKeepsTheNewestBeacons() {
+        BeaconBatch b = new BeaconBatch(4);
+        for (int i = 0; i < 10; i++) b.add(i, i, -50, BeaconCorpus.CAPTURE_FULL);
+        assertEquals(4, b.size());
+        assertEquals(6, b.getOverwritten());
+        for (int i = 0; i < 4; i++) assertEquals("oldest first", 6 + i, b.getTimestamp(i));
+        b.clear();
+        assertEquals(0, b.size());
+        assertEquals("the count is since the batch was created", 6, b.getOverwritten());
+    }
+}
@@ -0,0 +1,47 @@
+package com.dosse.airpods.benchmark;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The pipeline must select our pods, and not switch back and forth, when a colleague's pods are almost as close.
+ * <p>
+ * two_pairs.bin is a log written by BeaconLog, with a minute of the synthetic traffic of SelectionAccuracy with only the 2 pairs (seed 2): our pods are BB:4B:E6:01:7F:DA.
+ * It's replayed through BeaconLogReader, like a log recorded by the app, so it also catches changes to the file format that would make old logs unreadable.
+ */
+public class SelectionAccuracyTest {
+    private static final int SECONDS = 600;
+    private static final double MAX_WRONG = 0.03; //the strongest last rssi is wrong about 30% of the time on this traffic
+    private static final int MAX_SWITCHES = 10; //per run, the strongest last rssi switches about 100 times per minute
+
+    @Test
+    public void twoPairs() {
+        assertAccurate("two pairs", SelectionAccuracy.synthetic(new Random(42), SECONDS, 2));
+    }
+
+    @Test
+    public void twoPairsAndOtherDevices() {
+        assertAccurate("two pairs and other devices", SelectionAccuracy.synthetic(new Random(42), SECONDS, SelectionAccuracy.SYNTHETIC_DEVICES));
+    }
+
+    @Test
+    public void recordedLog() throws Exception {
+        File log = new File(getClass().getResource("/two_pairs.bin").toURI());
+        SelectionAccuracy.Traffic t = SelectionAccuracy.load(log, "BB:4B:E6:01:7F:DA");
+        assertEquals(600, t.timestamp.length);
+        assertEquals("the best mean rssi is ours", t.mine, SelectionAccuracy.load(log, "").mine);
+        assertAccurate("log", t);
+    }
+
+    private static void assertAccurate(String traffic, SelectionAccuracy.Traffic t) {
+        SelectionAccuracy.Result r = SelectionAccuracy.run(t, false), legacy = SelectionAccuracy.run(t, true);
+        assertTrue(traffic + ": wrong device " + String.format("%.1f%%", 100 * r.wrongRate()) + " of the time", r.wrongRate() <= MAX_WRONG);
+        assertTrue(traffic + ": " + r.switches + " switches", r.switches <= MAX_SWITCHES);
+        assertTrue(traffic + ": not better than the strongest last rssi", r.wrongRate() < legacy.wrongRate() && r.switches < legacy.switches);
+    }
+}